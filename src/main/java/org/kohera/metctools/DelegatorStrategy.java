@@ -2,21 +2,27 @@ package org.kohera.metctools;
 
 import java.math.BigDecimal;
 import java.util.Date;
+import java.util.List;
 import java.util.Map;
 
 import org.kohera.metctools.delegate.AskDelegate;
 import org.kohera.metctools.delegate.BidDelegate;
 import org.kohera.metctools.delegate.BrokerStatusDelegate;
 import org.kohera.metctools.delegate.CallbackDelegate;
+import org.kohera.metctools.delegate.DelegateStatistics;
 import org.kohera.metctools.delegate.Delegator;
 import org.kohera.metctools.delegate.EventDelegate;
 import org.kohera.metctools.delegate.ExecutionReportDelegate;
+import org.kohera.metctools.delegate.LaneStatistics;
 import org.kohera.metctools.delegate.OrderCancelRejectDelegate;
 import org.kohera.metctools.delegate.OtherDelegate;
+import org.kohera.metctools.delegate.OverflowPolicy;
+import org.kohera.metctools.delegate.QuarantinePolicy;
 import org.kohera.metctools.delegate.ServerStatusDelegate;
 import org.kohera.metctools.delegate.StartDelegate;
 import org.kohera.metctools.delegate.StopDelegate;
 import org.kohera.metctools.delegate.TradeDelegate;
+import org.kohera.metctools.delegate.WaitStrategy;
 import org.marketcetera.marketdata.MarketDataRequest;
 import org.marketcetera.strategy.RunningStrategy;
 import org.marketcetera.strategy.java.Strategy;
@@ -38,6 +44,7 @@ import org.marketcetera.core.position.PositionKey;
 import org.marketcetera.event.AskEvent;
 import org.marketcetera.event.BidEvent;
 import org.marketcetera.event.EventBase;
+import org.marketcetera.event.SymbolExchangeEvent;
 import org.marketcetera.event.TradeEvent;
 
 import quickfix.Message;
@@ -235,6 +242,17 @@ public class DelegatorStrategy extends Strategy
 		delegator.addDelegate(delegate);
 	}
 	
+	/**
+	 * Add a delegate that receives AskEvents, BidEvents and TradeEvents
+	 * only for the given symbols.  Other events are delivered as usual.
+	 * 
+	 * @param delegate
+	 * @param symbols
+	 */
+	public void addDelegate( EventDelegate delegate, String... symbols ) {
+		delegator.addDelegate(delegate, symbols);
+	}
+	
 	/**
 	 * Remove a a delegate from this strategy.
 	 * @param delegate
@@ -243,6 +261,180 @@ public class DelegatorStrategy extends Strategy
 		delegator.removeDelegate(delegate);
 	}
 	
+	/**
+	 * Deliver events to each delegate on its own thread, through a bounded
+	 * ring buffer of the given capacity.  The inbound event thread then
+	 * only publishes into the rings and never waits on delegate code,
+	 * except when a ring is full and the overflow policy is BLOCK.
+	 * 
+	 * @see Delegator#enableAsyncDelegation(int, WaitStrategy, OverflowPolicy)
+	 * @param capacity
+	 * @param waitStrategy
+	 * @param overflowPolicy
+	 */
+	public void enableAsyncDelegation( int capacity, WaitStrategy waitStrategy,
+			OverflowPolicy overflowPolicy ) {
+		delegator.enableAsyncDelegation(capacity, waitStrategy, overflowPolicy);
+	}
+	
+	/**
+	 * Deliver events to the delegates on the inbound event thread again.
+	 */
+	public void disableAsyncDelegation() {
+		delegator.disableAsyncDelegation();
+	}
+	
+	/**
+	 * Queue incoming events and delegate them on a separate thread by
+	 * priority: execution reports, cancel rejects and broker/server status
+	 * always go before market data.
+	 * 
+	 * @see Delegator#enablePriorityDispatch()
+	 */
+	public void enablePriorityDispatch() {
+		delegator.enablePriorityDispatch();
+	}
+	
+	/**
+	 * Stop queueing events by priority.
+	 */
+	public void disablePriorityDispatch() {
+		delegator.disablePriorityDispatch();
+	}
+	
+	/**
+	 * Returns, per delivery lane, how many events were delegated and how
+	 * long they waited.  Empty unless priority dispatch or conflation is
+	 * enabled.
+	 * 
+	 * @return
+	 */
+	public LaneStatistics[] getLaneStatistics() {
+		return delegator.getLaneStatistics();
+	}
+	
+	/**
+	 * Conflate market data: under load, delegates receive only the newest
+	 * ask, bid and trade per symbol.  Execution reports and all other
+	 * events are never conflated, and are delegated ahead of market data.
+	 * 
+	 * @see Delegator#enableConflation()
+	 */
+	public void enableConflation() {
+		delegator.enableConflation();
+	}
+	
+	/**
+	 * Stop conflating market data.
+	 */
+	public void disableConflation() {
+		delegator.disableConflation();
+	}
+	
+	/**
+	 * Returns how many older updates were merged into a conflated market
+	 * data event.  Call this from the delegate that received the event.
+	 * 
+	 * @param event
+	 * @return
+	 */
+	public int getMergedCount( SymbolExchangeEvent event ) {
+		return delegator.getMergedCount(event);
+	}
+	
+	/**
+	 * Drop the conflated market data of a symbol that is no longer
+	 * requested.
+	 * 
+	 * @param symbol
+	 * @see Delegator#forgetSymbol(String)
+	 */
+	public void forgetSymbol( String symbol ) {
+		delegator.forgetSymbol(symbol);
+	}
+	
+	/**
+	 * Set how market data is batched for AskBatchDelegates,
+	 * BidBatchDelegates and TradeBatchDelegates: a batch is delegated once
+	 * it holds size events, or once its oldest event has waited delayMillis
+	 * milliseconds.
+	 * 
+	 * @param size
+	 * @param delayMillis
+	 */
+	public void setBatchPolicy( int size, long delayMillis ) {
+		delegator.setBatchPolicy(size, delayMillis);
+	}
+	
+	/**
+	 * Quarantine delegates that repeatedly exceed a latency budget or
+	 * throw, so that they cannot slow down event processing for the
+	 * other delegates.  See Delegator.enableCircuitBreaker().
+	 * 
+	 * @param latencyBudgetNanos
+	 * @param maxViolations
+	 * @param coolDownMillis
+	 * @param policy
+	 */
+	public void enableCircuitBreaker( long latencyBudgetNanos, int maxViolations,
+			long coolDownMillis, QuarantinePolicy policy ) {
+		delegator.enableCircuitBreaker(latencyBudgetNanos, maxViolations, coolDownMillis, policy);
+	}
+	
+	/**
+	 * Remove the circuit breakers of all delegates.
+	 */
+	public void disableCircuitBreaker() {
+		delegator.disableCircuitBreaker();
+	}
+	
+	/**
+	 * Returns true if and only if the delegate is currently quarantined.
+	 * 
+	 * @param delegate
+	 * @return
+	 */
+	public boolean isQuarantined( EventDelegate delegate ) {
+		return delegator.isQuarantined(delegate);
+	}
+	
+	/**
+	 * Turn per-delegate dispatch statistics (invocation and exception
+	 * counts, latency percentiles) on or off at runtime.
+	 * 
+	 * @param enabled
+	 */
+	public void setInstrumentationEnabled( boolean enabled ) {
+		delegator.setInstrumentationEnabled(enabled);
+	}
+	
+	/**
+	 * Returns a snapshot of the dispatch statistics of every delegate,
+	 * per delegate interface.
+	 * 
+	 * @return
+	 */
+	public List<DelegateStatistics> getDelegateStatistics() {
+		return delegator.getDelegateStatistics();
+	}
+	
+	/**
+	 * Write the dispatch statistics to the log every periodMillis
+	 * milliseconds.
+	 * 
+	 * @param periodMillis
+	 */
+	public void startStatisticsLogging( long periodMillis ) {
+		delegator.startStatisticsLogging(periodMillis);
+	}
+	
+	/**
+	 * Stop writing the dispatch statistics to the log.
+	 */
+	public void stopStatisticsLogging() {
+		delegator.stopStatisticsLogging();
+	}
+	
 	/**
 	 * Returns a positions map from the client.
 	 * 
@@ -321,6 +513,8 @@ public class DelegatorStrategy extends Strategy
 		client.removeBrokerStatusListener(BROKER_STATUS_LISTENER);
 		client.removeServerStatusListener(SERVER_STATUS_LISTENER);
 		delegator.delegate(StopDelegate.class, null);
+		/* flush queued events and let the delegate threads exit */
+		delegator.shutdown();
 	}
 
 }
@@ -9,7 +9,7 @@ import org.marketcetera.event.AskEvent;
  * @author Jake Brukhman
  *
  */
-public interface AskDelegate {
+public interface AskDelegate extends EventDelegate {
 	
 	/**
 	 * 
@@ -0,0 +1,139 @@
+package org.kohera.metctools.delegate;
+
+import java.lang.reflect.Array;
+
+/**
+ * Collects the market data events of one type for the delegates of the
+ * corresponding batch interface, and hands them to the Delegator in
+ * batches.
+ * 
+ * Two EventBatch buffers are used in turn: events are added to one while
+ * the other is being delivered, so neither the inbound thread nor the
+ * delivery allocates.  Adding only holds the batcher's monitor for an
+ * array store; delivery is serialized by a separate lock, so that a batch
+ * is never reused before all of its delegates have returned.
+ * 
+ * When the batch policy changes, the batcher is retired: events added to
+ * it afterwards, by threads that still hold it, are forwarded to the
+ * batcher that replaces it.
+ * 
+ */
+final class Batcher {
+
+	/* fields */
+	private final Delegator	delegator;
+	private final Class<?>	key;				// the batch delegate interface
+	private final long		maxDelayNanos;
+	private final Object	flushLock = new Object();
+	
+	/* guarded by this */
+	private EventBatch		filling;
+	private EventBatch		spare;
+	private long			since;				// arrival of the oldest event in filling
+	private Batcher			successor;			// set once retired
+	
+	/**
+	 * Create a new Batcher.
+	 * 
+	 * @param delegator
+	 * @param key			batch delegate interface the batches are delegated to
+	 * @param eventType		runtime type of the events
+	 * @param size			number of events per batch
+	 * @param maxDelayMillis	how long an event may wait for its batch to fill
+	 */
+	Batcher(Delegator delegator, Class<?> key, Class<?> eventType, int size, long maxDelayMillis) {
+		this.delegator = delegator;
+		this.key = key;
+		this.maxDelayNanos = maxDelayMillis * 1000000L;
+		this.filling = new EventBatch((Object[])Array.newInstance(eventType, size));
+		this.spare = new EventBatch((Object[])Array.newInstance(eventType, size));
+	}
+	
+	/**
+	 * Returns the batch delegate interface of this batcher.
+	 * 
+	 * @return
+	 */
+	Class<?> getKey() {
+		return key;
+	}
+	
+	/**
+	 * Add an event.  The batch is delegated on the calling thread once it is
+	 * full or its oldest event has waited for the maximum delay.
+	 * 
+	 * @param event
+	 */
+	void add(Object event) {
+		boolean added = false;
+		while ( !added ) {
+			boolean due;
+			Batcher next;
+			synchronized(this) {
+				next = successor;
+				if ( next == null && !filling.isFull() ) {
+					if ( filling.getCount() == 0 ) {
+						since = System.nanoTime();
+					}
+					filling.add(event);
+					added = true;
+				}
+				due = filling.isFull() || System.nanoTime() - since >= maxDelayNanos;
+			}
+			if ( next != null ) {
+				next.add(event);
+				return;
+			}
+			if ( due ) {
+				flush();
+			}
+		}
+	}
+	
+	/**
+	 * Retire this batcher: forward the events added from now on to the
+	 * given batcher, and delegate the pending ones on the calling thread.
+	 * 
+	 * @param next
+	 */
+	void retire(Batcher next) {
+		synchronized(this) {
+			successor = next;
+		}
+		flush();
+	}
+	
+	/**
+	 * Delegate the pending events, if any, on the calling thread.
+	 */
+	void flush() {
+		synchronized(flushLock) {
+			EventBatch batch;
+			synchronized(this) {
+				if ( filling.getCount() == 0 ) return;
+				batch = filling;
+				filling = spare;
+				spare = batch;
+			}
+			try {
+				delegator.dispatch(key, batch);
+			} finally {
+				batch.clear();
+			}
+		}
+	}
+	
+	/**
+	 * Delegate the pending events if the oldest of them has waited for the
+	 * maximum delay.
+	 */
+	void flushIfDue() {
+		synchronized(this) {
+			if ( filling.getCount() == 0 || System.nanoTime() - since < maxDelayNanos ) {
+				return;
+			}
+		}
+		flush();
+	}
+	
+}
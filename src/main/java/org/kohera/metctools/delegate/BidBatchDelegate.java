@@ -0,0 +1,28 @@
+package org.kohera.metctools.delegate;
+
+import org.kohera.metctools.DelegatorStrategy;
+import org.marketcetera.event.BidEvent;
+
+/**
+ * Delegate interface for BidEvents delivered in batches.
+ * 
+ * The Delegator collects BidEvents and hands them over when the batch is
+ * full, when the oldest one has waited for the configured delay, or at the
+ * end of a burst of queued events (see Delegator.setBatchPolicy()).
+ * 
+ */
+public interface BidBatchDelegate extends EventDelegate {
+	
+	/**
+	 * 
+	 * Implement this method to handle batches of BidEvents.  The array is
+	 * reused once the method returns; only the first count elements are
+	 * valid, in the order the events arrived.
+	 * 
+	 * @param sender
+	 * @param bids
+	 * @param count
+	 */
+	public void onBids( DelegatorStrategy sender, BidEvent[] bids, int count );
+	
+}
@@ -9,7 +9,7 @@ import org.marketcetera.event.BidEvent;
  * @author Jake Brukhman
  *
  */
-public interface BidDelegate {
+public interface BidDelegate extends EventDelegate {
 	
 	/**
 	 * 
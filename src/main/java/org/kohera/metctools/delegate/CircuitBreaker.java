@@ -0,0 +1,228 @@
+package org.kohera.metctools.delegate;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+import org.kohera.metctools.util.DaemonThreadFactory;
+
+/**
+ * Circuit breaker of a single delegate.
+ * 
+ * Every invocation that takes longer than the latency budget, or throws,
+ * is a violation.  After maxViolations violations in a row the breaker
+ * opens and the delegate is quarantined according to the QuarantinePolicy.
+ * Once the cool-down has passed (and any offloaded backlog has been
+ * delivered), the breaker closes again on probation: a single further
+ * violation reopens it.
+ * 
+ * Each breaker delivers the offloaded events of its delegate, in order,
+ * on a thread of its own, so that one slow delegate cannot hold up the
+ * offloaded events of the others.  The thread is started on the first
+ * offload and exits once it has been idle for IDLE_SECONDS.
+ * 
+ * The breaker may be used from several threads; its state is kept in
+ * atomics, and a call within budget costs one volatile read.
+ * 
+ */
+final class CircuitBreaker {
+
+	/* seconds before an idle quarantine thread exits */
+	private static final long		IDLE_SECONDS = 60;
+	
+	/* fields */
+	private final Object			delegate;
+	private final long				budgetNanos;
+	private final int				maxViolations;
+	private final long				coolDownNanos;
+	private final QuarantinePolicy	policy;
+	private final ThreadPoolExecutor	executor;
+	
+	private final AtomicInteger		violations = new AtomicInteger();
+	private final AtomicLong		openUntil = new AtomicLong();		// nanoTime, 0 = closed
+	private final AtomicInteger		pending = new AtomicInteger();		// offloaded, not yet delivered
+	private final AtomicLong		skipped = new AtomicLong();
+	private volatile boolean		released;		// never opens again
+	private volatile Thread			worker;			// delivering offloaded events, if any
+	
+	/* logging */
+	private final static Logger logger =
+		Logger.getLogger(CircuitBreaker.class);
+	
+	/**
+	 * Create a new CircuitBreaker.
+	 * 
+	 * @param delegate
+	 * @param budgetNanos
+	 * @param maxViolations
+	 * @param coolDownMillis
+	 * @param policy
+	 * @param capacity		maximum number of offloaded events waiting
+	 */
+	CircuitBreaker(Object delegate, long budgetNanos, int maxViolations,
+			long coolDownMillis, QuarantinePolicy policy, int capacity) {
+		this.delegate = delegate;
+		this.budgetNanos = budgetNanos;
+		this.maxViolations = maxViolations;
+		this.coolDownNanos = coolDownMillis * 1000000L;
+		this.policy = policy;
+		this.executor = new ThreadPoolExecutor(1, 1, IDLE_SECONDS, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>(capacity),
+				new DaemonThreadFactory("DelegatorQuarantine-" + delegate.getClass().getSimpleName()));
+		this.executor.allowCoreThreadTimeOut(true);
+	}
+	
+	/**
+	 * Returns the quarantine policy.
+	 * 
+	 * @return
+	 */
+	QuarantinePolicy getPolicy() {
+		return policy;
+	}
+	
+	/**
+	 * Returns true if and only if the delegate is quarantined.  Closes
+	 * the breaker if the cool-down has passed.
+	 * 
+	 * @return
+	 */
+	boolean isOpen() {
+		long until = openUntil.get();
+		if ( until == 0 ) {
+			return false;
+		}
+		if ( System.nanoTime() - until < 0 || pending.get() > 0 ) {
+			return true;
+		}
+		if ( openUntil.compareAndSet(until, 0) ) {
+			violations.set(maxViolations - 1);
+			logger.info(">>> Restoring delegate " + delegate + " after cool-down.");
+		}
+		return false;
+	}
+	
+	/**
+	 * Record the outcome of an invocation of the delegate.
+	 * 
+	 * @param elapsedNanos
+	 * @param failure		the exception thrown, or null
+	 */
+	void record(long elapsedNanos, Exception failure) {
+		if ( released || failure == null && elapsedNanos <= budgetNanos ) {
+			if ( violations.get() != 0 ) {
+				violations.set(0);
+			}
+			return;
+		}
+		if ( failure != null ) {
+			logger.debug(">>> Delegate " + delegate + " threw an exception.", failure);
+		}
+		if ( violations.incrementAndGet() >= maxViolations ) {
+			trip(elapsedNanos, failure);
+		}
+	}
+	
+	private void trip(long elapsedNanos, Exception failure) {
+		violations.set(0);
+		long until = System.nanoTime() + coolDownNanos;
+		if ( until == 0 ) until = 1;
+		if ( openUntil.getAndSet(until) == 0 ) {
+			String reason = failure != null ? "exception" : "latency " + elapsedNanos + "ns";
+			logger.warn(">>> Quarantining delegate " + delegate + " (" + policy + ") after " +
+					maxViolations + " violations, last: " + reason + ".", failure);
+		}
+	}
+	
+	/**
+	 * Deliver an event on the background executor.  If the executor does
+	 * not accept it, the event is skipped.
+	 * 
+	 * @param delivery
+	 */
+	void offload(final Runnable delivery) {
+		pending.incrementAndGet();
+		try {
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					worker = Thread.currentThread();
+					try {
+						delivery.run();
+					} finally {
+						worker = null;
+						delivered();
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			skipped.incrementAndGet();
+			delivered();
+		}
+	}
+	
+	/**
+	 * End the quarantine, and never open again: the delegate is called
+	 * directly once its offloaded events have been delivered.  Used when
+	 * the breaker is removed (see awaitDrained()).
+	 */
+	void release() {
+		released = true;
+		long until = openUntil.get();
+		if ( until != 0 ) {
+			long now = System.nanoTime();
+			openUntil.compareAndSet(until, now == 0 ? 1 : now);
+		}
+	}
+	
+	/**
+	 * Wait until every offloaded event has been delivered, unless called
+	 * while delivering one (i.e. by the delegate).
+	 */
+	void awaitDrained() {
+		if ( Thread.currentThread() == worker ) return;
+		boolean interrupted = false;
+		synchronized(this) {
+			while ( pending.get() > 0 ) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+		}
+		if ( interrupted ) {
+			Thread.currentThread().interrupt();
+		}
+	}
+	
+	private void delivered() {
+		if ( pending.decrementAndGet() == 0 ) {
+			synchronized(this) {
+				notifyAll();
+			}
+		}
+	}
+	
+	/**
+	 * Count an event that was not delivered to the delegate.
+	 */
+	void skip() {
+		skipped.incrementAndGet();
+	}
+	
+	/**
+	 * Returns the number of events that were not delivered to the delegate
+	 * because it was quarantined.
+	 * 
+	 * @return
+	 */
+	long getSkippedCount() {
+		return skipped.get();
+	}
+	
+}
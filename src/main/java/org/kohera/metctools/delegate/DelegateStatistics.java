@@ -0,0 +1,115 @@
+package org.kohera.metctools.delegate;
+
+/**
+ * A point-in-time snapshot of the dispatch statistics of one delegate
+ * for one of its delegate interfaces.
+ * 
+ * Latencies are the time spent inside the delegate's event method, in
+ * nanoseconds.  Percentiles are accurate to within 12.5%.  Only
+ * invocations made while instrumentation was enabled are counted.
+ * 
+ */
+public final class DelegateStatistics {
+
+	/* fields */
+	private final Object 	delegate;
+	private final Class<?> 	interf;
+	private final long 		invocations;
+	private final long 		exceptions;
+	private final long 		p50;
+	private final long 		p99;
+	private final long 		p999;
+	private final long 		max;
+	
+	DelegateStatistics( Object delegate, Class<?> interf, long invocations,
+			long exceptions, long p50, long p99, long p999, long max ) {
+		this.delegate = delegate;
+		this.interf = interf;
+		this.invocations = invocations;
+		this.exceptions = exceptions;
+		this.p50 = p50;
+		this.p99 = p99;
+		this.p999 = p999;
+		this.max = max;
+	}
+	
+	/**
+	 * Returns the delegate object.
+	 * 
+	 * @return
+	 */
+	public Object getDelegate() {
+		return delegate;
+	}
+	
+	/**
+	 * Returns the delegate interface these statistics are about.
+	 * 
+	 * @return
+	 */
+	public Class<?> getInterface() {
+		return interf;
+	}
+	
+	/**
+	 * Returns the number of invocations.
+	 * 
+	 * @return
+	 */
+	public long getInvocations() {
+		return invocations;
+	}
+	
+	/**
+	 * Returns the number of invocations that threw an exception.
+	 * 
+	 * @return
+	 */
+	public long getExceptions() {
+		return exceptions;
+	}
+	
+	/**
+	 * Returns the median latency in nanoseconds.
+	 * 
+	 * @return
+	 */
+	public long getP50Nanos() {
+		return p50;
+	}
+	
+	/**
+	 * Returns the 99th percentile latency in nanoseconds.
+	 * 
+	 * @return
+	 */
+	public long getP99Nanos() {
+		return p99;
+	}
+	
+	/**
+	 * Returns the 99.9th percentile latency in nanoseconds.
+	 * 
+	 * @return
+	 */
+	public long getP999Nanos() {
+		return p999;
+	}
+	
+	/**
+	 * Returns the largest latency in nanoseconds.
+	 * 
+	 * @return
+	 */
+	public long getMaxNanos() {
+		return max;
+	}
+	
+	@Override
+	public String toString() {
+		return String.format("{%s/%s: calls=%d exceptions=%d p50=%.1fus p99=%.1fus p99.9=%.1fus max=%.1fus}",
+				delegate, interf.getSimpleName(), invocations, exceptions,
+				p50 / 1000.0, p99 / 1000.0, p999 / 1000.0, max / 1000.0);
+	}
+	
+}
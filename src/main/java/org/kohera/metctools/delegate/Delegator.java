@@ -1,12 +1,27 @@
 package org.kohera.metctools.delegate;
 
-import java.lang.reflect.Method;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
-import org.kohera.metctools.util.Table;
+import org.apache.log4j.Logger;
 import org.kohera.metctools.DelegatorStrategy;
+import org.kohera.metctools.util.DaemonThreadFactory;
+import org.marketcetera.event.AskEvent;
+import org.marketcetera.event.BidEvent;
+import org.marketcetera.event.SymbolExchangeEvent;
+import org.marketcetera.event.TradeEvent;
 
 /**
  * The delegator handles delegation of events to the appropriate objects.
@@ -14,8 +29,78 @@ import org.kohera.metctools.DelegatorStrategy;
  * Delegate objects must implement some subinterface of EventDelegate, one
  * of the interfaces mentioned in EVENTS_ARRAY.  Then, a delegate object is
  * added to the Delegator, after which the delegate() method will broadcast
- * objects to the appropriate destinations.
+ * objects to the appropriate destinations.  Interfaces implemented by a
+ * superclass of the delegate, or extended by another interface it
+ * implements, count as well.
  * 
+ * Each interface has its own typed Dispatcher, which calls the event
+ * method of the delegates directly (no reflection is used when an event
+ * is delegated).
+ * 
+ * Delegates may be added and removed from any thread, including while
+ * events are being delegated on another thread.  Each dispatcher swaps
+ * in a new immutable snapshot of its delegates on change, and delegate()
+ * reads the current snapshot without locking.  A delegate implementing
+ * several interfaces is registered with each dispatcher in turn, so for a
+ * short moment it may receive some event types but not yet others.
+ * 
+ * Symbol-scoped delegates:
+ * 
+ *   A delegate added with addDelegate(delegate, symbols...) receives
+ *   AskEvents, BidEvents and TradeEvents only for those symbols.  Such
+ *   delegates are indexed by symbol, so the cost of delegating a tick
+ *   does not grow with the number of per-symbol delegates.  All other
+ *   events are delivered to scoped delegates as usual.
+ * 
+ * Asynchronous delegation:
+ * 
+ *   By default, delegates are called on the thread that delivers the
+ *   event.  After enableAsyncDelegation() is called, every delegate gets
+ *   its own bounded ring buffer and consumer thread (see EventRing), and
+ *   delegate() only publishes into the rings.  A slow delegate then no
+ *   longer holds up the other delegates or the inbound thread.  Events
+ *   are still delivered to each delegate in the order they were
+ *   delegated, but different delegates proceed independently.
+ * 
+ * Queued delivery (priority lanes and conflation):
+ * 
+ *   After enablePriorityDispatch() or enableConflation() is called, events
+ *   are no longer delegated on the inbound thread.  They are queued in an
+ *   EventPump, whose single thread delegates them by lane priority: order
+ *   events (execution reports, cancel rejects, broker and server status)
+ *   first, then control events, and market data only when nothing else
+ *   is waiting.  With conflation, the market data lane keeps only the
+ *   newest ask, bid and trade per symbol; getMergedCount() tells how many
+ *   updates were merged away, and forgetSymbol() drops a symbol that is no
+ *   longer requested.  Order events are never conflated.  The lanes are
+ *   bounded, and the wait time of each lane is available from
+ *   getLaneStatistics().
+ * 
+ * Instrumentation:
+ * 
+ *   setInstrumentationEnabled(true) makes the dispatchers count and time
+ *   every invocation of every delegate, per delegate interface.  The
+ *   results are available from getDelegateStatistics(), and can be written
+ *   to the log periodically with startStatisticsLogging().  Turning
+ *   instrumentation off again leaves only a flag check on the event path.
+ * 
+ * Batch delegation:
+ * 
+ *   Delegates implementing AskBatchDelegate, BidBatchDelegate or
+ *   TradeBatchDelegate receive market data in arrays.  The events are
+ *   collected (see Batcher) and delegated when a batch is full, when its
+ *   oldest event has waited for the batch delay, or when the EventPump has
+ *   delivered a whole burst; see setBatchPolicy().  Symbol scopes do not
+ *   apply to batches, and a batch may be delegated on the inbound thread,
+ *   the pump thread or the batch timer thread.
+ * 
+ * Circuit breaking:
+ * 
+ *   After enableCircuitBreaker() is called, a delegate that exceeds the
+ *   latency budget or throws too many times in a row is quarantined: its
+ *   events are offloaded to a background thread, or suspended, until a
+ *   cool-down has passed (see CircuitBreaker and QuarantinePolicy).  A
+ *   single misbehaving delegate then cannot hold up the inbound thread.
  * 
  * @author Jake Brukhman
  *
@@ -35,14 +120,52 @@ public final class Delegator {
 		OtherDelegate.class,
 		CallbackDelegate.class,
 		StartDelegate.class,
-		StopDelegate.class
+		StopDelegate.class,
+		AskBatchDelegate.class,
+		BidBatchDelegate.class,
+		TradeBatchDelegate.class
 	};
 	public static final Collection<Class<?>> EVENTS_COLLECTION =
 		Arrays.asList(EVENTS_ARRAY);
 	
 	/* members */
-	private Table<Class<?>,EventDelegate> delegates;
-	private DelegatorStrategy parent;
+	private final Map<Class<?>,Dispatcher<?>> dispatchers;
+	private final ConcurrentMap<Class<?>,Dispatcher<?>[]> dispatcherTables;	// per delegate class
+	private final Map<Object,Subscriber> subscribers;
+	private final DelegatorStrategy parent;
+	
+	/* asynchronous delegation settings (ringCapacity 0 = synchronous) */
+	private int ringCapacity;
+	private WaitStrategy waitStrategy;
+	private OverflowPolicy overflowPolicy;
+	
+	/* queued delivery (pump is null when events are delegated directly) */
+	private volatile EventPump pump;
+	private boolean prioritizing;
+	private boolean conflating;
+	
+	/* batch delegation */
+	public static final int DEFAULT_BATCH_SIZE = 256;
+	public static final long DEFAULT_BATCH_DELAY = 5;
+	private volatile Map<Class<?>,Batcher> batchers;		// keyed by the single-event interface
+	private int batchSize = DEFAULT_BATCH_SIZE;
+	private long batchDelayMillis = DEFAULT_BATCH_DELAY;
+	private ScheduledExecutorService batchTimer;
+	
+	/* circuit breaking (quarantinePolicy is null when disabled) */
+	private static final int QUARANTINE_CAPACITY = 65536;
+	private QuarantinePolicy quarantinePolicy;
+	private long latencyBudgetNanos;
+	private int maxViolations;
+	private long coolDownMillis;
+	
+	/* instrumentation */
+	private volatile boolean instrumented;
+	private ScheduledExecutorService statisticsLogger;
+	
+	/* logging */
+	private final static Logger logger = 
+		Logger.getLogger(Delegator.class);
 	
 	/**
 	 * Create a new Delegator which can relay requests back to a 
@@ -51,28 +174,167 @@ public final class Delegator {
 	 * @param sender
 	 */
 	public Delegator(DelegatorStrategy sender) {
-		delegates = new Table<Class<?>,EventDelegate>();
+		/* the map itself never changes after construction */
+		Map<Class<?>,Dispatcher<?>> map = new HashMap<Class<?>,Dispatcher<?>>();
+		for ( Class<?> interf : EVENTS_ARRAY ) {
+			map.put(interf, Dispatcher.forInterface(interf));
+		}
+		dispatchers = Collections.unmodifiableMap(map);
+		dispatcherTables = new ConcurrentHashMap<Class<?>,Dispatcher<?>[]>();
+		subscribers = new HashMap<Object,Subscriber>();
 		this.parent = sender;
+		batchers = createBatchers();
 	}
 
 	/**
-	 * Add a delegate.
+	 * Add a delegate.  Adding a delegate that is already registered
+	 * has no effect.
+	 * 
 	 * @param delegate
 	 */
 	public void addDelegate( EventDelegate delegate ) {
-		for ( Class<?> interf : getInterfaces(delegate) ) {
-			delegates.add(interf, delegate);
+		register(delegate, null);
+	}
+	
+	/**
+	 * Add a delegate that receives market data (asks, bids and trades)
+	 * only for the given symbols.  Adding a delegate that is already
+	 * registered has no effect.
+	 * 
+	 * @param delegate
+	 * @param symbols
+	 */
+	public void addDelegate( EventDelegate delegate, String... symbols ) {
+		Set<String> set = new LinkedHashSet<String>(Arrays.asList(symbols));
+		register(delegate, Collections.unmodifiableSet(set));
+	}
+	
+	private synchronized void register( EventDelegate delegate, Set<String> symbols ) {
+		if ( subscribers.containsKey(delegate) ) {
+			logger.warn(">>> Delegate " + delegate + " is already registered.");
+			return;
+		}
+		Subscriber subscriber = new Subscriber(delegate, symbols);
+		if ( ringCapacity > 0 ) {
+			replaceRing(subscriber, createRing(subscriber));
+		}
+		if ( quarantinePolicy != null ) {
+			installBreaker(subscriber);
+		}
+		subscribers.put(delegate, subscriber);
+		for ( Dispatcher<?> dispatcher : getDispatchers(delegate) ) {
+			dispatcher.add(subscriber);
+		}
+		if ( batchTimer == null && isBatchDelegate(delegate) ) {
+			startBatchTimer();
 		}
 	}
 	
 	/**
-	 * Remove a delegate.
+	 * Remove a delegate.  If the delegate has a ring buffer, the events
+	 * already in it are still delivered.
+	 * 
 	 * @param delegate
 	 */
 	public void removeDelegate(EventDelegate delegate) {
-		for ( Class<?> interf : getInterfaces(delegate) ) {
-			delegates.remove(interf, delegate);
+		EventRing retired;
+		synchronized(this) {
+			Subscriber subscriber = subscribers.remove(delegate);
+			if ( subscriber == null ) {
+				return;
+			}
+			for ( Dispatcher<?> dispatcher : getDispatchers(delegate) ) {
+				dispatcher.remove(subscriber);
+			}
+			retired = replaceRing(subscriber, null);
+		}
+		/* outside the lock: the consumer may be calling into the delegate */
+		if ( retired != null ) {
+			retired.awaitTermination();
+		}
+	}
+	
+	/**
+	 * Switch to asynchronous delegation.  Each current and future delegate
+	 * gets its own ring buffer with the given capacity (rounded up to a
+	 * power of two) and a consumer thread that waits according to
+	 * waitStrategy.  When a ring is full, overflowPolicy decides whether the
+	 * inbound thread blocks or an event is dropped.
+	 * 
+	 * Calling this method again replaces the rings of all delegates; the
+	 * events in the old rings are still delivered, before any event of
+	 * the new ones, and this method returns once they have been.
+	 * 
+	 * @param capacity
+	 * @param waitStrategy
+	 * @param overflowPolicy
+	 */
+	public void enableAsyncDelegation( int capacity, 
+			WaitStrategy waitStrategy, OverflowPolicy overflowPolicy ) {
+		if ( capacity < 1 ) {
+			throw new IllegalArgumentException(">>> Ring capacity must be positive.");
+		}
+		List<EventRing> retired = new ArrayList<EventRing>();
+		synchronized(this) {
+			this.ringCapacity = capacity;
+			this.waitStrategy = waitStrategy;
+			this.overflowPolicy = overflowPolicy;
+			for ( Subscriber subscriber : subscribers.values() ) {
+				EventRing ring = replaceRing(subscriber, createRing(subscriber));
+				if ( ring != null ) {
+					retired.add(ring);
+				}
+			}
+		}
+		awaitRings(retired);
+		logger.info(">>> Asynchronous delegation enabled (capacity " + capacity + 
+				", " + waitStrategy + ", " + overflowPolicy + ").");
+	}
+	
+	/**
+	 * Switch back to synchronous delegation.  The consumer threads deliver
+	 * the events remaining in their rings and then exit; events that
+	 * arrive meanwhile wait for them, and this method returns once they
+	 * have exited.
+	 */
+	public void disableAsyncDelegation() {
+		List<EventRing> retired = new ArrayList<EventRing>();
+		synchronized(this) {
+			if ( ringCapacity == 0 ) return;
+			ringCapacity = 0;
+			for ( Subscriber subscriber : subscribers.values() ) {
+				EventRing ring = replaceRing(subscriber, null);
+				if ( ring != null ) {
+					retired.add(ring);
+				}
+			}
+		}
+		awaitRings(retired);
+		logger.info(">>> Asynchronous delegation disabled.");
+	}
+	
+	/**
+	 * Returns true if and only if asynchronous delegation is enabled.
+	 * 
+	 * @return
+	 */
+	public synchronized boolean isAsyncDelegationEnabled() {
+		return ringCapacity > 0;
+	}
+	
+	/**
+	 * Returns the number of events dropped from the ring buffer of a delegate
+	 * because it was full, or 0 if the delegate has no ring buffer.
+	 * 
+	 * @param delegate
+	 * @return
+	 */
+	public synchronized long getDroppedEvents( EventDelegate delegate ) {
+		Subscriber subscriber = subscribers.get(delegate);
+		if ( subscriber == null || subscriber.getRing() == null ) {
+			return 0;
 		}
+		return subscriber.getRing().getDroppedCount();
 	}
 
 	/**
@@ -83,36 +345,507 @@ public final class Delegator {
 	 * @param message
 	 */
 	public void delegate(Class<?> key, Object message) {
-		if ( delegates.containsKey(key) ) {
-			List<EventDelegate> list = delegates.get(key);
-			for ( EventDelegate delegate : list ) {
-				Method m = key.getMethods()[0];
-				try {
-					int length = m.getParameterTypes().length;
-					if ( length == 2 ) {
-						m.invoke(delegate,parent,message);
-					} else if ( length == 1 ) {
-						m.invoke(delegate,parent);
-					} else throw new RuntimeException("Delegate wrong number of parameters: " + m.toString());
-				} catch (Exception e) {
-					e.printStackTrace();
+		EventPump current = pump;
+		if ( current != null && current.publish(key, message) ) {
+			return;
+		}
+		dispatch(key, message);
+	}
+	
+	/**
+	 * Relay a message to the delegates of an interface right away.
+	 * 
+	 * @param key
+	 * @param message
+	 */
+	void dispatch(Class<?> key, Object message) {
+		Dispatcher<?> dispatcher = dispatchers.get(key);
+		if ( dispatcher != null ) {
+			dispatcher.dispatch(parent, message);
+		}
+		Batcher batcher = batchers.get(key);
+		if ( batcher != null && !dispatchers.get(batcher.getKey()).isEmpty() ) {
+			batcher.add(message);
+		}
+	}
+	
+	/**
+	 * Set how market data is batched for batch delegates: a batch is
+	 * delegated once it holds size events, or once its oldest event has
+	 * waited delayMillis milliseconds.  Pending events are delegated at once,
+	 * and events that arrive meanwhile are batched under the new policy.
+	 * 
+	 * @param size
+	 * @param delayMillis
+	 */
+	public synchronized void setBatchPolicy( int size, long delayMillis ) {
+		if ( size < 1 || delayMillis < 1 ) {
+			throw new IllegalArgumentException(">>> Batch size and delay must be positive.");
+		}
+		this.batchSize = size;
+		this.batchDelayMillis = delayMillis;
+		Map<Class<?>,Batcher> retired = batchers;
+		batchers = createBatchers();
+		/* inbound threads may still add to the old batchers */
+		for ( Map.Entry<Class<?>,Batcher> entry : retired.entrySet() ) {
+			entry.getValue().retire(batchers.get(entry.getKey()));
+		}
+		if ( batchTimer != null ) {
+			stopBatchTimer();
+			startBatchTimer();
+		}
+	}
+	
+	/**
+	 * Delegate all pending batches now, on the calling thread.
+	 */
+	public void flushBatches() {
+		for ( Batcher batcher : batchers.values() ) {
+			batcher.flush();
+		}
+	}
+	
+	/**
+	 * Queue all events and delegate them on a separate thread by lane
+	 * priority, so that order events overtake any market data backlog.
+	 */
+	public void enablePriorityDispatch() {
+		configurePump(true, conflating);
+	}
+	
+	/**
+	 * Stop prioritizing events.  If conflation is still enabled, events
+	 * remain queued (conflation implies priority dispatch).
+	 */
+	public void disablePriorityDispatch() {
+		configurePump(false, conflating);
+	}
+	
+	/**
+	 * Start conflating market data: only the newest ask, bid and trade
+	 * per symbol is delegated.  This queues all events as with
+	 * enablePriorityDispatch().
+	 */
+	public void enableConflation() {
+		configurePump(prioritizing, true);
+	}
+	
+	/**
+	 * Stop conflating market data.  Values that are still pending are
+	 * delegated before this method returns.
+	 */
+	public void disableConflation() {
+		configurePump(prioritizing, false);
+	}
+	
+	/**
+	 * Returns true if and only if market data is being conflated.
+	 * 
+	 * @return
+	 */
+	public boolean isConflationEnabled() {
+		EventPump current = pump;
+		return current != null && current.isConflating();
+	}
+	
+	/**
+	 * Returns true if and only if events are queued and delegated by lane
+	 * priority.
+	 * 
+	 * @return
+	 */
+	public boolean isPriorityDispatchEnabled() {
+		return pump != null;
+	}
+	
+	/**
+	 * Returns the number of updates that were merged into a conflated
+	 * market data event, i.e. how many older values of the same symbol and
+	 * type were skipped in its favour.  Only meaningful while the event is
+	 * the most recently delegated one of its symbol and type; otherwise,
+	 * or if conflation is off, 0 is returned.
+	 * 
+	 * @param event
+	 * @return
+	 */
+	public int getMergedCount( SymbolExchangeEvent event ) {
+		EventPump current = pump;
+		if ( current == null || !current.isConflating() ) return 0;
+		return current.getMergedCount(event);
+	}
+	
+	/**
+	 * Drop what conflation keeps for a symbol (its newest values and merge
+	 * counts), once its market data is no longer requested.  A value that
+	 * is still pending is delegated first.
+	 * 
+	 * @param symbol
+	 */
+	public void forgetSymbol( String symbol ) {
+		EventPump current = pump;
+		if ( current != null && current.isConflating() ) {
+			current.forget(symbol);
+		}
+	}
+	
+	/**
+	 * Returns how many events each lane has delivered and how long they
+	 * waited, or an empty array if events are delegated directly.
+	 * 
+	 * @return
+	 */
+	public LaneStatistics[] getLaneStatistics() {
+		EventPump current = pump;
+		if ( current == null ) return new LaneStatistics[0];
+		return current.getStatistics();
+	}
+	
+	/**
+	 * Give every current and future delegate a circuit breaker.  An
+	 * invocation that takes longer than latencyBudgetNanos, or throws, is a
+	 * violation; after maxViolations violations in a row the delegate is
+	 * quarantined according to policy for coolDownMillis milliseconds.
+	 * 
+	 * The offloaded events of each quarantined delegate are delivered, in
+	 * order, by a background thread of its own.  If more than
+	 * QUARANTINE_CAPACITY are waiting, further events are skipped.
+	 * 
+	 * Calling this method again replaces the breakers of all delegates,
+	 * once the events offloaded by the old breakers have been delivered.
+	 * 
+	 * @param latencyBudgetNanos
+	 * @param maxViolations
+	 * @param coolDownMillis
+	 * @param policy
+	 */
+	public void enableCircuitBreaker( long latencyBudgetNanos, 
+			int maxViolations, long coolDownMillis, QuarantinePolicy policy ) {
+		if ( maxViolations < 1 ) {
+			throw new IllegalArgumentException(">>> The number of violations must be positive.");
+		}
+		releaseBreakers();
+		synchronized(this) {
+			this.latencyBudgetNanos = latencyBudgetNanos;
+			this.maxViolations = maxViolations;
+			this.coolDownMillis = coolDownMillis;
+			this.quarantinePolicy = policy;
+			for ( Subscriber subscriber : subscribers.values() ) {
+				installBreaker(subscriber);
+			}
+		}
+		logger.info(">>> Circuit breaker enabled (budget " + latencyBudgetNanos + "ns, " + 
+				maxViolations + " violations, cool-down " + coolDownMillis + "ms, " + policy + ").");
+	}
+	
+	/**
+	 * Remove the circuit breakers.  Quarantined delegates are restored at
+	 * once, after the events that were already offloaded have been
+	 * delivered; this method returns once they have been (unless called
+	 * while one is being delivered).
+	 */
+	public void disableCircuitBreaker() {
+		synchronized(this) {
+			if ( quarantinePolicy == null ) return;
+			quarantinePolicy = null;
+		}
+		releaseBreakers();
+		logger.info(">>> Circuit breaker disabled.");
+	}
+	
+	/**
+	 * Returns true if and only if the delegate is currently quarantined
+	 * by its circuit breaker.
+	 * 
+	 * @param delegate
+	 * @return
+	 */
+	public synchronized boolean isQuarantined( EventDelegate delegate ) {
+		Subscriber subscriber = subscribers.get(delegate);
+		if ( subscriber == null || subscriber.getBreaker() == null ) {
+			return false;
+		}
+		return subscriber.getBreaker().isOpen();
+	}
+	
+	/**
+	 * Returns the number of events that were not delivered to a delegate
+	 * because it was quarantined, or 0 if it has no circuit breaker.
+	 * 
+	 * @param delegate
+	 * @return
+	 */
+	public synchronized long getSkippedEvents( EventDelegate delegate ) {
+		Subscriber subscriber = subscribers.get(delegate);
+		if ( subscriber == null || subscriber.getBreaker() == null ) {
+			return 0;
+		}
+		return subscriber.getBreaker().getSkippedCount();
+	}
+	
+	/**
+	 * Turn the per-delegate dispatch statistics on or off.  Statistics
+	 * collected so far are kept.
+	 * 
+	 * @param enabled
+	 */
+	public void setInstrumentationEnabled( boolean enabled ) {
+		instrumented = enabled;
+		for ( Dispatcher<?> dispatcher : dispatchers.values() ) {
+			dispatcher.setInstrumented(enabled);
+		}
+	}
+	
+	/**
+	 * Returns true if and only if dispatch statistics are being collected.
+	 * 
+	 * @return
+	 */
+	public boolean isInstrumentationEnabled() {
+		return instrumented;
+	}
+	
+	/**
+	 * Returns a snapshot of the dispatch statistics of every registered
+	 * delegate, one entry per delegate interface it implements.
+	 * 
+	 * @return
+	 */
+	public synchronized List<DelegateStatistics> getDelegateStatistics() {
+		List<DelegateStatistics> list = new ArrayList<DelegateStatistics>();
+		for ( Subscriber subscriber : subscribers.values() ) {
+			for ( int i = 0; i < EVENTS_ARRAY.length; i++ ) {
+				InvocationStats stats = subscriber.getStats(i);
+				if ( stats != null ) {
+					list.add(stats.snapshot(subscriber.getDelegate(), EVENTS_ARRAY[i]));
+				}
+			}
+		}
+		return list;
+	}
+	
+	/**
+	 * Write the delegate and lane statistics to the log.
+	 */
+	public void logStatistics() {
+		for ( DelegateStatistics stats : getDelegateStatistics() ) {
+			logger.info(">>> " + stats);
+		}
+		for ( LaneStatistics stats : getLaneStatistics() ) {
+			logger.info(">>> " + stats);
+		}
+	}
+	
+	/**
+	 * Write the statistics to the log every periodMillis milliseconds, on a
+	 * background thread.  Replaces any previous schedule.
+	 * 
+	 * @param periodMillis
+	 */
+	public synchronized void startStatisticsLogging( long periodMillis ) {
+		stopStatisticsLogging();
+		statisticsLogger = Executors.newSingleThreadScheduledExecutor(
+				new DaemonThreadFactory("DelegatorStatistics"));
+		statisticsLogger.scheduleAtFixedRate(new Runnable() {
+			@Override
+			public void run() {
+				logStatistics();
+			}
+		}, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+	}
+	
+	/**
+	 * Stop writing the statistics to the log periodically.
+	 */
+	public synchronized void stopStatisticsLogging() {
+		if ( statisticsLogger != null ) {
+			statisticsLogger.shutdown();
+			statisticsLogger = null;
+		}
+	}
+	
+	/**
+	 * Stop queued and asynchronous delivery.  Everything that is still
+	 * queued is delegated before this method returns (for the ring
+	 * buffers, by their consumer threads).
+	 */
+	public void shutdown() {
+		configurePump(false, false);
+		synchronized(this) {
+			stopBatchTimer();
+		}
+		flushBatches();
+		disableAsyncDelegation();
+		disableCircuitBreaker();
+		stopStatisticsLogging();
+	}
+	
+	/**
+	 * Replace the event pump according to the given settings.  The old pump
+	 * is drained before the new one starts, so events stay in order; events
+	 * that arrive in between are delegated directly.
+	 * 
+	 * @param prioritize
+	 * @param conflate
+	 */
+	private void configurePump( boolean prioritize, boolean conflate ) {
+		EventPump old;
+		synchronized(this) {
+			if ( prioritize == prioritizing && conflate == conflating ) return;
+			prioritizing = prioritize;
+			conflating = conflate;
+			old = pump;
+			pump = null;
+		}
+		/* outside the lock: the pump thread may be calling into delegates */
+		if ( old != null ) {
+			old.stop();
+		}
+		synchronized(this) {
+			if ( pump == null && (prioritizing || conflating) ) {
+				EventPump created = new EventPump(this, conflating);
+				created.start();
+				pump = created;
+			}
+			logger.info(">>> Queued delivery: priority=" + prioritizing + 
+					", conflation=" + conflating + ".");
+		}
+	}
+	
+	private Map<Class<?>,Batcher> createBatchers() {
+		Map<Class<?>,Batcher> map = new HashMap<Class<?>,Batcher>();
+		map.put(AskDelegate.class, new Batcher(this, AskBatchDelegate.class, 
+				AskEvent.class, batchSize, batchDelayMillis));
+		map.put(BidDelegate.class, new Batcher(this, BidBatchDelegate.class, 
+				BidEvent.class, batchSize, batchDelayMillis));
+		map.put(TradeDelegate.class, new Batcher(this, TradeBatchDelegate.class, 
+				TradeEvent.class, batchSize, batchDelayMillis));
+		return Collections.unmodifiableMap(map);
+	}
+	
+	private boolean isBatchDelegate( EventDelegate delegate ) {
+		return delegate instanceof AskBatchDelegate || delegate instanceof BidBatchDelegate ||
+			delegate instanceof TradeBatchDelegate;
+	}
+	
+	private void startBatchTimer() {
+		batchTimer = Executors.newSingleThreadScheduledExecutor(
+				new DaemonThreadFactory("DelegatorBatch"));
+		batchTimer.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				for ( Batcher batcher : batchers.values() ) {
+					batcher.flushIfDue();
 				}
 			}
+		}, batchDelayMillis, batchDelayMillis, TimeUnit.MILLISECONDS);
+	}
+	
+	private void stopBatchTimer() {
+		if ( batchTimer != null ) {
+			batchTimer.shutdown();
+			batchTimer = null;
 		}
 	}
 	
+	private void installBreaker( Subscriber subscriber ) {
+		subscriber.setBreaker(new CircuitBreaker(subscriber.getDelegate(), latencyBudgetNanos,
+				maxViolations, coolDownMillis, quarantinePolicy, QUARANTINE_CAPACITY));
+	}
+	
+	/**
+	 * End the quarantine of every delegate, wait for the events offloaded
+	 * so far to be delivered, and remove the breakers.  Until the backlog
+	 * of a delegate has been delivered, its breaker stays open, so that its
+	 * later events are still offloaded behind the backlog, in order.
+	 */
+	private void releaseBreakers() {
+		List<CircuitBreaker> released = new ArrayList<CircuitBreaker>();
+		synchronized(this) {
+			for ( Subscriber subscriber : subscribers.values() ) {
+				CircuitBreaker breaker = subscriber.getBreaker();
+				if ( breaker != null ) {
+					breaker.release();
+					released.add(breaker);
+				}
+			}
+		}
+		for ( CircuitBreaker breaker : released ) {
+			breaker.awaitDrained();
+		}
+		synchronized(this) {
+			for ( Subscriber subscriber : subscribers.values() ) {
+				if ( released.contains(subscriber.getBreaker()) ) {
+					subscriber.setBreaker(null);
+				}
+			}
+		}
+		/* events offloaded just before the breakers were removed */
+		for ( CircuitBreaker breaker : released ) {
+			breaker.awaitDrained();
+		}
+	}
+	
+	private EventRing createRing( Subscriber subscriber ) {
+		return new EventRing(subscriber, parent, ringCapacity, 
+				waitStrategy, overflowPolicy);
+	}
+	
 	/**
-	 * Utility method to extract only the correct implemented interfaces
-	 * from a given EventDelegate object.
+	 * Give a subscriber a new ring (or null for synchronous delivery).  If
+	 * it has a ring, the old ring is retired and returned: its consumer
+	 * drains it before handing over to the new one (see EventRing).
+	 * 
+	 * @param subscriber
+	 * @param next
+	 * @return
+	 */
+	private EventRing replaceRing( Subscriber subscriber, EventRing next ) {
+		EventRing ring = subscriber.getRing();
+		if ( ring == null ) {
+			subscriber.setRing(next);
+			if ( next != null ) {
+				next.start();
+			}
+			return null;
+		}
+		ring.retire(next);
+		return ring;
+	}
+	
+	private static void awaitRings( List<EventRing> rings ) {
+		for ( EventRing ring : rings ) {
+			ring.awaitTermination();
+		}
+	}
+	
+	/**
+	 * Utility method to obtain the dispatchers of all the event interfaces
+	 * a delegate implements, including those declared by its superclasses
+	 * and those inherited through other interfaces.
+	 * 
+	 * The result is computed once per delegate class and cached, so that
+	 * adding and removing many delegates of the same class is cheap.
 	 * 
 	 * @param delegate
 	 * @return
 	 */
-	private List<Class<?>> getInterfaces( EventDelegate delegate ) {	
-		List<Class<?>> interfaces = 
-			Arrays.asList(delegate.getClass().getInterfaces());
-		interfaces.retainAll(EVENTS_COLLECTION);
-		return interfaces;
+	private Dispatcher<?>[] getDispatchers( EventDelegate delegate ) {
+		Class<?> type = delegate.getClass();
+		Dispatcher<?>[] table = dispatcherTables.get(type);
+		if ( table == null ) {
+			List<Dispatcher<?>> list = new ArrayList<Dispatcher<?>>();
+			for ( Class<?> interf : EVENTS_ARRAY ) {
+				if ( interf.isAssignableFrom(type) ) {
+					list.add(dispatchers.get(interf));
+				}
+			}
+			table = list.toArray(new Dispatcher<?>[list.size()]);
+			Dispatcher<?>[] raced = dispatcherTables.putIfAbsent(type, table);
+			if ( raced != null ) {
+				table = raced;
+			}
+		}
+		return table;
 	}
 	
 }
@@ -0,0 +1,505 @@
+package org.kohera.metctools.delegate;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+import org.kohera.metctools.DelegatorStrategy;
+import org.marketcetera.client.brokers.BrokerStatus;
+import org.marketcetera.event.AskEvent;
+import org.marketcetera.event.BidEvent;
+import org.marketcetera.event.SymbolExchangeEvent;
+import org.marketcetera.event.TradeEvent;
+import org.marketcetera.trade.ExecutionReport;
+import org.marketcetera.trade.OrderCancelReject;
+
+/**
+ * A typed dispatcher for one of the delegate interfaces in
+ * Delegator.EVENTS_ARRAY.
+ *
+ * Each dispatcher knows how to call the event method of its interface
+ * directly, so that the Delegator never has to look up or invoke methods
+ * reflectively when it relays an event.  A dispatcher also holds the
+ * subscribers (delegates) that have been registered for its interface.
+ *
+ * The subscribers are kept in an immutable array snapshot which is
+ * replaced (copy-on-write) whenever a delegate is added or removed.
+ * Registration may therefore happen on any thread while events are being
+ * dispatched: dispatch() reads the current snapshot without locking and
+ * never sees a partially updated list.
+ *
+ * A subscriber that has an EventRing receives its events asynchronously:
+ * dispatch() only publishes into the ring, and the ring's consumer thread
+ * later calls deliver().
+ *
+ * Dispatchers of market data interfaces (asks, bids and trades) are keyed
+ * by symbol.  Subscribers that were registered for particular symbols
+ * are kept in a symbol index, and dispatch() only looks up the subscribers
+ * for the symbol of the event instead of offering the event to all of
+ * them.  Subscribers without symbols receive every event.
+ *
+ * While instrumentation is enabled, deliver() times every invocation and
+ * records it, along with any exception, in the subscriber's statistics
+ * for this interface.  When it is disabled, the only cost is reading a
+ * volatile flag.
+ *
+ * Subscribers with a CircuitBreaker are timed as well, and each outcome is
+ * reported to the breaker.  While a breaker is open, dispatch() offloads
+ * or skips the events of its subscriber according to the breaker's policy.
+ *
+ * Dispatchers are obtained through forInterface().
+ *
+ * @param <D>
+ */
+abstract class Dispatcher<D> {
+
+	/* fields */
+	private final Class<D> 				type;
+	private final int					index;			// position in Delegator.EVENTS_ARRAY
+	private final boolean				keyedBySymbol;
+	private volatile boolean			instrumented;
+	private volatile Subscriber[]		subscribers;	// receive every event
+	private volatile Map<String,Subscriber[]> symbolIndex;	// receive events for their symbols
+
+	/* shared empty snapshot */
+	private static final Subscriber[] NONE = new Subscriber[0];
+
+	/* delegate exceptions are logged at most once per interval */
+	private static final long LOG_INTERVAL_NANOS = 1000000000L;
+	private final AtomicLong			nextLog = new AtomicLong(System.nanoTime());
+	private final AtomicLong			unlogged = new AtomicLong();
+
+	/* logging */
+	private final static Logger logger =
+		Logger.getLogger(Dispatcher.class);
+
+	/**
+	 * Create a new Dispatcher for the given delegate interface.
+	 *
+	 * @param type
+	 * @param keyedBySymbol
+	 */
+	protected Dispatcher(Class<D> type, boolean keyedBySymbol) {
+		this.type = type;
+		this.index = Arrays.asList(Delegator.EVENTS_ARRAY).indexOf(type);
+		this.keyedBySymbol = keyedBySymbol;
+		this.subscribers = NONE;
+		this.symbolIndex = Collections.emptyMap();
+	}
+
+	/**
+	 * Create a new Dispatcher for the given delegate interface, which
+	 * delivers every event to every subscriber.
+	 *
+	 * @param type
+	 */
+	protected Dispatcher(Class<D> type) {
+		this(type, false);
+	}
+
+	/**
+	 * Returns the delegate interface handled by this dispatcher.
+	 *
+	 * @return
+	 */
+	public final Class<D> getType() {
+		return type;
+	}
+
+	/**
+	 * Returns the position of the delegate interface in
+	 * Delegator.EVENTS_ARRAY.
+	 *
+	 * @return
+	 */
+	public final int getIndex() {
+		return index;
+	}
+
+	/**
+	 * Turn the timing and counting of invocations on or off.
+	 *
+	 * @param instrumented
+	 */
+	public final void setInstrumented(boolean instrumented) {
+		this.instrumented = instrumented;
+	}
+
+	/**
+	 * Add a subscriber.  Its delegate must implement the interface
+	 * returned by getType().
+	 *
+	 * If the dispatcher is keyed by symbol and the subscriber has symbols,
+	 * the subscriber is indexed under each of them; otherwise it receives
+	 * every event.
+	 *
+	 * @throws ClassCastException
+	 * @param subscriber
+	 */
+	public final synchronized void add(Subscriber subscriber) {
+		type.cast(subscriber.getDelegate());
+		subscriber.initStats(index);
+		if ( keyedBySymbol && subscriber.getSymbols() != null ) {
+			Map<String,Subscriber[]> index = new HashMap<String,Subscriber[]>(symbolIndex);
+			for ( String symbol : subscriber.getSymbols() ) {
+				index.put(symbol, append(index.get(symbol), subscriber));
+			}
+			symbolIndex = index;
+		} else {
+			subscribers = append(subscribers, subscriber);
+		}
+	}
+
+	/**
+	 * Remove a subscriber, if it is registered.
+	 *
+	 * @param subscriber
+	 */
+	public final synchronized void remove(Subscriber subscriber) {
+		if ( keyedBySymbol && subscriber.getSymbols() != null ) {
+			Map<String,Subscriber[]> index = new HashMap<String,Subscriber[]>(symbolIndex);
+			for ( String symbol : subscriber.getSymbols() ) {
+				Subscriber[] remaining = without(index.get(symbol), subscriber);
+				if ( remaining.length == 0 ) {
+					index.remove(symbol);
+				} else {
+					index.put(symbol, remaining);
+				}
+			}
+			symbolIndex = index;
+		} else {
+			subscribers = without(subscribers, subscriber);
+		}
+	}
+
+	/**
+	 * Returns true if and only if no delegates are registered.
+	 *
+	 * @return
+	 */
+	public final boolean isEmpty() {
+		return subscribers.length == 0 && symbolIndex.isEmpty();
+	}
+
+	/**
+	 * Relay a message to every registered delegate that is interested
+	 * in it.
+	 *
+	 * @param sender
+	 * @param message
+	 */
+	public final void dispatch(DelegatorStrategy sender, Object message) {
+		/* read the snapshots once; they are never modified in place */
+		dispatch(subscribers, sender, message);
+		
+		Map<String,Subscriber[]> index = symbolIndex;
+		if ( !index.isEmpty() ) {
+			Subscriber[] scoped = index.get(symbolOf(message));
+			if ( scoped != null ) {
+				dispatch(scoped, sender, message);
+			}
+		}
+	}
+
+	private void dispatch(Subscriber[] snapshot, DelegatorStrategy sender, Object message) {
+		for ( int i = 0; i < snapshot.length; i++ ) {
+			Subscriber subscriber = snapshot[i];
+			CircuitBreaker breaker = subscriber.getBreaker();
+			if ( breaker != null && breaker.isOpen() && divert(breaker, subscriber, sender, message) ) {
+				continue;
+			}
+			EventRing ring = subscriber.getRing();
+			while ( ring != null ) {
+				if ( ring.publish(this, detach(message)) || !ring.isRetired() ) break;
+				/* the ring was replaced meanwhile; its backlog has been delivered */
+				ring = subscriber.getRing();
+			}
+			if ( ring == null ) {
+				deliver(subscriber, sender, message);
+			}
+		}
+	}
+
+	/**
+	 * Route an event of a quarantined subscriber away from the current
+	 * thread.  Returns false if the event should be delivered as usual.
+	 *
+	 * @param breaker
+	 * @param subscriber
+	 * @param sender
+	 * @param message
+	 * @return
+	 */
+	private boolean divert(CircuitBreaker breaker, final Subscriber subscriber, 
+			final DelegatorStrategy sender, final Object message) {
+		if ( breaker.getPolicy() == QuarantinePolicy.SUSPEND ) {
+			breaker.skip();
+			return true;
+		}
+		if ( subscriber.getRing() != null ) {
+			/* already off the inbound thread */
+			return false;
+		}
+		final Object detached = detach(message);
+		breaker.offload(new Runnable() {
+			@Override
+			public void run() {
+				deliver(subscriber, sender, detached);
+			}
+		});
+		return true;
+	}
+	
+	/**
+	 * Returns the symbol of a market data event.  Only called by
+	 * dispatchers that are keyed by symbol.
+	 *
+	 * @param message
+	 * @return
+	 */
+	protected String symbolOf(Object message) {
+		return ((SymbolExchangeEvent)message).getSymbol().toString();
+	}
+
+	/**
+	 * Returns a version of the message that remains valid after dispatch()
+	 * has returned, for delivery on another thread.  Events are immutable,
+	 * so by default this is the message itself.
+	 *
+	 * @param message
+	 * @return
+	 */
+	protected Object detach(Object message) {
+		return message;
+	}
+	
+	/**
+	 * Call the event method of a single subscriber's delegate on the
+	 * current thread.
+	 *
+	 * @param subscriber
+	 * @param sender
+	 * @param message
+	 */
+	final void deliver(Subscriber subscriber, DelegatorStrategy sender, Object message) {
+		CircuitBreaker breaker = subscriber.getBreaker();
+		if ( !instrumented && breaker == null ) {
+			try {
+				invoke(type.cast(subscriber.getDelegate()), sender, message);
+			} catch (Exception e) {
+				logFailure(subscriber, e);
+			}
+			return;
+		}
+		
+		Exception failure = null;
+		long start = System.nanoTime();
+		try {
+			invoke(type.cast(subscriber.getDelegate()), sender, message);
+		} catch (Exception e) {
+			failure = e;
+		}
+		long elapsed = System.nanoTime() - start;
+		
+		if ( instrumented ) {
+			InvocationStats stats = subscriber.getStats(index);
+			if ( failure != null ) {
+				stats.recordException();
+			}
+			stats.recordInvocation(elapsed);
+		}
+		if ( breaker != null ) {
+			/* the breaker logs failures; printing each one would flood the log */
+			breaker.record(elapsed, failure);
+		} else if ( failure != null ) {
+			logFailure(subscriber, failure);
+		}
+	}
+
+	/**
+	 * Log an exception thrown by a delegate.  A delegate that throws on
+	 * every event would flood the log, so at most one exception is logged
+	 * per LOG_INTERVAL_NANOS; the next one logged tells how many were not.
+	 *
+	 * @param subscriber
+	 * @param failure
+	 */
+	private void logFailure(Subscriber subscriber, Exception failure) {
+		long now = System.nanoTime();
+		long next = nextLog.get();
+		if ( now - next < 0 || !nextLog.compareAndSet(next, now + LOG_INTERVAL_NANOS) ) {
+			unlogged.incrementAndGet();
+			return;
+		}
+		long skipped = unlogged.getAndSet(0);
+		logger.error(">>> Delegate " + subscriber.getDelegate() + " threw an exception in " +
+				type.getSimpleName() + (skipped > 0 ? " (" + skipped + " more not logged)" : "") + ".",
+				failure);
+	}
+	
+	/**
+	 * Call the event method of a single delegate.
+	 *
+	 * @param delegate
+	 * @param sender
+	 * @param message
+	 */
+	protected abstract void invoke(D delegate, DelegatorStrategy sender, Object message);
+
+	private static Subscriber[] append(Subscriber[] current, Subscriber subscriber) {
+		if ( current == null ) current = NONE;
+		Subscriber[] next = new Subscriber[current.length + 1];
+		System.arraycopy(current, 0, next, 0, current.length);
+		next[current.length] = subscriber;
+		return next;
+	}
+
+	private static Subscriber[] without(Subscriber[] current, Subscriber subscriber) {
+		if ( current == null ) return NONE;
+		for ( int i = 0; i < current.length; i++ ) {
+			if ( current[i] == subscriber ) {
+				Subscriber[] next = new Subscriber[current.length - 1];
+				System.arraycopy(current, 0, next, 0, i);
+				System.arraycopy(current, i + 1, next, i, current.length - i - 1);
+				return next;
+			}
+		}
+		return current;
+	}
+
+	/**
+	 * Dispatcher of a batch delegate interface.  The EventBatch it
+	 * dispatches is reused afterwards, so it is copied when a delegate
+	 * receives it on another thread.
+	 *
+	 * @param <D>
+	 */
+	private static abstract class BatchDispatcher<D> extends Dispatcher<D> {
+		
+		BatchDispatcher(Class<D> type) {
+			super(type);
+		}
+		
+		@Override
+		protected Object detach(Object message) {
+			return ((EventBatch)message).copy();
+		}
+	}
+	
+	/**
+	 * Create a new Dispatcher for one of the interfaces in
+	 * Delegator.EVENTS_ARRAY.
+	 *
+	 * @throws IllegalArgumentException
+	 * @param type
+	 * @return
+	 */
+	public static Dispatcher<?> forInterface(Class<?> type) {
+		if ( type == AskDelegate.class ) {
+			return new Dispatcher<AskDelegate>(AskDelegate.class, true) {
+				@Override
+				protected void invoke(AskDelegate delegate, DelegatorStrategy sender, Object message) {
+					delegate.onAsk(sender, (AskEvent)message);
+				}
+			};
+		} else if ( type == BidDelegate.class ) {
+			return new Dispatcher<BidDelegate>(BidDelegate.class, true) {
+				@Override
+				protected void invoke(BidDelegate delegate, DelegatorStrategy sender, Object message) {
+					delegate.onBid(sender, (BidEvent)message);
+				}
+			};
+		} else if ( type == TradeDelegate.class ) {
+			return new Dispatcher<TradeDelegate>(TradeDelegate.class, true) {
+				@Override
+				protected void invoke(TradeDelegate delegate, DelegatorStrategy sender, Object message) {
+					delegate.onTrade(sender, (TradeEvent)message);
+				}
+			};
+		} else if ( type == ExecutionReportDelegate.class ) {
+			return new Dispatcher<ExecutionReportDelegate>(ExecutionReportDelegate.class) {
+				@Override
+				protected void invoke(ExecutionReportDelegate delegate, DelegatorStrategy sender, Object message) {
+					delegate.onExecutionReport(sender, (ExecutionReport)message);
+				}
+			};
+		} else if ( type == BrokerStatusDelegate.class ) {
+			return new Dispatcher<BrokerStatusDelegate>(BrokerStatusDelegate.class) {
+				@Override
+				protected void invoke(BrokerStatusDelegate delegate, DelegatorStrategy sender, Object message) {
+					delegate.onBrokerStatus(sender, (BrokerStatus)message);
+				}
+			};
+		} else if ( type == ServerStatusDelegate.class ) {
+			return new Dispatcher<ServerStatusDelegate>(ServerStatusDelegate.class) {
+				@Override
+				protected void invoke(ServerStatusDelegate delegate, DelegatorStrategy sender, Object message) {
+					delegate.onServerStatus(sender, ((Boolean)message).booleanValue());
+				}
+			};
+		} else if ( type == OrderCancelRejectDelegate.class ) {
+			return new Dispatcher<OrderCancelRejectDelegate>(OrderCancelRejectDelegate.class) {
+				@Override
+				protected void invoke(OrderCancelRejectDelegate delegate, DelegatorStrategy sender, Object message) {
+					delegate.onCancelReject(sender, (OrderCancelReject)message);
+				}
+			};
+		} else if ( type == OtherDelegate.class ) {
+			return new Dispatcher<OtherDelegate>(OtherDelegate.class) {
+				@Override
+				protected void invoke(OtherDelegate delegate, DelegatorStrategy sender, Object message) {
+					delegate.onOther(sender, message);
+				}
+			};
+		} else if ( type == CallbackDelegate.class ) {
+			return new Dispatcher<CallbackDelegate>(CallbackDelegate.class) {
+				@Override
+				protected void invoke(CallbackDelegate delegate, DelegatorStrategy sender, Object message) {
+					delegate.onCallback(sender, message);
+				}
+			};
+		} else if ( type == StartDelegate.class ) {
+			return new Dispatcher<StartDelegate>(StartDelegate.class) {
+				@Override
+				protected void invoke(StartDelegate delegate, DelegatorStrategy sender, Object message) {
+					delegate.onStart(sender);
+				}
+			};
+		} else if ( type == StopDelegate.class ) {
+			return new Dispatcher<StopDelegate>(StopDelegate.class) {
+				@Override
+				protected void invoke(StopDelegate delegate, DelegatorStrategy sender, Object message) {
+					delegate.onStop(sender);
+				}
+			};
+		} else if ( type == AskBatchDelegate.class ) {
+			return new BatchDispatcher<AskBatchDelegate>(AskBatchDelegate.class) {
+				@Override
+				protected void invoke(AskBatchDelegate delegate, DelegatorStrategy sender, Object message) {
+					EventBatch batch = (EventBatch)message;
+					delegate.onAsks(sender, (AskEvent[])batch.getEvents(), batch.getCount());
+				}
+			};
+		} else if ( type == BidBatchDelegate.class ) {
+			return new BatchDispatcher<BidBatchDelegate>(BidBatchDelegate.class) {
+				@Override
+				protected void invoke(BidBatchDelegate delegate, DelegatorStrategy sender, Object message) {
+					EventBatch batch = (EventBatch)message;
+					delegate.onBids(sender, (BidEvent[])batch.getEvents(), batch.getCount());
+				}
+			};
+		} else if ( type == TradeBatchDelegate.class ) {
+			return new BatchDispatcher<TradeBatchDelegate>(TradeBatchDelegate.class) {
+				@Override
+				protected void invoke(TradeBatchDelegate delegate, DelegatorStrategy sender, Object message) {
+					EventBatch batch = (EventBatch)message;
+					delegate.onTrades(sender, (TradeEvent[])batch.getEvents(), batch.getCount());
+				}
+			};
+		}
+		throw new IllegalArgumentException(">>> Not a delegate interface: " + type);
+	}
+}
@@ -0,0 +1,82 @@
+package org.kohera.metctools.delegate;
+
+import java.util.Arrays;
+
+/**
+ * A batch of market data events, as handed to the dispatcher of a batch
+ * delegate interface.  The events array has the runtime type of the event
+ * (e.g. TradeEvent[]), so that it can be passed on without copying.
+ * 
+ */
+final class EventBatch {
+
+	/* fields */
+	private final Object[] 	events;
+	private int 			count;
+	
+	/**
+	 * Create a new, empty EventBatch backed by the given array.
+	 * 
+	 * @param events
+	 */
+	EventBatch(Object[] events) {
+		this.events = events;
+	}
+	
+	/**
+	 * Returns the array of events; only the first getCount() are valid.
+	 * 
+	 * @return
+	 */
+	Object[] getEvents() {
+		return events;
+	}
+	
+	/**
+	 * Returns the number of events in the batch.
+	 * 
+	 * @return
+	 */
+	int getCount() {
+		return count;
+	}
+	
+	/**
+	 * Returns true if and only if the batch cannot take another event.
+	 * 
+	 * @return
+	 */
+	boolean isFull() {
+		return count == events.length;
+	}
+	
+	/**
+	 * Append an event.  The batch must not be full.
+	 * 
+	 * @param event
+	 */
+	void add(Object event) {
+		events[count++] = event;
+	}
+	
+	/**
+	 * Empty the batch, releasing the events.
+	 */
+	void clear() {
+		Arrays.fill(events, 0, count, null);
+		count = 0;
+	}
+	
+	/**
+	 * Returns an independent copy of the batch, for delivery on another
+	 * thread after this one has been reused.
+	 * 
+	 * @return
+	 */
+	EventBatch copy() {
+		EventBatch copy = new EventBatch(Arrays.copyOf(events, count));
+		copy.count = count;
+		return copy;
+	}
+	
+}
@@ -0,0 +1,477 @@
+package org.kohera.metctools.delegate;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+import org.marketcetera.event.SymbolExchangeEvent;
+
+/**
+ * Queued, priority-aware delivery of events.
+ *
+ * Events published into the pump are sorted into lanes (see Lane), and a
+ * single pump thread takes them out and hands them to the Delegator.  The
+ * ORDER lane is always emptied first, then the CONTROL lane, and market
+ * data is only delivered while both are empty.  An execution report that
+ * arrives behind a burst of ticks therefore overtakes the tick backlog.
+ *
+ * The MARKET_DATA lane is either a plain FIFO or, if the pump conflates,
+ * a set of per-symbol slots holding only the newest ask, bid and trade
+ * (the number of updates merged into each value is counted).  Under a
+ * burst, the conflated backlog is bounded by the number of symbols.  The
+ * slot of a symbol is dropped again by forget(), once its market data is
+ * no longer requested.
+ *
+ * Each FIFO lane holds at most LANE_CAPACITY events; a publisher that
+ * finds its lane full waits until the pump has taken an event out.
+ * Events are never dropped.  (The pump thread itself, i.e. a delegate
+ * publishing an event, cannot wait for itself; its lane grows instead.)
+ *
+ * Whenever the pump has delivered everything that was queued, it asks the
+ * Delegator to flush its pending event batches, so that batch delegates
+ * see the end of every burst without waiting for the batch delay.
+ *
+ * For each lane, the pump records how many events it delivered and how
+ * long they waited; see getStatistics().
+ *
+ * All queues are guarded by the pump's monitor.  The critical sections
+ * only move references, and delegates are always called outside of it.
+ *
+ */
+final class EventPump implements Runnable {
+
+	private static final int INITIAL_CAPACITY = 64;
+
+	/* events a FIFO lane holds before its publishers wait */
+	static final int LANE_CAPACITY = 1 << 16;
+
+	/* market data kinds of a conflation slot, in delivery order */
+	private static final Class<?>[] KINDS = {
+		TradeDelegate.class,
+		BidDelegate.class,
+		AskDelegate.class
+	};
+
+	private static final Lane[] LANES = Lane.values();
+
+	/**
+	 * Growable circular FIFO of events.
+	 */
+	private static final class Fifo {
+
+		Class<?>[] 	keys = new Class<?>[INITIAL_CAPACITY];
+		Object[] 	messages = new Object[INITIAL_CAPACITY];
+		long[] 		times = new long[INITIAL_CAPACITY];
+		int 		head;
+		int 		size;
+
+		void add(Class<?> key, Object message, long time) {
+			if ( size == keys.length ) {
+				grow();
+			}
+			int index = (head + size) & (keys.length - 1);
+			keys[index] = key;
+			messages[index] = message;
+			times[index] = time;
+			size++;
+		}
+
+		void remove() {
+			keys[head] = null;
+			messages[head] = null;
+			head = (head + 1) & (keys.length - 1);
+			size--;
+		}
+
+		private void grow() {
+			int length = keys.length;
+			Class<?>[] k = new Class<?>[length << 1];
+			Object[] m = new Object[length << 1];
+			long[] t = new long[length << 1];
+			for ( int i = 0; i < size; i++ ) {
+				int index = (head + i) & (length - 1);
+				k[i] = keys[index];
+				m[i] = messages[index];
+				t[i] = times[index];
+			}
+			keys = k;
+			messages = m;
+			times = t;
+			head = 0;
+		}
+	}
+
+	/**
+	 * Pending and last delivered market data of one symbol.
+	 */
+	private static final class Slot {
+
+		final String 	symbol;
+		final Object[] 	pending = new Object[KINDS.length];
+		final int[] 	merged = new int[KINDS.length];
+		long 			since;					// arrival of the oldest pending update
+		boolean 		queued;
+		boolean 		forgotten;				// remove once delivered
+
+		final Object[] 	delivered = new Object[KINDS.length];
+		final int[] 	deliveredMerged = new int[KINDS.length];
+
+		Slot(String symbol) {
+			this.symbol = symbol;
+		}
+	}
+
+	/* fields */
+	private final Delegator 		delegator;
+	private final boolean 			conflate;
+	private final Fifo[] 			fifos;
+	private final Map<String,Slot> 	slots;
+	private Slot[] 					ready;				// circular queue of slots with pending data
+	private int 					readyHead;
+	private int 					readySize;
+
+	private boolean 				running;
+	private boolean 				waiting;
+	private int 					producersWaiting;	// for room in a full lane
+	private boolean 				finished;			// the pump thread has exited
+	private Thread 					pumpThread;
+
+	/* lane statistics, indexed by lane ordinal */
+	private final long[] 			delivered = new long[LANES.length];
+	private final long[] 			totalWait = new long[LANES.length];
+	private final long[] 			maxWait = new long[LANES.length];
+
+	/* what was taken out last (pump thread only, so that delivery does not allocate) */
+	private final Class<?>[] 		takenKeys = new Class<?>[KINDS.length];
+	private final Object[] 			takenMessages = new Object[KINDS.length];
+	private int 					taken;
+	private boolean 				drained;			// nothing was left after the last take
+
+	/* logging */
+	private final static Logger logger =
+		Logger.getLogger(EventPump.class);
+
+	/**
+	 * Create a new EventPump that delivers through the given Delegator.
+	 *
+	 * @param delegator
+	 * @param conflate	whether to conflate market data
+	 */
+	EventPump(Delegator delegator, boolean conflate) {
+		this.delegator = delegator;
+		this.conflate = conflate;
+		this.fifos = new Fifo[LANES.length];
+		for ( int i = 0; i < fifos.length; i++ ) {
+			fifos[i] = new Fifo();
+		}
+		this.slots = new HashMap<String,Slot>();
+		this.ready = new Slot[INITIAL_CAPACITY];
+	}
+
+	/**
+	 * Returns true if and only if market data is conflated.
+	 *
+	 * @return
+	 */
+	boolean isConflating() {
+		return conflate;
+	}
+
+	/**
+	 * Start the pump thread.
+	 */
+	synchronized void start() {
+		if ( running ) return;
+		running = true;
+		pumpThread = new Thread(this, "EventPump");
+		pumpThread.setDaemon(true);
+		pumpThread.start();
+	}
+
+	/**
+	 * Stop accepting events and wait until the pump thread has delivered
+	 * everything that is queued.  If called from the pump thread itself,
+	 * the remaining events are delivered after the current one.
+	 */
+	void stop() {
+		Thread thread;
+		synchronized(this) {
+			running = false;
+			thread = pumpThread;
+			notifyAll();
+		}
+		if ( thread != null && thread != Thread.currentThread() ) {
+			try {
+				thread.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * Queue an event for delivery, waiting while its lane is full.
+	 * Returns false if the pump has been stopped, in which case the caller
+	 * must deliver the event itself; the pump has then delivered what was
+	 * queued (unless the caller is the pump thread).  An interrupt does not
+	 * end the wait; it is restored afterwards.
+	 *
+	 * @param key
+	 * @param message
+	 * @return
+	 */
+	boolean publish(Class<?> key, Object message) {
+		Lane lane = Lane.of(key);
+		if ( conflate && lane == Lane.MARKET_DATA ) {
+			return conflate(key, (SymbolExchangeEvent)message);
+		}
+		boolean interrupted = false;
+		try {
+			synchronized(this) {
+				Fifo fifo = fifos[lane.ordinal()];
+				while ( running && fifo.size >= LANE_CAPACITY && Thread.currentThread() != pumpThread ) {
+					producersWaiting++;
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						interrupted = true;
+					} finally {
+						producersWaiting--;
+					}
+				}
+				if ( !running ) return awaitFinished();
+				fifo.add(key, message, System.nanoTime());
+				if ( waiting ) notify();
+			}
+			return true;
+		} finally {
+			if ( interrupted ) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * Drop the conflation slot of a symbol whose market data is no longer
+	 * requested.  A value that is still pending is delivered first.
+	 *
+	 * @param symbol
+	 */
+	synchronized void forget(String symbol) {
+		Slot slot = slots.get(symbol);
+		if ( slot == null ) return;
+		if ( slot.queued ) {
+			slot.forgotten = true;
+		} else {
+			slots.remove(symbol);
+		}
+	}
+
+	private boolean conflate(Class<?> key, SymbolExchangeEvent event) {
+		String symbol = event.getSymbol().toString();
+		int kind = kindOf(key);
+		synchronized(this) {
+			if ( !running ) return awaitFinished();
+			Slot slot = slots.get(symbol);
+			if ( slot == null ) {
+				slot = new Slot(symbol);
+				slots.put(symbol, slot);
+			}
+			slot.forgotten = false;
+			if ( slot.pending[kind] != null ) {
+				slot.merged[kind]++;
+			}
+			slot.pending[kind] = event;
+			if ( !slot.queued ) {
+				slot.queued = true;
+				slot.since = System.nanoTime();
+				enqueue(slot);
+			}
+			if ( waiting ) notify();
+		}
+		return true;
+	}
+
+	/**
+	 * Returns how many updates were merged into the given event, if it
+	 * is the value most recently delivered for its symbol and kind, and
+	 * 0 otherwise.
+	 *
+	 * @param event
+	 * @return
+	 */
+	int getMergedCount(SymbolExchangeEvent event) {
+		String symbol = event.getSymbol().toString();
+		synchronized(this) {
+			Slot slot = slots.get(symbol);
+			if ( slot == null ) return 0;
+			for ( int kind = 0; kind < KINDS.length; kind++ ) {
+				if ( slot.delivered[kind] == event ) {
+					return slot.deliveredMerged[kind];
+				}
+			}
+		}
+		return 0;
+	}
+
+	/**
+	 * Returns a snapshot of the statistics of every lane.
+	 *
+	 * @return
+	 */
+	synchronized LaneStatistics[] getStatistics() {
+		LaneStatistics[] stats = new LaneStatistics[LANES.length];
+		for ( Lane lane : LANES ) {
+			int i = lane.ordinal();
+			int depth = fifos[i].size + (lane == Lane.MARKET_DATA ? readySize : 0);
+			stats[i] = new LaneStatistics(lane, delivered[i], totalWait[i], maxWait[i], depth);
+		}
+		return stats;
+	}
+
+	@Override
+	public void run() {
+		while ( take() ) {
+			for ( int i = 0; i < taken; i++ ) {
+				delegator.dispatch(takenKeys[i], takenMessages[i]);
+				takenKeys[i] = null;
+				takenMessages[i] = null;
+			}
+			if ( drained ) {
+				/* end of the burst */
+				delegator.flushBatches();
+			}
+		}
+		synchronized(this) {
+			finished = true;
+			notifyAll();
+		}
+		logger.trace(">>> Event pump has stopped.");
+	}
+
+	/**
+	 * Wait for and take out the next event(s) by lane priority.  Returns
+	 * false once the pump has been stopped and is empty.
+	 *
+	 * @return
+	 */
+	private synchronized boolean take() {
+		while ( isEmpty() ) {
+			if ( !running ) return false;
+			waiting = true;
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				running = false;
+			} finally {
+				waiting = false;
+			}
+		}
+
+		long now = System.nanoTime();
+		taken = 0;
+		for ( int i = 0; i < fifos.length; i++ ) {
+			Fifo fifo = fifos[i];
+			if ( fifo.size > 0 ) {
+				takenKeys[0] = fifo.keys[fifo.head];
+				takenMessages[0] = fifo.messages[fifo.head];
+				record(i, now - fifo.times[fifo.head]);
+				fifo.remove();
+				if ( producersWaiting > 0 ) {
+					notifyAll();
+				}
+				taken = 1;
+				drained = isEmpty();
+				return true;
+			}
+		}
+
+		/* only conflated market data is left */
+		Slot slot = dequeue();
+		for ( int kind = 0; kind < KINDS.length; kind++ ) {
+			Object value = slot.pending[kind];
+			if ( value != null ) {
+				takenKeys[taken] = KINDS[kind];
+				takenMessages[taken] = value;
+				taken++;
+				slot.delivered[kind] = value;
+				slot.deliveredMerged[kind] = slot.merged[kind];
+				record(Lane.MARKET_DATA.ordinal(), now - slot.since);
+			}
+			slot.pending[kind] = null;
+			slot.merged[kind] = 0;
+		}
+		slot.queued = false;
+		if ( slot.forgotten ) {
+			slots.remove(slot.symbol);
+		}
+		drained = isEmpty();
+		return true;
+	}
+
+	/**
+	 * Called under the lock by a publisher that found the pump stopped:
+	 * wait until the pump thread has delivered what was queued and exited,
+	 * so that the caller does not deliver ahead of it.  Returns false.
+	 *
+	 * @return
+	 */
+	private boolean awaitFinished() {
+		boolean interrupted = false;
+		while ( pumpThread != null && !finished && Thread.currentThread() != pumpThread ) {
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if ( interrupted ) {
+			Thread.currentThread().interrupt();
+		}
+		return false;
+	}
+
+	private boolean isEmpty() {
+		for ( int i = 0; i < fifos.length; i++ ) {
+			if ( fifos[i].size > 0 ) return false;
+		}
+		return readySize == 0;
+	}
+
+	private void record(int lane, long wait) {
+		delivered[lane]++;
+		totalWait[lane] += wait;
+		if ( wait > maxWait[lane] ) {
+			maxWait[lane] = wait;
+		}
+	}
+
+	private void enqueue(Slot slot) {
+		if ( readySize == ready.length ) {
+			Slot[] grown = new Slot[ready.length << 1];
+			for ( int i = 0; i < readySize; i++ ) {
+				grown[i] = ready[(readyHead + i) & (ready.length - 1)];
+			}
+			ready = grown;
+			readyHead = 0;
+		}
+		ready[(readyHead + readySize) & (ready.length - 1)] = slot;
+		readySize++;
+	}
+
+	private Slot dequeue() {
+		Slot slot = ready[readyHead];
+		ready[readyHead] = null;
+		readyHead = (readyHead + 1) & (ready.length - 1);
+		readySize--;
+		return slot;
+	}
+
+	private static int kindOf(Class<?> key) {
+		for ( int kind = 0; kind < KINDS.length; kind++ ) {
+			if ( KINDS[kind] == key ) return kind;
+		}
+		throw new IllegalArgumentException(">>> Not a market data interface: " + key);
+	}
+
+}
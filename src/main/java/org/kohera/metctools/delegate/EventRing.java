@@ -0,0 +1,371 @@
+package org.kohera.metctools.delegate;
+
+import org.apache.log4j.Logger;
+import org.kohera.metctools.DelegatorStrategy;
+
+/**
+ * A bounded, preallocated ring buffer of events together with the
+ * consumer thread that delivers them to a single delegate.
+ *
+ * Any thread may publish into the ring; publishing only stores the
+ * dispatcher and the message in the next free slot, so the publishing
+ * thread never runs delegate code.  The consumer thread takes the events
+ * out in order and hands them to the dispatcher, which calls the delegate.
+ *
+ * Slots are reused; the ring does not allocate once it has been created.
+ *
+ * A ring is retired by stopping it with the ring (or null) that replaces
+ * it.  The consumer first delivers the events already in the ring; only
+ * then does it hand the subscriber over to the successor and start the
+ * successor's consumer.  Until the hand-over, publishers wait, so that a
+ * delegate is never called on two threads at once and its events stay in
+ * order.
+ *
+ */
+final class EventRing implements Runnable {
+
+	/* number of empty polls before a YIELDING consumer yields */
+	private static final int SPIN_TRIES = 100;
+
+	/* fields */
+	private final Subscriber		subscriber;
+	private final DelegatorStrategy	sender;
+	private final Dispatcher<?>[]	dispatchers;
+	private final Object[]			messages;
+	private final int				capacity;
+	private final int				mask;
+	private final WaitStrategy		waitStrategy;
+	private final OverflowPolicy	overflowPolicy;
+
+	/* sequences: written under the ring lock, read anywhere */
+	private volatile long			head;				// next slot to consume
+	private volatile long			tail;				// next slot to publish
+	private volatile boolean		running;
+	private volatile boolean		retired;			// the consumer has exited
+
+	/* guarded by the ring lock */
+	private boolean					consumerWaiting;
+	private int						producersWaiting;
+	private long					dropped;
+	private EventRing				successor;			// takes over once drained
+
+	private Thread					consumer;
+
+	/* logging */
+	private final static Logger logger =
+		Logger.getLogger(EventRing.class);
+
+	/**
+	 * Create a new EventRing.  The capacity is rounded up to the next
+	 * power of two.
+	 *
+	 * @param subscriber
+	 * @param sender
+	 * @param capacity
+	 * @param waitStrategy
+	 * @param overflowPolicy
+	 */
+	EventRing(Subscriber subscriber, DelegatorStrategy sender, int capacity,
+			WaitStrategy waitStrategy, OverflowPolicy overflowPolicy) {
+		if ( capacity < 1 ) {
+			throw new IllegalArgumentException(">>> Ring capacity must be positive.");
+		}
+		int size = Integer.highestOneBit(capacity);
+		if ( size < capacity ) {
+			size <<= 1;
+		}
+		this.subscriber = subscriber;
+		this.sender = sender;
+		this.capacity = size;
+		this.mask = size - 1;
+		this.dispatchers = new Dispatcher<?>[size];
+		this.messages = new Object[size];
+		this.waitStrategy = waitStrategy;
+		this.overflowPolicy = overflowPolicy;
+	}
+
+	/**
+	 * Start the consumer thread.
+	 */
+	synchronized void start() {
+		if ( running ) return;
+		running = true;
+		consumer = new Thread(this, "EventRing-" +
+				subscriber.getDelegate().getClass().getSimpleName());
+		consumer.setDaemon(true);
+		consumer.start();
+	}
+
+	/**
+	 * Stop accepting events.  The consumer thread delivers the events that
+	 * are already in the ring, sets the subscriber's ring to the given
+	 * successor (null for synchronous delivery), starts the successor and
+	 * exits.  Retiring a ring again only changes its successor.
+	 *
+	 * @param next
+	 */
+	synchronized void retire(EventRing next) {
+		running = false;
+		successor = next;
+		notifyAll();
+	}
+
+	/**
+	 * Wait until the consumer thread has exited, unless called by the
+	 * consumer thread itself (i.e. by its delegate).
+	 */
+	void awaitTermination() {
+		Thread thread;
+		synchronized(this) {
+			thread = consumer;
+		}
+		if ( thread == null || thread == Thread.currentThread() ) return;
+		boolean interrupted = false;
+		while ( thread.isAlive() ) {
+			try {
+				thread.join();
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if ( interrupted ) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Returns true once the ring has been retired and its consumer has
+	 * handed the subscriber over to the successor.
+	 *
+	 * @return
+	 */
+	boolean isRetired() {
+		return retired;
+	}
+
+	/**
+	 * Returns the capacity of the ring.
+	 *
+	 * @return
+	 */
+	int getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * Returns the number of events waiting to be consumed.
+	 *
+	 * @return
+	 */
+	int size() {
+		return (int)(tail - head);
+	}
+
+	/**
+	 * Returns the number of events that were discarded because the ring
+	 * was full.
+	 *
+	 * @return
+	 */
+	synchronized long getDroppedCount() {
+		return dropped;
+	}
+
+	/**
+	 * Publish an event into the ring.  Returns false if the event was
+	 * not accepted (full under DROP_NEWEST, or ring retired).  A publisher
+	 * that finds the ring retiring waits for the hand-over, so that it can
+	 * publish to the subscriber's new ring (see isRetired()).
+	 *
+	 * The overflow policy only applies to market data (see Lane); order
+	 * and control events always wait for room.  Waiting is not cut short
+	 * by an interrupt; the interrupt is restored once the event has been
+	 * published.
+	 *
+	 * @param dispatcher
+	 * @param message
+	 * @return
+	 */
+	boolean publish(Dispatcher<?> dispatcher, Object message) {
+		boolean interrupted = false;
+		try {
+			synchronized(this) {
+				if ( !running ) return awaitHandOver();
+
+				boolean droppable = Lane.of(dispatcher.getType()) == Lane.MARKET_DATA;
+				while ( tail - head >= capacity ) {
+					switch(droppable ? overflowPolicy : OverflowPolicy.BLOCK) {
+					case DROP_NEWEST:
+						dropped++;
+						return false;
+					case DROP_OLDEST:
+						if ( discardOldestMarketData() ) {
+							dropped++;
+							break;
+						}
+						/* nothing but order events in the ring: wait for room */
+					case BLOCK:
+					default:
+						/* a delegate publishing into its own full ring would wait forever */
+						if ( Thread.currentThread() == consumer ) {
+							dropped++;
+							if ( !droppable ) {
+								logger.warn(">>> Event ring for " + subscriber.getDelegate() +
+										" is full; dropped " + message + " published by the delegate itself.");
+							}
+							return false;
+						}
+						producersWaiting++;
+						try {
+							wait();
+						} catch (InterruptedException e) {
+							interrupted = true;
+						} finally {
+							producersWaiting--;
+						}
+						if ( !running ) return awaitHandOver();
+						break;
+					}
+				}
+
+				int index = (int)(tail & mask);
+				dispatchers[index] = dispatcher;
+				messages[index] = message;
+				tail = tail + 1;
+
+				if ( consumerWaiting ) {
+					notifyAll();
+				}
+			}
+			return true;
+		} finally {
+			if ( interrupted ) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * Called under the lock when the ring is full: discard the oldest
+	 * market data event, moving the events ahead of it up by one slot.
+	 * Returns false if the ring holds no market data.
+	 *
+	 * @return
+	 */
+	private boolean discardOldestMarketData() {
+		for ( long seq = head; seq < tail; seq++ ) {
+			int index = (int)(seq & mask);
+			if ( Lane.of(dispatchers[index].getType()) != Lane.MARKET_DATA ) continue;
+			for ( long prev = seq; prev > head; prev-- ) {
+				int to = (int)(prev & mask);
+				int from = (int)((prev - 1) & mask);
+				dispatchers[to] = dispatchers[from];
+				messages[to] = messages[from];
+			}
+			clear((int)(head & mask));
+			head = head + 1;
+			return true;
+		}
+		return false;
+	}
+
+	@Override
+	public void run() {
+		while ( awaitEvent() ) {
+			Dispatcher<?> dispatcher;
+			Object message;
+			synchronized(this) {
+				int index = (int)(head & mask);
+				dispatcher = dispatchers[index];
+				message = messages[index];
+				clear(index);
+				head = head + 1;
+				if ( producersWaiting > 0 ) {
+					notifyAll();
+				}
+			}
+			dispatcher.deliver(subscriber, sender, message);
+		}
+		synchronized(this) {
+			/* drained: hand over, and release the waiting publishers */
+			if ( subscriber.getRing() == this ) {
+				subscriber.setRing(successor);
+				if ( successor != null ) {
+					successor.start();
+				}
+			}
+			retired = true;
+			notifyAll();
+		}
+		logger.trace(">>> Event ring for " + subscriber.getDelegate() + " has stopped.");
+	}
+
+	/**
+	 * Wait, according to the wait strategy, until the ring is non-empty.
+	 * Returns false once the ring has been stopped and drained.
+	 *
+	 * @return
+	 */
+	private boolean awaitEvent() {
+		int spins = 0;
+		while ( head == tail ) {
+			/* read running first: a stop() after the last publish makes that publish visible */
+			if ( !running && head == tail ) {
+				return false;
+			}
+			switch(waitStrategy) {
+			case BLOCKING:
+				synchronized(this) {
+					while ( head == tail && running ) {
+						consumerWaiting = true;
+						try {
+							wait();
+						} catch (InterruptedException e) {
+							running = false;
+						} finally {
+							consumerWaiting = false;
+						}
+					}
+				}
+				break;
+			case YIELDING:
+				if ( ++spins > SPIN_TRIES ) {
+					Thread.yield();
+				}
+				break;
+			case BUSY_SPIN:
+			default:
+				break;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Called under the lock by a publisher that found the ring stopped:
+	 * wait until the consumer has handed over.  Returns false.  An
+	 * interrupt does not end the wait; it is restored afterwards.
+	 *
+	 * @return
+	 */
+	private boolean awaitHandOver() {
+		boolean interrupted = false;
+		while ( !retired && Thread.currentThread() != consumer ) {
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if ( interrupted ) {
+			Thread.currentThread().interrupt();
+		}
+		return false;
+	}
+
+	private void clear(int index) {
+		dispatchers[index] = null;
+		messages[index] = null;
+	}
+
+}
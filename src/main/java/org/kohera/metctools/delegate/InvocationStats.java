@@ -0,0 +1,47 @@
+package org.kohera.metctools.delegate;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Invocation counters and latency histogram of one delegate for one
+ * delegate interface.  Updated by Dispatcher.deliver() while
+ * instrumentation is enabled.
+ * 
+ */
+final class InvocationStats {
+
+	/* fields */
+	private final LatencyHistogram 	latency = new LatencyHistogram();
+	private final AtomicLong 		exceptions = new AtomicLong();
+	
+	/**
+	 * Record one invocation and how long it took.
+	 * 
+	 * @param nanos
+	 */
+	void recordInvocation(long nanos) {
+		latency.record(nanos);
+	}
+	
+	/**
+	 * Record that an invocation threw an exception.
+	 */
+	void recordException() {
+		exceptions.incrementAndGet();
+	}
+	
+	/**
+	 * Returns a snapshot of these statistics.
+	 * 
+	 * @param delegate
+	 * @param interf
+	 * @return
+	 */
+	DelegateStatistics snapshot(Object delegate, Class<?> interf) {
+		return new DelegateStatistics(delegate, interf,
+				latency.getCount(), exceptions.get(),
+				latency.getPercentile(0.50), latency.getPercentile(0.99),
+				latency.getPercentile(0.999), latency.getMax());
+	}
+	
+}
@@ -0,0 +1,38 @@
+package org.kohera.metctools.delegate;
+
+/**
+ * Delivery lanes of the EventPump, in order of priority.
+ * 
+ *   ORDER       - execution reports, cancel rejects, broker and server
+ *                 status.  Always delivered first.
+ *   CONTROL     - start, stop, callbacks and other events.
+ *   MARKET_DATA - asks, bids and trades.  Delivered only when the other
+ *                 lanes are empty; may be conflated.
+ * 
+ */
+public enum Lane {
+
+	ORDER,
+	CONTROL,
+	MARKET_DATA;
+	
+	/**
+	 * Returns the lane of the events of a delegate interface.
+	 * 
+	 * @param key
+	 * @return
+	 */
+	public static Lane of( Class<?> key ) {
+		if ( key == AskDelegate.class || key == BidDelegate.class || 
+				key == TradeDelegate.class ) {
+			return MARKET_DATA;
+		} else if ( key == ExecutionReportDelegate.class || 
+				key == OrderCancelRejectDelegate.class ||
+				key == BrokerStatusDelegate.class ||
+				key == ServerStatusDelegate.class ) {
+			return ORDER;
+		}
+		return CONTROL;
+	}
+	
+}
@@ -0,0 +1,82 @@
+package org.kohera.metctools.delegate;
+
+/**
+ * A point-in-time snapshot of the statistics of one EventPump lane.
+ * 
+ * The wait time of an event is the time between its arrival in the lane
+ * and the moment the pump took it out for delivery.  For conflated
+ * market data, it is measured from the oldest update that was merged.
+ * 
+ */
+public final class LaneStatistics {
+
+	/* fields */
+	private final Lane 	lane;
+	private final long 	delivered;
+	private final long 	totalWaitNanos;
+	private final long 	maxWaitNanos;
+	private final int 	depth;
+	
+	LaneStatistics( Lane lane, long delivered, long totalWaitNanos, 
+			long maxWaitNanos, int depth ) {
+		this.lane = lane;
+		this.delivered = delivered;
+		this.totalWaitNanos = totalWaitNanos;
+		this.maxWaitNanos = maxWaitNanos;
+		this.depth = depth;
+	}
+	
+	/**
+	 * Returns the lane.
+	 * 
+	 * @return
+	 */
+	public Lane getLane() {
+		return lane;
+	}
+	
+	/**
+	 * Returns the number of events taken out of the lane.
+	 * 
+	 * @return
+	 */
+	public long getDelivered() {
+		return delivered;
+	}
+	
+	/**
+	 * Returns the mean wait time in nanoseconds.
+	 * 
+	 * @return
+	 */
+	public long getMeanWaitNanos() {
+		return delivered == 0 ? 0 : totalWaitNanos / delivered;
+	}
+	
+	/**
+	 * Returns the longest wait time in nanoseconds.
+	 * 
+	 * @return
+	 */
+	public long getMaxWaitNanos() {
+		return maxWaitNanos;
+	}
+	
+	/**
+	 * Returns the number of entries waiting in the lane when the snapshot
+	 * was taken.
+	 * 
+	 * @return
+	 */
+	public int getDepth() {
+		return depth;
+	}
+	
+	@Override
+	public String toString() {
+		return String.format("{%s: delivered=%d depth=%d meanWait=%.1fus maxWait=%.1fus}",
+				lane, delivered, depth, 
+				getMeanWaitNanos() / 1000.0, maxWaitNanos / 1000.0);
+	}
+	
+}
@@ -0,0 +1,109 @@
+package org.kohera.metctools.delegate;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A fixed-size, log-linear histogram of latencies in nanoseconds.
+ * 
+ * Each power of two is split into 8 linear sub-buckets, so a recorded
+ * value is known to within 12.5% across the whole range of a long, with
+ * less than 500 buckets.  Recording is a couple of shifts and an atomic
+ * increment; the histogram never allocates after construction.
+ * 
+ */
+final class LatencyHistogram {
+
+	/* 2^SUB_BITS linear sub-buckets per power of two */
+	private static final int SUB_BITS = 3;
+	private static final int SUB_COUNT = 1 << SUB_BITS;
+	private static final int BUCKETS = (64 - SUB_BITS + 1) * SUB_COUNT;
+	
+	/* fields */
+	private final AtomicLongArray 	counts;
+	private final AtomicLong 		total;
+	private final AtomicLong 		max;
+	
+	LatencyHistogram() {
+		counts = new AtomicLongArray(BUCKETS);
+		total = new AtomicLong();
+		max = new AtomicLong();
+	}
+	
+	/**
+	 * Record a latency.  Negative values are counted as 0.
+	 * 
+	 * @param nanos
+	 */
+	void record(long nanos) {
+		if ( nanos < 0 ) nanos = 0;
+		counts.incrementAndGet(bucketOf(nanos));
+		total.incrementAndGet();
+		long current = max.get();
+		while ( nanos > current && !max.compareAndSet(current, nanos) ) {
+			current = max.get();
+		}
+	}
+	
+	/**
+	 * Returns the number of recorded values.
+	 * 
+	 * @return
+	 */
+	long getCount() {
+		return total.get();
+	}
+	
+	/**
+	 * Returns the largest recorded value.
+	 * 
+	 * @return
+	 */
+	long getMax() {
+		return max.get();
+	}
+	
+	/**
+	 * Returns the value below which the given fraction (0..1) of the
+	 * recorded values fall.  The result is the upper bound of the bucket
+	 * that contains the percentile, capped at the maximum.
+	 * 
+	 * @param fraction
+	 * @return
+	 */
+	long getPercentile(double fraction) {
+		long count = total.get();
+		if ( count == 0 ) return 0;
+		long rank = (long)Math.ceil(fraction * count);
+		if ( rank < 1 ) rank = 1;
+		long seen = 0;
+		for ( int bucket = 0; bucket < BUCKETS; bucket++ ) {
+			seen += counts.get(bucket);
+			if ( seen >= rank ) {
+				return Math.min(upperBoundOf(bucket), max.get());
+			}
+		}
+		return max.get();
+	}
+	
+	private static int bucketOf(long value) {
+		if ( value < SUB_COUNT ) {
+			return (int)value;
+		}
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int sub = (int)(value >>> (exponent - SUB_BITS)) & (SUB_COUNT - 1);
+		return (exponent - SUB_BITS + 1) * SUB_COUNT + sub;
+	}
+	
+	private static long upperBoundOf(int bucket) {
+		if ( bucket < SUB_COUNT ) {
+			return bucket;
+		}
+		int exponent = bucket / SUB_COUNT + SUB_BITS - 1;
+		int sub = bucket % SUB_COUNT;
+		long width = 1L << (exponent - SUB_BITS);
+		long lower = (long)(SUB_COUNT + sub) * width;
+		return lower + width - 1;
+	}
+	
+}
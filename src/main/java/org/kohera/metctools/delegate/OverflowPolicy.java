@@ -0,0 +1,26 @@
+package org.kohera.metctools.delegate;
+
+/**
+ * What to do when an event is published into the ring buffer of an
+ * asynchronous delegate that is full.
+ * 
+ *   BLOCK       - the publishing thread waits until the delegate has
+ *                 consumed an event.
+ *   DROP_OLDEST - the oldest unconsumed event is discarded to make room.
+ *   DROP_NEWEST - the event being published is discarded.
+ * 
+ * Only market data (see Lane) is ever discarded.  Execution reports,
+ * cancel rejects and the other order and control events are never
+ * dropped: they always wait for room, and under DROP_OLDEST the oldest
+ * market data event is discarded instead.  (A delegate that publishes
+ * into its own full ring cannot wait; such events are counted as
+ * dropped.)
+ * 
+ */
+public enum OverflowPolicy {
+
+	BLOCK,
+	DROP_OLDEST,
+	DROP_NEWEST;
+	
+}
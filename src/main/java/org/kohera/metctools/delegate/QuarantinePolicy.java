@@ -0,0 +1,19 @@
+package org.kohera.metctools.delegate;
+
+/**
+ * What the circuit breaker of a delegate does with its events while the
+ * delegate is quarantined (see Delegator.enableCircuitBreaker()).
+ * 
+ *   OFFLOAD - the events are delivered on a background thread, in order,
+ *             instead of on the thread that delegates them.  Delegates
+ *             that already have a ring buffer keep receiving their events
+ *             through it, as they are off the inbound thread anyway.
+ *   SUSPEND - the events are not delivered to the delegate at all.
+ * 
+ */
+public enum QuarantinePolicy {
+
+	OFFLOAD,
+	SUSPEND;
+	
+}
@@ -0,0 +1,124 @@
+package org.kohera.metctools.delegate;
+
+import java.util.Set;
+
+/**
+ * Registration record of a single delegate object in a Delegator.
+ * 
+ * One Subscriber exists per registered delegate, and it is shared by the
+ * dispatchers of all the delegate interfaces the delegate implements.
+ * If asynchronous delegation is enabled, the subscriber also owns the
+ * EventRing through which the delegate receives its events.
+ * 
+ * A subscriber may be scoped to a set of symbols, in which case it only
+ * receives the market data events (asks, bids and trades) of those
+ * symbols.
+ * 
+ * The subscriber also carries the dispatch statistics of its delegate,
+ * one InvocationStats per delegate interface (indexed like
+ * Delegator.EVENTS_ARRAY), and its CircuitBreaker if circuit breaking is
+ * enabled.
+ * 
+ */
+final class Subscriber {
+
+	/* fields */
+	private final Object 		delegate;
+	private final Set<String> 	symbols;
+	private volatile EventRing 	ring;
+	private volatile CircuitBreaker breaker;
+	private final InvocationStats[] stats;
+	
+	/**
+	 * Create a new Subscriber for a delegate.
+	 * 
+	 * @param delegate
+	 * @param symbols	symbols of interest, or null for all
+	 */
+	Subscriber(Object delegate, Set<String> symbols) {
+		this.delegate = delegate;
+		this.symbols = symbols;
+		this.stats = new InvocationStats[Delegator.EVENTS_ARRAY.length];
+	}
+	
+	/**
+	 * Returns the delegate object.
+	 * 
+	 * @return
+	 */
+	Object getDelegate() {
+		return delegate;
+	}
+	
+	/**
+	 * Returns the symbols this subscriber is scoped to, or null if it
+	 * receives market data for every symbol.
+	 * 
+	 * @return
+	 */
+	Set<String> getSymbols() {
+		return symbols;
+	}
+	
+	/**
+	 * Returns the ring buffer of this subscriber, or null if events are
+	 * delivered synchronously.
+	 * 
+	 * @return
+	 */
+	EventRing getRing() {
+		return ring;
+	}
+	
+	/**
+	 * Sets the ring buffer of this subscriber (null for synchronous delivery).
+	 * 
+	 * @param ring
+	 */
+	void setRing(EventRing ring) {
+		this.ring = ring;
+	}
+	
+	/**
+	 * Returns the circuit breaker of this subscriber, or null.
+	 * 
+	 * @return
+	 */
+	CircuitBreaker getBreaker() {
+		return breaker;
+	}
+	
+	/**
+	 * Sets the circuit breaker of this subscriber (null for none).
+	 * 
+	 * @param breaker
+	 */
+	void setBreaker(CircuitBreaker breaker) {
+		this.breaker = breaker;
+	}
+	
+	/**
+	 * Create the statistics for the delegate interface with the given
+	 * index.  Called by the dispatcher before the subscriber becomes
+	 * visible to it, so that the statistics can be read without locking.
+	 * 
+	 * @param index
+	 */
+	void initStats(int index) {
+		if ( stats[index] == null ) {
+			stats[index] = new InvocationStats();
+		}
+	}
+	
+	/**
+	 * Returns the statistics for the delegate interface with the given
+	 * index.
+	 * 
+	 * @param index
+	 * @return
+	 */
+	InvocationStats getStats(int index) {
+		return stats[index];
+	}
+	
+}
@@ -0,0 +1,28 @@
+package org.kohera.metctools.delegate;
+
+import org.kohera.metctools.DelegatorStrategy;
+import org.marketcetera.event.TradeEvent;
+
+/**
+ * Delegate interface for TradeEvents delivered in batches.
+ * 
+ * The Delegator collects TradeEvents and hands them over when the batch is
+ * full, when the oldest one has waited for the configured delay, or at the
+ * end of a burst of queued events (see Delegator.setBatchPolicy()).
+ * 
+ */
+public interface TradeBatchDelegate extends EventDelegate {
+	
+	/**
+	 * 
+	 * Implement this method to handle batches of TradeEvents.  The array is
+	 * reused once the method returns; only the first count elements are
+	 * valid, in the order the events arrived.
+	 * 
+	 * @param sender
+	 * @param trades
+	 * @param count
+	 */
+	public void onTrades( DelegatorStrategy sender, TradeEvent[] trades, int count );
+	
+}
@@ -0,0 +1,20 @@
+package org.kohera.metctools.delegate;
+
+/**
+ * How the consumer thread of an asynchronous delegate waits for
+ * new events to arrive in its ring buffer.
+ * 
+ *   BLOCKING  - park on a monitor until an event is published.  Uses no
+ *               CPU while idle, at the price of a wake-up on each burst.
+ *   YIELDING  - spin briefly, then yield the processor between checks.
+ *   BUSY_SPIN - spin continuously.  Lowest latency, but occupies a full
+ *               core per delegate.
+ * 
+ */
+public enum WaitStrategy {
+
+	BLOCKING,
+	YIELDING,
+	BUSY_SPIN;
+	
+}
@@ -0,0 +1,34 @@
+package org.kohera.metctools.portfolio;
+
+/**
+ * Tells whether the account of an execution report is a given account.
+ *
+ * The ORS usually reports an account as the same String every time, so
+ * the matcher remembers the last reported String that was equal to the
+ * account, and recognizes it again by identity instead of comparing its
+ * characters.  A null account never matches.
+ *
+ */
+final class AccountMatcher {
+
+	/* the last match: { account, reported }, replaced as a whole */
+	private volatile String[] last = new String[2];
+
+	/**
+	 * Returns true if and only if the reported account is the given
+	 * account.
+	 *
+	 * @param account
+	 * @param reported
+	 * @return
+	 */
+	boolean matches( String account, String reported ) {
+		if ( account == null || reported == null ) return false;
+		String[] match = last;
+		if ( match[0] == account && match[1] == reported ) return true;
+		if ( !reported.equals(account) ) return false;
+		last = new String[] { account, reported };
+		return true;
+	}
+
+}
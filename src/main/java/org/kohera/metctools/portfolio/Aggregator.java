@@ -0,0 +1,236 @@
+package org.kohera.metctools.portfolio;
+
+import java.math.BigDecimal;
+
+/**
+ * Maintains the portfolio-wide aggregates of a PortfolioImpl incrementally.
+ *
+ * The aggregator remembers what each of the portfolio's trades contributes
+ * (its signed position, the leaves quantity of its pending order, and the
+ * notional and profit-loss of its ProfitLoss engine).  When a Trade
+ * publishes a new image, or is revalued by a tick, it calls update() or
+ * revalue() on its own thread, and only the difference is applied; reading
+ * the aggregates never visits the trades.  Quantities and money are kept
+ * in fixed point, so a report or a tick adds up a few longs and does not
+ * allocate.
+ *
+ * The realized profit-loss of a trade stays in the total when the trade
+ * leaves the portfolio.
+ *
+ * The sums are striped by symbol id, like the shards (see TradeShards),
+ * so that trades changed by different shards update different stripes
+ * and do not wait for each other.  Each stripe is guarded by its own lock;
+ * reading merges the stripes while holding all their locks, so a snapshot
+ * is consistent across all the aggregates even when the trades are
+ * changed by several shards at once.
+ *
+ */
+final class Aggregator {
+
+	/* number of stripes; a power of two */
+	private static final int STRIPES = 16;
+
+	/**
+	 * What one trade currently contributes to the aggregates.  Owned by
+	 * the aggregator that created it, and only accessed under the lock of
+	 * its stripe.
+	 */
+	static final class Contribution {
+
+		private final Aggregator 	owner;
+		private final Stripe 		stripe;
+		private long 				position;	// signed, fixed point
+		private long 				pending;	// unsigned
+		private long 				notional;
+		private long 				realized;
+		private long 				unrealized;
+
+		private Contribution( Aggregator owner, Stripe stripe ) {
+			this.owner = owner;
+			this.stripe = stripe;
+		}
+
+		Aggregator getOwner() {
+			return owner;
+		}
+	}
+
+	/**
+	 * The sums of the contributions of one stripe.  Guarded by itself.
+	 */
+	private static final class Stripe {
+
+		private long 		net;		// fixed point
+		private long 		gross;
+		private int 		longs;
+		private int 		shorts;
+		private long 		pending;
+		private long 		notional;
+		private long 		realized;
+		private long 		unrealized;
+
+		private void set( Contribution contribution, TradeImage image ) {
+			if ( image == null ) {
+				set(contribution, 0, 0);
+			} else {
+				set(contribution, image.side.polarize(image.quantity), image.leavesQty);
+			}
+		}
+
+		private void set( Contribution contribution, long position, long leaves ) {
+			long previous = contribution.position;
+			if ( position != previous ) {
+				net += position - previous;
+				gross += Math.abs(position) - Math.abs(previous);
+				longs += (position > 0 ? 1 : 0) - (previous > 0 ? 1 : 0);
+				shorts += (position < 0 ? 1 : 0) - (previous < 0 ? 1 : 0);
+				contribution.position = position;
+			}
+			pending += leaves - contribution.pending;
+			contribution.pending = leaves;
+		}
+
+		private void value( Contribution contribution, ProfitLoss profitLoss ) {
+			value(contribution, profitLoss.getNotional(), profitLoss.getRealized(),
+					profitLoss.getUnrealized());
+		}
+
+		private void value( Contribution contribution, long value, long gain, long open ) {
+			notional += value - contribution.notional;
+			realized += gain - contribution.realized;
+			unrealized += open - contribution.unrealized;
+			contribution.notional = value;
+			contribution.realized = gain;
+			contribution.unrealized = open;
+		}
+	}
+
+	/* fields */
+	private final Stripe[] 		stripes;
+
+	/**
+	 * Create a new Aggregator with no trades.
+	 */
+	Aggregator() {
+		stripes = new Stripe[STRIPES];
+		for ( int i = 0; i < STRIPES; i++ ) {
+			stripes[i] = new Stripe();
+		}
+	}
+
+	/**
+	 * Start counting the given trade, or recount it if it is already
+	 * counted.
+	 *
+	 * @param trade
+	 */
+	void add( Trade trade ) {
+		Contribution contribution = trade.getContribution();
+		if ( contribution == null || contribution.owner != this ) {
+			contribution = new Contribution(this, stripes[trade.getSymbolId() & (STRIPES - 1)]);
+			trade.setContribution(contribution);
+		}
+		Stripe stripe = contribution.stripe;
+		synchronized(stripe) {
+			stripe.set(contribution, trade.getImage());
+			stripe.value(contribution, trade.getProfitLossEngine());
+		}
+	}
+
+	/**
+	 * Stop counting the given trade.
+	 *
+	 * @param trade
+	 */
+	void remove( Trade trade ) {
+		Contribution contribution = trade.getContribution();
+		if ( contribution == null || contribution.owner != this ) return;
+		Stripe stripe = contribution.stripe;
+		synchronized(stripe) {
+			stripe.set(contribution, 0, 0);
+			stripe.value(contribution, 0, contribution.realized, 0);
+		}
+		trade.setContribution(null);
+	}
+
+	/**
+	 * Recount the trade after it has published a new image.
+	 *
+	 * @param trade
+	 * @param image
+	 * @param profitLoss
+	 */
+	void update( Trade trade, TradeImage image, ProfitLoss profitLoss ) {
+		Contribution contribution = trade.getContribution();
+		if ( contribution == null || contribution.owner != this ) return;
+		Stripe stripe = contribution.stripe;
+		synchronized(stripe) {
+			stripe.set(contribution, image);
+			stripe.value(contribution, profitLoss);
+		}
+	}
+
+	/**
+	 * Recount the notional and profit-loss of the trade after a tick.
+	 *
+	 * @param trade
+	 * @param profitLoss
+	 */
+	void revalue( Trade trade, ProfitLoss profitLoss ) {
+		Contribution contribution = trade.getContribution();
+		if ( contribution == null || contribution.owner != this ) return;
+		Stripe stripe = contribution.stripe;
+		synchronized(stripe) {
+			stripe.value(contribution, profitLoss);
+		}
+	}
+
+	/**
+	 * Returns the sum of the signed positions.
+	 *
+	 * @return
+	 */
+	BigDecimal getNetPosition() {
+		return FixedPoint.toDecimal(merge(0, new Stripe()).net);
+	}
+
+	/**
+	 * Returns a consistent snapshot of all the aggregates.
+	 *
+	 * @return
+	 */
+	PortfolioAggregates snapshot() {
+		Stripe sum = merge(0, new Stripe());
+		return new PortfolioAggregates(FixedPoint.toDecimal(sum.net), FixedPoint.toDecimal(sum.gross),
+				sum.longs, sum.shorts, FixedPoint.toDecimal(sum.pending), FixedPoint.toDecimal(sum.notional),
+				FixedPoint.toDecimal(sum.realized), FixedPoint.toDecimal(sum.unrealized));
+	}
+
+	// PRIVATE METHODS //
+
+	/**
+	 * Add the stripes from the given one on to the sum, holding the locks
+	 * of all of them (always taken in the same order) until the sum is
+	 * complete.
+	 *
+	 * @param from
+	 * @param sum
+	 * @return
+	 */
+	private Stripe merge( int from, Stripe sum ) {
+		if ( from == stripes.length ) return sum;
+		Stripe stripe = stripes[from];
+		synchronized(stripe) {
+			sum.net += stripe.net;
+			sum.gross += stripe.gross;
+			sum.longs += stripe.longs;
+			sum.shorts += stripe.shorts;
+			sum.pending += stripe.pending;
+			sum.notional += stripe.notional;
+			sum.realized += stripe.realized;
+			sum.unrealized += stripe.unrealized;
+			return merge(from + 1, sum);
+		}
+	}
+
+}
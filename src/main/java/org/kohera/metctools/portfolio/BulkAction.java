@@ -0,0 +1,303 @@
+package org.kohera.metctools.portfolio;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+import org.kohera.metctools.util.DaemonThreadFactory;
+
+/**
+ * Handle of an Action being performed on a number of trades in parallel
+ * (see Portfolio.forEachParallel()).
+ *
+ * The trades are taken from the portfolio when the bulk action starts.
+ * A bounded number of background threads take the trades one at a time
+ * and perform the action on each, so that actions that block, such as
+ * Actions.CLOSE_POSITION, wait for their orders at the same time rather
+ * than one after another.  Each trade gets an Outcome, which records the
+ * exception or error the action threw, if any; either way the thread goes
+ * on to the next trade.
+ *
+ * The actions run on the bulk action's own threads, not on the threads
+ * that apply the trades' events, since a blocking action waits for
+ * execution reports that those threads deliver.
+ *
+ */
+public final class BulkAction {
+
+	/**
+	 * The outcome of the action on one trade.
+	 */
+	public static final class Outcome {
+
+		private final Trade 		trade;
+		private final Throwable 	error;
+		private final long 			durationNanos;
+
+		Outcome( Trade trade, Throwable error, long durationNanos ) {
+			this.trade = trade;
+			this.error = error;
+			this.durationNanos = durationNanos;
+		}
+
+		/**
+		 * Returns the trade.
+		 *
+		 * @return
+		 */
+		public Trade getTrade() {
+			return trade;
+		}
+
+		/**
+		 * Returns true if the action completed without an exception.
+		 *
+		 * @return
+		 */
+		public boolean isSuccess() {
+			return error == null;
+		}
+
+		/**
+		 * Returns the exception thrown by the action, or null.  Trades that
+		 * were skipped because the bulk action was cancelled have a
+		 * CancellationException.
+		 *
+		 * @return
+		 */
+		public Throwable getError() {
+			return error;
+		}
+
+		/**
+		 * Returns how long the action took on this trade.
+		 *
+		 * @return
+		 */
+		public long getDurationNanos() {
+			return durationNanos;
+		}
+
+		@Override
+		public String toString() {
+			return trade.getSymbol() + (error == null ? ": done" : ": " + error);
+		}
+	}
+
+	/* fields */
+	private final Action 			action;
+	private final Trade[] 			trades;
+	private final Outcome[] 		outcomes;		// by trade, set once
+	private final AtomicInteger 	next;			// next trade to take
+	private final AtomicInteger 	completed;
+	private final AtomicInteger 	failed;
+	private final CountDownLatch 	done;
+	private volatile boolean 		cancelled;
+	private volatile long 			startNanos;
+
+	/* logging */
+	private final static Logger logger =
+		Logger.getLogger(BulkAction.class);
+
+	/**
+	 * Create a new BulkAction of the given action on the given trades.
+	 *
+	 * @param action
+	 * @param trades
+	 */
+	BulkAction( Action action, Collection<Trade> trades ) {
+		if ( action == null ) {
+			throw new IllegalArgumentException(">>> No action to perform.");
+		}
+		this.action = action;
+		this.trades = trades.toArray(new Trade[trades.size()]);
+		this.outcomes = new Outcome[this.trades.length];
+		this.next = new AtomicInteger();
+		this.completed = new AtomicInteger();
+		this.failed = new AtomicInteger();
+		this.done = new CountDownLatch(this.trades.length);
+	}
+
+	/**
+	 * Start performing the action on up to parallelism threads.
+	 *
+	 * @param parallelism
+	 */
+	void start( int parallelism ) {
+		if ( parallelism < 1 ) {
+			throw new IllegalArgumentException(">>> Parallelism must be positive.");
+		}
+		startNanos = System.nanoTime();
+		int workers = Math.min(parallelism, trades.length);
+		if ( workers == 0 ) return;
+
+		ExecutorService executor = Executors.newFixedThreadPool(workers,
+				new DaemonThreadFactory("BulkAction"));
+		for ( int w = 0; w < workers; w++ ) {
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					int i;
+					while ( (i = next.getAndIncrement()) < trades.length ) {
+						perform(i);
+					}
+				}
+			});
+		}
+		/* the threads go away once the trades run out */
+		executor.shutdown();
+	}
+
+	/**
+	 * Returns the number of trades the action is performed on.
+	 *
+	 * @return
+	 */
+	public int size() {
+		return trades.length;
+	}
+
+	/**
+	 * Returns true once the action has completed (or been skipped) on
+	 * every trade.
+	 *
+	 * @return
+	 */
+	public boolean isDone() {
+		return done.getCount() == 0;
+	}
+
+	/**
+	 * Wait until the action has completed on every trade.
+	 *
+	 * @throws InterruptedException
+	 */
+	public void await() throws InterruptedException {
+		done.await();
+	}
+
+	/**
+	 * Wait until the action has completed on every trade, or the timeout
+	 * has elapsed.  Returns true if it has completed.
+	 *
+	 * @param timeout
+	 * @param unit
+	 * @return
+	 * @throws InterruptedException
+	 */
+	public boolean await( long timeout, TimeUnit unit ) throws InterruptedException {
+		return done.await(timeout, unit);
+	}
+
+	/**
+	 * Skip the trades on which the action has not started yet.  Actions
+	 * in progress are not interrupted.
+	 */
+	public void cancel() {
+		cancelled = true;
+	}
+
+	/**
+	 * Returns the number of trades on which the action has completed or
+	 * been skipped.
+	 *
+	 * @return
+	 */
+	public int getCompletedCount() {
+		return completed.get();
+	}
+
+	/**
+	 * Returns the number of trades on which the action failed or was
+	 * skipped.
+	 *
+	 * @return
+	 */
+	public int getFailedCount() {
+		return failed.get();
+	}
+
+	/**
+	 * Returns the outcomes of the trades on which the action has
+	 * completed so far.
+	 *
+	 * @return
+	 */
+	public List<Outcome> getOutcomes() {
+		List<Outcome> list = new ArrayList<Outcome>(trades.length);
+		synchronized(outcomes) {
+			for ( Outcome outcome : outcomes ) {
+				if ( outcome != null ) list.add(outcome);
+			}
+		}
+		return list;
+	}
+
+	/**
+	 * Returns the outcomes of the trades on which the action has failed
+	 * or was skipped so far.
+	 *
+	 * @return
+	 */
+	public List<Outcome> getFailures() {
+		List<Outcome> list = new ArrayList<Outcome>();
+		for ( Outcome outcome : getOutcomes() ) {
+			if ( !outcome.isSuccess() ) list.add(outcome);
+		}
+		return list;
+	}
+
+	@Override
+	public String toString() {
+		return "{BulkAction:" + completed.get() + "/" + trades.length + " done, " +
+			failed.get() + " failed}";
+	}
+
+	// PRIVATE METHODS //
+
+	/**
+	 * Perform the action on the i-th trade and record its outcome.
+	 *
+	 * @param i
+	 */
+	private void perform( int i ) {
+		Trade trade = trades[i];
+		Throwable error = null;
+		long start = System.nanoTime();
+		try {
+			if ( cancelled ) {
+				error = new CancellationException(">>> Bulk action cancelled.");
+			} else {
+				action.performAction(trade);
+			}
+		} catch (RuntimeException e) {
+			error = e;
+			logger.error(">>> " + trade + ": Bulk action failed.", e);
+		} catch (Error e) {
+			/* recorded like any failure: the worker goes on to the next trade */
+			error = e;
+			logger.error(">>> " + trade + ": Bulk action failed.", e);
+		} finally {
+			synchronized(outcomes) {
+				outcomes[i] = new Outcome(trade, error, System.nanoTime() - start);
+			}
+			if ( error != null ) {
+				failed.incrementAndGet();
+			}
+			if ( completed.incrementAndGet() == trades.length ) {
+				logger.info(">>> Bulk action on " + trades.length + " trades done in " +
+						(System.nanoTime() - startNanos) / 1000000 + " ms (" +
+						failed.get() + " failed).");
+			}
+			done.countDown();
+		}
+	}
+
+}
@@ -0,0 +1,164 @@
+package org.kohera.metctools.portfolio;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+import org.kohera.metctools.util.DaemonThreadFactory;
+
+/**
+ * Writes snapshots of the portfolio of a PortfolioStrategy in the
+ * background.
+ *
+ * At every interval, the checkpointer captures a view of the portfolio
+ * from the copy-on-write images of its trades (see PortfolioImpl.capture()),
+ * which does not stop or slow down the threads that apply events.  Unless
+ * nothing has changed since the last checkpoint, the view is encoded and
+ * written on the checkpointer's own thread, and the journal records it
+ * contains are discarded afterwards.
+ *
+ * Snapshots are written to a temporary file that is forced to disk and
+ * then renamed over the previous snapshot, so the file always holds a
+ * complete snapshot.  Every snapshot of the strategy, checkpoint or not,
+ * is captured and written under the strategy's snapshot lock, so that no
+ * two are written at once and a file is never replaced by an older view;
+ * journal records are discarded under the same lock, right after the
+ * checkpoint that contains them is on disk.
+ *
+ */
+final class Checkpointer {
+
+	/* fields */
+	private final PortfolioStrategy 		strategy;
+	private final String 					file;
+	private final ScheduledExecutorService 	executor;
+	private PortfolioImage 					last;		// guarded by the snapshot lock
+
+	/* logging */
+	private final static Logger logger =
+		Logger.getLogger(Checkpointer.class);
+
+	/**
+	 * Create a new Checkpointer and start writing checkpoints of the
+	 * strategy's portfolio to the given file every interval milliseconds.
+	 *
+	 * @param strategy
+	 * @param file
+	 * @param interval
+	 */
+	Checkpointer( PortfolioStrategy strategy, String file, long interval ) {
+		if ( interval < 1 ) {
+			throw new IllegalArgumentException(">>> Checkpoint interval must be positive.");
+		}
+		this.strategy = strategy;
+		this.file = file;
+		this.executor = Executors.newSingleThreadScheduledExecutor(
+				new DaemonThreadFactory("Checkpointer"));
+		executor.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					checkpoint();
+				} catch (RuntimeException e) {
+					logger.error(">>> Checkpoint to " + Checkpointer.this.file + " failed.", e);
+				}
+			}
+		}, interval, interval, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Stop the background checkpoints, and write a last one.
+	 */
+	void stop() {
+		executor.shutdown();
+		try {
+			executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		checkpoint();
+	}
+
+	/**
+	 * Capture and write a checkpoint now, unless nothing has changed since
+	 * the last one.  Returns false if it could not be written.
+	 *
+	 * @return
+	 */
+	boolean checkpoint() {
+		synchronized(strategy.getSnapshotLock()) {
+			Portfolio portfolio = strategy.getPortfolio();
+			if ( !(portfolio instanceof PortfolioImpl) ) return false;
+
+			PortfolioImage image = ((PortfolioImpl)portfolio).capture();
+			if ( image.isSameAs(last) ) return true;
+
+			long start = System.nanoTime();
+			if ( !write(image, file) ) return false;
+			Journal journal = strategy.getJournal();
+			if ( journal != null ) {
+				/* never past the view that is now on disk */
+				journal.discardThrough(image.journalSequence);
+			}
+			last = image;
+			logger.debug(">>> Checkpointed " + image.trades.length + " trades to " + file +
+					" in " + (System.nanoTime() - start) / 1000 + " us.");
+			return true;
+		}
+	}
+
+	/**
+	 * Returns true if checkpoints are written to the given file.
+	 *
+	 * @param other
+	 * @return
+	 */
+	boolean writesTo( String other ) {
+		return new File(file).getAbsoluteFile().equals(new File(other).getAbsoluteFile());
+	}
+
+	/**
+	 * Write a captured view to the given file, replacing it atomically.
+	 * Returns false, after logging the error, if it could not be written.
+	 * Must be called under the snapshot lock of the strategy.
+	 *
+	 * @param image
+	 * @param file
+	 * @return
+	 */
+	static boolean write( PortfolioImage image, String file ) {
+		File target = new File(file);
+		File temp = new File(file + ".tmp");
+
+		FileOutputStream fos = null;
+		try {
+			fos = new FileOutputStream(temp);
+			SnapshotCodec.write(image, fos.getChannel());
+			fos.getChannel().force(true);
+		} catch (IOException e) {
+			logger.error(">>> Could not write snapshot to " + temp + ". (" + e.getMessage() + ")");
+			return false;
+		} finally {
+			try {
+				if ( fos != null ) fos.close();
+			} catch (IOException e) {
+				logger.warn(">>> Could not close " + temp + ".", e);
+			}
+		}
+
+		if ( !temp.renameTo(target) ) {
+			/* some platforms do not rename over an existing file */
+			target.delete();
+			if ( !temp.renameTo(target) ) {
+				logger.error(">>> Could not rename " + temp + " to " + target + ".");
+				return false;
+			}
+		}
+		return true;
+	}
+
+}
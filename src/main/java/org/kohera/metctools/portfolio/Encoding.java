@@ -0,0 +1,179 @@
+package org.kohera.metctools.portfolio;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * Compact binary encoding of the values that make up portfolio state.
+ *
+ * Strings are written as a short length followed by their UTF-8 bytes
+ * (length -1 for null).  BigDecimals are written as a tag, the scale, and
+ * the unscaled value -- a variable-length long if it fits, which it nearly
+ * always does for quantities and prices, and the two's-complement bytes
+ * otherwise.  A Side is written as its ordinal in a single byte (-1 for
+ * null).
+ *
+ * Variable-length longs are zig-zag encoded, seven bits per byte, so
+ * that small values of either sign take a single byte.
+ *
+ * Readers throw a RuntimeException on malformed input.
+ *
+ */
+final class Encoding {
+
+	static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/* decimal tags */
+	private static final byte NULL 	= 0;
+	private static final byte LONG 	= 1;
+	private static final byte BIG 	= 2;
+	private static final byte VARLONG = 3;
+
+	private static final Side[] SIDES = Side.values();
+
+	private Encoding() { }
+
+	/**
+	 * Returns a buffer that has room for the given number of bytes more
+	 * than the given buffer, with the same contents.  Returns the buffer
+	 * itself if it already has room.
+	 *
+	 * @param buffer
+	 * @param bytes
+	 * @return
+	 */
+	static ByteBuffer ensure(ByteBuffer buffer, int bytes) {
+		if ( buffer.remaining() >= bytes ) return buffer;
+		int capacity = Math.max(buffer.capacity() << 1, buffer.position() + bytes);
+		ByteBuffer grown = ByteBuffer.allocate(capacity);
+		buffer.flip();
+		grown.put(buffer);
+		return grown;
+	}
+
+	static ByteBuffer putString(ByteBuffer buffer, String value) {
+		if ( value == null ) {
+			buffer = ensure(buffer, 2);
+			buffer.putShort((short)-1);
+			return buffer;
+		}
+		byte[] bytes = value.getBytes(UTF8);
+		if ( bytes.length > Short.MAX_VALUE ) {
+			throw new IllegalArgumentException(">>> String too long to encode: " + bytes.length + " bytes.");
+		}
+		buffer = ensure(buffer, 2 + bytes.length);
+		buffer.putShort((short)bytes.length);
+		buffer.put(bytes);
+		return buffer;
+	}
+
+	static String getString(ByteBuffer buffer) {
+		try {
+			int length = buffer.getShort();
+			if ( length < 0 ) return null;
+			byte[] bytes = new byte[length];
+			buffer.get(bytes);
+			return new String(bytes, UTF8);
+		} catch (BufferUnderflowException e) {
+			throw new RuntimeException(">>> Truncated string.", e);
+		}
+	}
+
+	static ByteBuffer putSide(ByteBuffer buffer, Side side) {
+		buffer = ensure(buffer, 1);
+		buffer.put(side == null ? -1 : (byte)side.ordinal());
+		return buffer;
+	}
+
+	static Side getSide(ByteBuffer buffer) {
+		try {
+			int ordinal = buffer.get();
+			if ( ordinal < 0 ) return null;
+			return SIDES[ordinal];
+		} catch (BufferUnderflowException e) {
+			throw new RuntimeException(">>> Truncated side.", e);
+		} catch (ArrayIndexOutOfBoundsException e) {
+			throw new RuntimeException(">>> Malformed side.", e);
+		}
+	}
+
+	static ByteBuffer putVarLong(ByteBuffer buffer, long value) {
+		buffer = ensure(buffer, 10);
+		long v = (value << 1) ^ (value >> 63);
+		while ( (v & ~0x7fL) != 0 ) {
+			buffer.put((byte)((v & 0x7f) | 0x80));
+			v >>>= 7;
+		}
+		buffer.put((byte)v);
+		return buffer;
+	}
+
+	static long getVarLong(ByteBuffer buffer) {
+		try {
+			long v = 0;
+			for ( int shift = 0; shift < 64; shift += 7 ) {
+				byte b = buffer.get();
+				v |= (long)(b & 0x7f) << shift;
+				if ( b >= 0 ) {
+					return (v >>> 1) ^ -(v & 1);
+				}
+			}
+			throw new RuntimeException(">>> Malformed variable-length long.");
+		} catch (BufferUnderflowException e) {
+			throw new RuntimeException(">>> Truncated variable-length long.", e);
+		}
+	}
+
+	static ByteBuffer putDecimal(ByteBuffer buffer, BigDecimal value) {
+		if ( value == null ) {
+			buffer = ensure(buffer, 1);
+			buffer.put(NULL);
+			return buffer;
+		}
+		BigInteger unscaled = value.unscaledValue();
+		if ( unscaled.bitLength() < 64 ) {
+			buffer = ensure(buffer, 1);
+			buffer.put(VARLONG);
+			buffer = putVarLong(buffer, value.scale());
+			return putVarLong(buffer, unscaled.longValue());
+		}
+		byte[] bytes = unscaled.toByteArray();
+		buffer = ensure(buffer, 9 + bytes.length);
+		buffer.put(BIG);
+		buffer.putInt(value.scale());
+		buffer.putInt(bytes.length);
+		buffer.put(bytes);
+		return buffer;
+	}
+
+	static BigDecimal getDecimal(ByteBuffer buffer) {
+		try {
+			byte tag = buffer.get();
+			switch(tag) {
+			case NULL:
+				return null;
+			case VARLONG:
+				int varScale = (int)getVarLong(buffer);
+				return BigDecimal.valueOf(getVarLong(buffer), varScale);
+			case LONG:
+				int scale = buffer.getInt();
+				return BigDecimal.valueOf(buffer.getLong(), scale);
+			case BIG:
+				int bigScale = buffer.getInt();
+				byte[] bytes = new byte[buffer.getInt()];
+				buffer.get(bytes);
+				return new BigDecimal(new BigInteger(bytes), bigScale);
+			default:
+				throw new RuntimeException(">>> Unknown decimal tag " + tag + ".");
+			}
+		} catch (BufferUnderflowException e) {
+			throw new RuntimeException(">>> Truncated decimal.", e);
+		} catch (NegativeArraySizeException e) {
+			throw new RuntimeException(">>> Malformed decimal.", e);
+		}
+	}
+
+}
@@ -0,0 +1,132 @@
+package org.kohera.metctools.portfolio;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+
+/**
+ * Fixed-point arithmetic on longs scaled by 10^8, for the accounting done
+ * on every event.  Values are converted from and to BigDecimal only at the
+ * boundary with Marketcetera and with the public getters.
+ *
+ * The representable range is about +/- 92 billion; operations that would
+ * leave it throw an ArithmeticException.  Products and quotients are
+ * rounded half up (away from zero) to 8 decimals.
+ *
+ */
+final class FixedPoint {
+
+	/* one, scaled */
+	static final int 	DECIMALS = 8;
+	static final long 	ONE = 100000000L;
+
+	private static final long[] POWERS = {
+		1L, 10L, 100L, 1000L, 10000L, 100000L, 1000000L, 10000000L, 100000000L
+	};
+
+	private FixedPoint() { }
+
+	/**
+	 * Returns the scaled value of the given decimal (null is zero).  Values
+	 * with more than 8 decimals are rounded half even.
+	 *
+	 * @param value
+	 * @return
+	 */
+	static long fromDecimal( BigDecimal value ) {
+		if ( value == null ) return 0;
+		int scale = value.scale();
+		if ( scale >= 0 && scale <= DECIMALS && value.precision() <= 15 ) {
+			/* exact, and does not allocate: the unscaled value of up to 15
+			 * digits survives the round trip through a double */
+			long unscaled = Math.round(value.doubleValue() * POWERS[scale]);
+			long factor = POWERS[DECIMALS - scale];
+			if ( Math.abs(unscaled) > Long.MAX_VALUE / factor ) {
+				throw new ArithmeticException(">>> " + value + " is out of fixed-point range.");
+			}
+			return unscaled * factor;
+		}
+		BigDecimal scaled = value.setScale(DECIMALS, RoundingMode.HALF_EVEN);
+		if ( scaled.unscaledValue().bitLength() > 63 ) {
+			throw new ArithmeticException(">>> " + value + " is out of fixed-point range.");
+		}
+		return scaled.unscaledValue().longValue();
+	}
+
+	/**
+	 * Returns the given scaled value as a decimal, exactly, with no more
+	 * decimals than it needs (BigDecimal.ZERO for zero).
+	 *
+	 * @param value
+	 * @return
+	 */
+	static BigDecimal toDecimal( long value ) {
+		if ( value == 0 ) return BigDecimal.ZERO;
+		int scale = DECIMALS;
+		while ( scale > 0 && value % 10 == 0 ) {
+			value /= 10;
+			scale--;
+		}
+		return BigDecimal.valueOf(value, scale);
+	}
+
+	/**
+	 * Returns a * b.
+	 *
+	 * @param a
+	 * @param b
+	 * @return
+	 */
+	static long multiply( long a, long b ) {
+		boolean negative = (a < 0) != (b < 0);
+		a = Math.abs(a);
+		b = Math.abs(b);
+		long ah = a / ONE, al = a % ONE;
+		long bh = b / ONE, bl = b % ONE;
+
+		/* the partial products are below 2^63 unless the result is */
+		if ( (ah | b) >>> 31 != 0 && ah != 0 && b > Long.MAX_VALUE / ah ) {
+			throw overflow();
+		}
+		long product = ah * b + al * bh + (al * bl + ONE / 2) / ONE;
+		if ( product < 0 ) {
+			throw overflow();
+		}
+		return negative ? -product : product;
+	}
+
+	/**
+	 * Returns a / b.
+	 *
+	 * @param a
+	 * @param b
+	 * @return
+	 */
+	static long divide( long a, long b ) {
+		if ( b == 0 ) {
+			throw new ArithmeticException(">>> Fixed-point division by zero.");
+		}
+		boolean negative = (a < 0) != (b < 0);
+		a = Math.abs(a);
+		b = Math.abs(b);
+		long quotient = a / b;
+		long remainder = a % b;
+		if ( quotient > Long.MAX_VALUE / ONE || b > Long.MAX_VALUE / 10 ) {
+			throw overflow();
+		}
+		/* long division, one decimal at a time */
+		for ( int i = 0; i < DECIMALS; i++ ) {
+			remainder *= 10;
+			quotient = quotient * 10 + remainder / b;
+			remainder %= b;
+		}
+		if ( remainder >= b - remainder ) {
+			quotient++;
+		}
+		return negative ? -quotient : quotient;
+	}
+
+	private static ArithmeticException overflow() {
+		return new ArithmeticException(">>> Fixed-point overflow.");
+	}
+
+}
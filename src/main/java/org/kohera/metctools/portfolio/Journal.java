@@ -0,0 +1,819 @@
+package org.kohera.metctools.portfolio;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+
+import org.apache.log4j.Logger;
+import org.kohera.metctools.util.DaemonThreadFactory;
+import org.marketcetera.trade.ExecutionReport;
+import org.marketcetera.trade.OrderStatus;
+
+/**
+ * Append-only write-ahead journal of the changes made to the trades of
+ * a portfolio, kept in a memory-mapped file.
+ *
+ * Every execution report a Trade accepts, and every position override, is
+ * appended as a compact binary record before the Trade is changed; changes
+ * of a trade's policies, and the removal of a trade from the portfolio, are
+ * appended once they are made.  After
+ * a crash, the portfolio is recovered by loading the last snapshot and
+ * replaying the records that came after it (see
+ * PortfolioStrategy.recoverPortfolio()).
+ *
+ * File layout:
+ *
+ *   header		int magic, long base sequence
+ *   records		int length, int CRC-32 of the payload, payload
+ *   end			int 0
+ *
+ * Each payload starts with the record's sequence number and type, then
+ * the symbol and the values of the change (see Encoding).  Sequence
+ * numbers are consecutive; the base sequence is that of the last record
+ * discarded after a snapshot, so the first record is always base + 1.
+ * Reading stops at the first record that is torn, corrupt or out of
+ * sequence, which is where appending resumes.
+ *
+ * When records are forced to disk is set by the JournalSyncPolicy.  If a
+ * record cannot be written, the error is logged and the change is still
+ * applied to the Trade.
+ *
+ */
+public final class Journal {
+
+	/* defaults */
+	public static final int 	DEFAULT_CAPACITY = 16 * 1024 * 1024;
+	public static final int 	DEFAULT_GROUP_SIZE = 64;
+	public static final long 	DEFAULT_SYNC_INTERVAL = 50;		// milliseconds
+
+	/* record types */
+	static final byte REPORT 			= 1;
+	static final byte OVERRIDE_QUANTITY = 2;
+	static final byte OVERRIDE_SIDE 	= 3;
+	static final byte REMOVE 			= 4;
+	static final byte OVERRIDE_POSITION = 5;
+	static final byte POLICIES 			= 6;
+
+	private static final int MAGIC 		= 0x4d544a31;	// "MTJ1"
+	private static final int HEADER 	= 12;
+	private static final int FRAME 		= 8;			// length and checksum
+
+	/* fields */
+	private final File 				file;
+	private final JournalSyncPolicy policy;
+	private final int 				groupSize;
+	private final long 				syncInterval;
+	private final CRC32 			crc;
+	private final Object 			compactLock = new Object();	// serializes discardThrough()
+	private ScheduledExecutorService syncer;
+
+	/* guarded by this */
+	private RandomAccessFile 		raf;
+	private FileChannel 			channel;
+	private MappedByteBuffer 		buffer;
+	private ByteBuffer 				scratch;
+	private long 					base;				// sequence of the last discarded record
+	private long 					sequence;			// sequence of the last appended record
+	private int 					unsynced;			// records appended since the last force
+	private long 					unsyncedSince;		// when the oldest of them was appended
+	private boolean 				closed;
+
+	/* logging */
+	private final static Logger logger =
+		Logger.getLogger(Journal.class);
+
+	/**
+	 * Open the journal in the given file with the default group size,
+	 * sync interval and capacity.
+	 *
+	 * @param file
+	 * @param policy
+	 * @throws IOException
+	 */
+	public Journal( String file, JournalSyncPolicy policy ) throws IOException {
+		this(file, policy, DEFAULT_GROUP_SIZE, DEFAULT_SYNC_INTERVAL, DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * Open the journal in the given file, creating it if necessary.  The
+	 * records already in the file are kept, and new records are appended
+	 * after them.
+	 *
+	 * @param file
+	 * @param policy
+	 * @param groupSize		records per forced group (GROUP_COMMIT)
+	 * @param syncInterval	maximum delay of a force in milliseconds (GROUP_COMMIT, ASYNC)
+	 * @param capacity		initial size of the mapping; it grows as needed
+	 * @throws IOException
+	 */
+	public Journal( String file, JournalSyncPolicy policy, int groupSize,
+			long syncInterval, int capacity ) throws IOException {
+		if ( groupSize < 1 || syncInterval < 1 || capacity < HEADER + FRAME ) {
+			throw new IllegalArgumentException(">>> Invalid journal parameters.");
+		}
+		this.file = new File(file);
+		this.policy = policy;
+		this.groupSize = groupSize;
+		this.syncInterval = syncInterval;
+		this.crc = new CRC32();
+		this.scratch = ByteBuffer.allocate(256);
+
+		boolean created = !this.file.exists() || this.file.length() == 0;
+		this.raf = new RandomAccessFile(this.file, "rw");
+		this.channel = raf.getChannel();
+		try {
+			map(Math.max(capacity, raf.length()));
+			if ( created ) {
+				buffer.putInt(0, MAGIC);
+				buffer.putLong(4, 0L);
+				buffer.putInt(HEADER, 0);
+			} else if ( buffer.getInt(0) != MAGIC ) {
+				throw new IOException(file + " is not a journal.");
+			}
+			base = buffer.getLong(4);
+			scan();
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+
+		if ( policy != JournalSyncPolicy.PER_RECORD ) {
+			startSyncer();
+		}
+		logger.debug(">>> Opened journal " + file + " at sequence " + sequence +
+				" (" + policy + ").");
+	}
+
+	/**
+	 * Returns the sync policy.
+	 *
+	 * @return
+	 */
+	public JournalSyncPolicy getSyncPolicy() {
+		return policy;
+	}
+
+	/**
+	 * Returns the sequence number of the last appended record.
+	 *
+	 * @return
+	 */
+	public synchronized long getSequence() {
+		return sequence;
+	}
+
+	/**
+	 * Returns the number of bytes taken up by the records in the journal.
+	 *
+	 * @return
+	 */
+	public synchronized int size() {
+		return buffer.position() - HEADER;
+	}
+
+	// APPENDING //
+
+	/**
+	 * Append an accepted execution report for the trade.  Returns the
+	 * sequence number of the record, or 0 if it could not be written.
+	 *
+	 * @param trade
+	 * @param report
+	 * @return
+	 */
+	long appendReport( Trade trade, ExecutionReport report ) {
+		synchronized(this) {
+			ByteBuffer b = begin(REPORT, trade.getSymbol());
+			b = Encoding.putString(b, report.getOrderStatus().name());
+			b = Encoding.putSide(b, Side.fromMetcSide(report.getSide()));
+			b = Encoding.putDecimal(b, report.getCumulativeQuantity());
+			b = Encoding.putDecimal(b, report.getLeavesQuantity());
+			b = Encoding.putDecimal(b, report.getAveragePrice());
+			b = Encoding.putString(b, report.getOrderID() == null ?
+					null : report.getOrderID().toString());
+			return commit(b, trade);
+		}
+	}
+
+	/**
+	 * Append an override of a Trade's quantity.
+	 *
+	 * @param trade
+	 * @param quantity
+	 * @return
+	 */
+	long appendQuantity( Trade trade, BigDecimal quantity ) {
+		synchronized(this) {
+			ByteBuffer b = begin(OVERRIDE_QUANTITY, trade.getSymbol());
+			b = Encoding.putDecimal(b, quantity);
+			return commit(b, trade);
+		}
+	}
+
+	/**
+	 * Append an override of a Trade's side.
+	 *
+	 * @param trade
+	 * @param side
+	 * @return
+	 */
+	long appendSide( Trade trade, Side side ) {
+		synchronized(this) {
+			ByteBuffer b = begin(OVERRIDE_SIDE, trade.getSymbol());
+			b = Encoding.putSide(b, side);
+			return commit(b, trade);
+		}
+	}
+
+	/**
+	 * Append an override of a Trade's quantity and side together, as a
+	 * signed position.
+	 *
+	 * @param trade
+	 * @param position
+	 * @return
+	 */
+	long appendPosition( Trade trade, BigDecimal position ) {
+		synchronized(this) {
+			ByteBuffer b = begin(OVERRIDE_POSITION, trade.getSymbol());
+			b = Encoding.putDecimal(b, position);
+			return commit(b, trade);
+		}
+	}
+
+	/**
+	 * Append the current order timeout and policies of a Trade.  Policies
+	 * are recorded by their names in the PolicyRegistry (see
+	 * SnapshotCodec).  This may be called on any thread, and does not mark
+	 * the record pending in the Trade: snapshots read the policies after
+	 * the sequence number (see Trade.getSnapshotImage()).
+	 *
+	 * @param trade
+	 * @return
+	 */
+	long appendPolicies( Trade trade ) {
+		synchronized(this) {
+			ByteBuffer b = begin(POLICIES, trade.getSymbol());
+			b = Encoding.putVarLong(b, trade.getOrderTimeout());
+			b = Encoding.putString(b, policyName(trade, trade.getFillPolicy()));
+			b = Encoding.putString(b, policyName(trade, trade.getOrderTimeoutPolicy()));
+			b = Encoding.putString(b, policyName(trade, trade.getRejectPolicy()));
+			return commit(b, null);
+		}
+	}
+
+	/**
+	 * Append the removal of a Trade from the portfolio.
+	 *
+	 * @param trade
+	 * @return
+	 */
+	long appendRemove( Trade trade ) {
+		synchronized(this) {
+			return commit(begin(REMOVE, trade.getSymbol()), trade);
+		}
+	}
+
+	private static String policyName( Trade trade, Object policy ) {
+		String name = PolicyRegistry.nameOf(policy);
+		if ( name == null && policy != null ) {
+			logger.warn(">>> Policy " + policy.getClass().getName() + " of " + trade.getSymbol() +
+					" is not registered in the PolicyRegistry; replay restores the default policy.");
+		}
+		return name;
+	}
+
+	private ByteBuffer begin( byte type, String symbol ) {
+		scratch.clear();
+		ByteBuffer b = Encoding.ensure(scratch, FRAME + 9);
+		b.position(FRAME);
+		b.putLong(sequence + 1);
+		b.put(type);
+		return Encoding.putString(b, symbol);
+	}
+
+	private long commit( ByteBuffer record, Trade trade ) {
+		scratch = record;
+		if ( closed ) {
+			logger.error(">>> Journal " + file + " is closed; a change was not journaled.");
+			return 0;
+		}
+		int length = record.position() - FRAME;
+		crc.reset();
+		crc.update(record.array(), FRAME, length);
+		record.putInt(0, length);
+		record.putInt(4, (int)crc.getValue());
+		record.flip();
+
+		try {
+			if ( buffer.remaining() < record.remaining() + 4 ) {
+				map(Math.max((long)buffer.capacity() << 1,
+						(long)buffer.position() + record.remaining() + 4));
+			}
+		} catch (IOException e) {
+			logger.error(">>> Could not grow journal " + file + "; a change was not journaled. (" +
+					e.getMessage() + ")");
+			return 0;
+		}
+
+		buffer.put(record);
+		buffer.putInt(buffer.position(), 0);
+		sequence++;
+		/* before the sequence can be seen by a snapshot (see PortfolioImpl.capture()) */
+		if ( trade != null ) {
+			trade.markPending(sequence);
+		}
+
+		switch(policy) {
+		case PER_RECORD:
+			buffer.force();
+			break;
+		case GROUP_COMMIT:
+			if ( unsynced++ == 0 ) {
+				unsyncedSince = System.currentTimeMillis();
+			}
+			if ( unsynced >= groupSize ) {
+				buffer.force();
+				unsynced = 0;
+			}
+			break;
+		case ASYNC:
+		default:
+			unsynced++;
+			break;
+		}
+		return sequence;
+	}
+
+	// SYNCING //
+
+	/**
+	 * Force all appended records to disk.
+	 */
+	public void sync() {
+		MappedByteBuffer forced;
+		synchronized(this) {
+			if ( closed || unsynced == 0 ) return;
+			unsynced = 0;
+			forced = buffer;
+		}
+		/* appenders do not wait for the disk */
+		forced.force();
+	}
+
+	private void startSyncer() {
+		syncer = Executors.newSingleThreadScheduledExecutor(
+				new DaemonThreadFactory("JournalSync"));
+		syncer.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					if ( isSyncDue() ) {
+						sync();
+					}
+				} catch (RuntimeException e) {
+					logger.error(">>> Could not sync journal " + file + ".", e);
+				}
+			}
+		}, syncInterval, syncInterval, TimeUnit.MILLISECONDS);
+	}
+
+	private synchronized boolean isSyncDue() {
+		if ( unsynced == 0 ) return false;
+		return policy == JournalSyncPolicy.ASYNC ||
+			System.currentTimeMillis() - unsyncedSince >= syncInterval;
+	}
+
+	// SNAPSHOTS AND RECOVERY //
+
+	/**
+	 * Discard the records up to and including the given sequence number,
+	 * because a snapshot now contains their changes.
+	 *
+	 * The remaining records are copied into a new file, which is forced to
+	 * disk and then renamed over the journal, so that a crash leaves
+	 * either the old journal or the new one, never a mix of the two.  The
+	 * bulk of the copy is written without holding the lock; only the
+	 * records appended meanwhile are copied under it.
+	 *
+	 * @param through
+	 */
+	void discardThrough( long through ) {
+		synchronized(compactLock) {
+			int end;
+			int capacity;
+			byte[] tail;
+			synchronized(this) {
+				if ( closed || through <= base ) return;
+				through = Math.min(through, sequence);
+
+				int offset = HEADER;
+				ByteBuffer reader = buffer.duplicate();
+				while ( offset < buffer.position() ) {
+					int length = reader.getInt(offset);
+					if ( reader.getLong(offset + FRAME) > through ) break;
+					offset += FRAME + length;
+				}
+				end = buffer.position();
+				capacity = buffer.capacity();
+				tail = new byte[end - offset];
+				reader.position(offset);
+				reader.get(tail);
+			}
+
+			File temp = new File(file.getPath() + ".tmp");
+			RandomAccessFile next = null;
+			try {
+				next = new RandomAccessFile(temp, "rw");
+				next.setLength(0);
+				FileChannel nextChannel = next.getChannel();
+				MappedByteBuffer nextBuffer = nextChannel.map(FileChannel.MapMode.READ_WRITE, 0,
+						Math.max(capacity, HEADER + tail.length + 4));
+				nextBuffer.putInt(0, MAGIC);
+				nextBuffer.putLong(4, through);
+				nextBuffer.position(HEADER);
+				nextBuffer.put(tail);
+				nextBuffer.putInt(nextBuffer.position(), 0);
+				nextBuffer.force();
+
+				synchronized(this) {
+					if ( closed ) {
+						next.close();
+						temp.delete();
+						return;
+					}
+					/* the records appended while the tail was written */
+					int appended = buffer.position() - end;
+					if ( appended > 0 ) {
+						if ( nextBuffer.remaining() < appended + 4 ) {
+							nextBuffer = remap(nextChannel, nextBuffer,
+									(long)nextBuffer.position() + appended + 4);
+						}
+						ByteBuffer reader = buffer.duplicate();
+						reader.limit(buffer.position());
+						reader.position(end);
+						nextBuffer.put(reader);
+						nextBuffer.putInt(nextBuffer.position(), 0);
+						nextBuffer.force();
+					}
+					if ( !temp.renameTo(file) ) {
+						throw new IOException("could not rename " + temp + " to " + file);
+					}
+					try {
+						channel.close();
+					} catch (IOException e) {
+						logger.warn(">>> Could not close journal " + file + ".", e);
+					}
+					raf = next;
+					channel = nextChannel;
+					buffer = nextBuffer;
+					base = through;
+					unsynced = 0;
+					logger.debug(">>> Discarded journal records through " + through +
+							" (" + (buffer.position() - HEADER) + " bytes kept).");
+				}
+			} catch (IOException e) {
+				logger.warn(">>> Could not discard journal records through " + through +
+						"; they are kept. (" + e.getMessage() + ")");
+				try {
+					if ( next != null ) next.close();
+				} catch (IOException ignored) {
+					/* nothing to do */
+				}
+				temp.delete();
+			}
+		}
+	}
+
+	/**
+	 * Apply the records that follow the given sequence number to the
+	 * trades of the portfolio, creating trades as needed.  Records that a
+	 * trade already contains (see Trade.getJournalSequence()) are skipped.
+	 * The records only change the accounting fields: no orders are touched
+	 * and no policies are run.  Returns the number of records applied.
+	 *
+	 * @param portfolio
+	 * @param after
+	 * @return
+	 */
+	int replay( PortfolioImpl portfolio, long after ) {
+		return replay(portfolio, after, 1);
+	}
+
+	/**
+	 * Replay as above, with up to the given number of threads.
+	 *
+	 * The records are first partitioned by symbol, in a single pass that
+	 * also creates the trades; each partition is then applied in sequence
+	 * order by one thread, and different symbols are applied in parallel.
+	 * Since a record only changes its own trade, the result is the same as
+	 * replaying the whole journal in order.  A removal drops the records
+	 * of its trade that came before it, and removes the trade if it was
+	 * in the snapshot, unless the snapshot's trade was created after the
+	 * removal (see Trade.createdAfter()); later records create the trade
+	 * again.
+	 *
+	 * @param portfolio
+	 * @param after
+	 * @param parallelism
+	 * @return
+	 */
+	synchronized int replay( PortfolioImpl portfolio, long after, int parallelism ) {
+		if ( parallelism < 1 ) {
+			throw new IllegalArgumentException(">>> Replay parallelism must be positive.");
+		}
+		if ( after < base ) {
+			logger.warn(">>> Journal " + file + " starts after sequence " + base +
+					" but the snapshot is at " + after + "; changes in between are lost.");
+		}
+		long start = System.nanoTime();
+		final Partition[] partitions = partition(portfolio, after);
+
+		int threads = Math.min(parallelism, partitions.length);
+		int applied = 0;
+		if ( threads <= 1 ) {
+			ByteBuffer reader = buffer.duplicate();
+			for ( Partition partition : partitions ) {
+				applied += partition.apply(reader);
+			}
+		} else {
+			ExecutorService pool = Executors.newFixedThreadPool(threads,
+					new DaemonThreadFactory("JournalReplay"));
+			try {
+				/* workers take the next partition, largest first */
+				final AtomicInteger next = new AtomicInteger();
+				List<Future<Integer>> parts = new ArrayList<Future<Integer>>(threads);
+				for ( int i = 0; i < threads; i++ ) {
+					final ByteBuffer reader = buffer.duplicate();
+					parts.add(pool.submit(new Callable<Integer>() {
+						@Override
+						public Integer call() {
+							int count = 0;
+							int index;
+							while ( (index = next.getAndIncrement()) < partitions.length ) {
+								count += partitions[index].apply(reader);
+							}
+							return count;
+						}
+					}));
+				}
+				for ( Future<Integer> part : parts ) {
+					applied += part.get();
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RuntimeException(">>> Interrupted while replaying journal " + file + ".", e);
+			} catch (ExecutionException e) {
+				throw new RuntimeException(">>> Could not replay journal " + file + ".", e.getCause());
+			} finally {
+				pool.shutdown();
+			}
+		}
+		logger.info(">>> Replayed " + applied + " journal records after sequence " + after +
+				" for " + partitions.length + " symbols on " + Math.max(threads, 1) + " threads in " +
+				(System.nanoTime() - start) / 1000000 + " ms.");
+		return applied;
+	}
+
+	/**
+	 * Partition the records that follow the given sequence number by
+	 * trade, largest partition first.  Trades removed by the records are
+	 * removed from the portfolio here.
+	 *
+	 * @param portfolio
+	 * @param after
+	 * @return
+	 */
+	private Partition[] partition( PortfolioImpl portfolio, long after ) {
+		Map<String,Partition> partitions = new HashMap<String,Partition>();
+		ByteBuffer reader = buffer.duplicate();
+		reader.limit(buffer.position());
+		reader.position(HEADER);
+
+		while ( reader.hasRemaining() ) {
+			int offset = reader.position();
+			int length = reader.getInt();
+			reader.getInt();
+			int end = reader.position() + length;
+
+			long seq = reader.getLong();
+			byte type = reader.get();
+			String symbol = Encoding.getString(reader);
+			if ( seq > after && type == REMOVE ) {
+				partitions.remove(symbol);
+				Trade trade = portfolio.findTrade(SymbolDictionary.lookup(symbol));
+				/* unless the snapshot's trade was created after the removal */
+				if ( trade != null && trade.getJournalSequence() < seq ) {
+					portfolio.discardTrade(trade);
+				}
+			} else if ( seq > after ) {
+				Partition partition = partitions.get(symbol);
+				if ( partition == null ) {
+					partition = new Partition(portfolio.createTrade(symbol, 0));
+					partitions.put(symbol, partition);
+				}
+				partition.add(offset);
+			}
+			reader.position(end);
+		}
+
+		Partition[] sorted = partitions.values().toArray(new Partition[partitions.size()]);
+		Arrays.sort(sorted);
+		return sorted;
+	}
+
+	/**
+	 * Offsets of the records of one trade, in sequence order.
+	 */
+	private final class Partition implements Comparable<Partition> {
+
+		private final Trade trade;
+		private int[] offsets = new int[4];
+		private int count;
+
+		Partition( Trade trade ) {
+			this.trade = trade;
+		}
+
+		void add( int offset ) {
+			if ( count == offsets.length ) {
+				offsets = Arrays.copyOf(offsets, count * 2);
+			}
+			offsets[count++] = offset;
+		}
+
+		/**
+		 * Apply the records the trade does not contain yet, then publish
+		 * the trade once.
+		 *
+		 * @param reader
+		 * @return
+		 */
+		int apply( ByteBuffer reader ) {
+			long contained = trade.getJournalSequence();
+			long last = contained;
+			int applied = 0;
+			for ( int i = 0; i < count; i++ ) {
+				reader.position(offsets[i] + FRAME);
+				long seq = reader.getLong();
+				byte type = reader.get();
+				Encoding.getString(reader);
+				if ( seq > contained ) {
+					Journal.this.apply(trade, type, reader);
+					last = seq;
+					applied++;
+				} else if ( type == POLICIES ) {
+					/* not covered by the trade's sequence (see appendPolicies()) */
+					Journal.this.apply(trade, type, reader);
+					applied++;
+				}
+			}
+			if ( last > contained ) {
+				trade.replayed(last);
+			}
+			return applied;
+		}
+
+		@Override
+		public int compareTo( Partition other ) {
+			return other.count < count ? -1 : (other.count == count ? 0 : 1);
+		}
+
+	}
+
+	private void apply( Trade trade, byte type, ByteBuffer reader ) {
+		switch(type) {
+		case REPORT:
+			OrderStatus status = OrderStatus.valueOf(Encoding.getString(reader));
+			Side side = Encoding.getSide(reader);
+			BigDecimal cumulative = Encoding.getDecimal(reader);
+			BigDecimal leaves = Encoding.getDecimal(reader);
+			BigDecimal average = Encoding.getDecimal(reader);
+			trade.replayReport(status, side, cumulative, leaves, average);
+			break;
+		case OVERRIDE_QUANTITY:
+			trade.replayQuantity(Encoding.getDecimal(reader));
+			break;
+		case OVERRIDE_SIDE:
+			trade.replaySide(Encoding.getSide(reader));
+			break;
+		case OVERRIDE_POSITION:
+			trade.replayPosition(Encoding.getDecimal(reader));
+			break;
+		case POLICIES:
+			long timeout = Encoding.getVarLong(reader);
+			FillPolicy fill = PolicyRegistry.getFillPolicy(Encoding.getString(reader));
+			OrderTimeoutPolicy onTimeout = PolicyRegistry.getOrderTimeoutPolicy(Encoding.getString(reader));
+			RejectPolicy reject = PolicyRegistry.getRejectPolicy(Encoding.getString(reader));
+			trade.replayPolicies(timeout, fill, onTimeout, reject);
+			break;
+		default:
+			throw new RuntimeException(">>> Unknown journal record type " + type + ".");
+		}
+	}
+
+	/**
+	 * Force the journal to disk and release the file.
+	 */
+	public void close() {
+		if ( syncer != null ) {
+			syncer.shutdown();
+		}
+		synchronized(this) {
+			if ( closed ) return;
+			buffer.force();
+			closed = true;
+			try {
+				channel.close();
+			} catch (IOException e) {
+				logger.warn(">>> Could not close journal " + file + ".", e);
+			}
+		}
+		logger.debug(">>> Closed journal " + file + " at sequence " + sequence + ".");
+	}
+
+	// PRIVATE METHODS //
+
+	/**
+	 * Map the file with the given capacity, keeping the position.
+	 *
+	 * @param capacity
+	 * @throws IOException
+	 */
+	private void map( long capacity ) throws IOException {
+		buffer = remap(channel, buffer, capacity);
+	}
+
+	/**
+	 * Map the given channel with the given capacity, keeping the position
+	 * of the previous mapping, if any.
+	 *
+	 * @param channel
+	 * @param previous
+	 * @param capacity
+	 * @return
+	 * @throws IOException
+	 */
+	private static MappedByteBuffer remap( FileChannel channel, MappedByteBuffer previous,
+			long capacity ) throws IOException {
+		if ( capacity > Integer.MAX_VALUE ) {
+			throw new IOException("journal is full");
+		}
+		int position = previous == null ? HEADER : previous.position();
+		if ( previous != null ) {
+			previous.force();
+		}
+		MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+		mapped.position(position);
+		return mapped;
+	}
+
+	/**
+	 * Find the end of the valid records and the last sequence number.
+	 */
+	private void scan() {
+		int offset = HEADER;
+		long expected = base + 1;
+		while ( offset + FRAME + 9 <= buffer.capacity() ) {
+			int length = buffer.getInt(offset);
+			if ( length < 9 || length > buffer.capacity() - offset - FRAME ) break;
+			if ( buffer.getLong(offset + FRAME) != expected ) break;
+
+			byte[] payload = new byte[length];
+			ByteBuffer reader = buffer.duplicate();
+			reader.position(offset + FRAME);
+			reader.get(payload);
+			crc.reset();
+			crc.update(payload);
+			if ( (int)crc.getValue() != buffer.getInt(offset + 4) ) break;
+
+			offset += FRAME + length;
+			expected++;
+		}
+		buffer.position(offset);
+		if ( offset + 4 <= buffer.capacity() ) {
+			/* cut off whatever is torn or left over */
+			buffer.putInt(offset, 0);
+		}
+		sequence = expected - 1;
+	}
+
+}
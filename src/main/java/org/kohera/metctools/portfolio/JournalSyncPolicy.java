@@ -0,0 +1,25 @@
+package org.kohera.metctools.portfolio;
+
+/**
+ * When the Journal forces its records to disk.
+ *
+ * PER_RECORD		every append is forced before it returns; nothing
+ * 					that was applied to a Trade can be lost.
+ *
+ * GROUP_COMMIT		records are forced once a group of them has been
+ * 					appended, or when the oldest unforced record is older
+ * 					than the sync interval, whichever comes first.
+ *
+ * ASYNC			records are forced by a background thread every sync
+ * 					interval; the order path never waits for the disk.
+ *
+ * In every case, the records are in the mapped file as soon as they are
+ * appended, so they survive a crash of the strategy agent.  The policy
+ * only decides how much may be lost if the machine itself goes down.
+ *
+ */
+public enum JournalSyncPolicy {
+	PER_RECORD,
+	GROUP_COMMIT,
+	ASYNC
+}
@@ -0,0 +1,308 @@
+package org.kohera.metctools.portfolio;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+import org.kohera.metctools.util.DaemonThreadFactory;
+import org.marketcetera.marketdata.MarketDataRequest;
+import org.marketcetera.marketdata.MarketDataRequest.Content;
+
+/**
+ * Market data subscriptions of a PortfolioStrategy, kept in step with the
+ * symbols of its portfolio.
+ * 
+ * Symbols are subscribed in groups of at most chunkSize symbols, one
+ * MarketDataRequest per group.  When a symbol is added, it joins the last
+ * group if that has room, and otherwise starts a new one.  Requests
+ * cannot be changed, so a group is replaced by requesting the new symbol
+ * set before cancelling the old request: its symbols receive data
+ * throughout, and no other group is touched.
+ * 
+ * A removed symbol is only marked stale in its group (its events are
+ * ignored by the TradeRouter).  A group is cancelled once none of its
+ * symbols is live, and rebuilt once it has more stale than live symbols.
+ * 
+ * If a request fails, the group keeps its previous request, if any, and
+ * is marked failed; failed groups are requested again on a background
+ * thread after RETRY_DELAY milliseconds, until the request succeeds or
+ * the subscriptions are cancelled.
+ * 
+ */
+final class MarketDataSubscriptions {
+
+	/**
+	 * One MarketDataRequest and its symbols.
+	 */
+	private static final class Group {
+		int 				requestId;			// 0 if none
+		boolean 			failed;				// requestId does not cover the symbols
+		final Set<String> 	live = new LinkedHashSet<String>();
+		final Set<String> 	stale = new LinkedHashSet<String>();
+	}
+	
+	/* constants */
+	static final long 					RETRY_DELAY = 5000;	// milliseconds
+	
+	/* fields */
+	private final PortfolioStrategy 	strategy;
+	private final String 				provider;
+	private final Content[] 			content;
+	private final int 					chunkSize;
+	private final List<Group> 			groups;
+	private final Map<String,Group> 	bySymbol;		// live and stale symbols
+	private boolean 					retryScheduled;
+	private ScheduledExecutorService 	retries;		// null until a request fails
+	
+	/* logging */
+	private final static Logger logger = 
+		Logger.getLogger(MarketDataSubscriptions.class);
+	
+	/**
+	 * Create a new, empty set of subscriptions.
+	 * 
+	 * @param strategy
+	 * @param provider
+	 * @param content
+	 * @param chunkSize		maximum number of symbols per request
+	 */
+	MarketDataSubscriptions(PortfolioStrategy strategy, String provider, 
+			Content[] content, int chunkSize) {
+		this.strategy = strategy;
+		this.provider = provider;
+		this.content = content.clone();
+		this.chunkSize = chunkSize;
+		this.groups = new ArrayList<Group>();
+		this.bySymbol = new HashMap<String,Group>();
+	}
+	
+	/**
+	 * Subscribe a single symbol, if it is not subscribed yet.
+	 * 
+	 * @param symbol
+	 */
+	synchronized void subscribe(String symbol) {
+		subscribe(Collections.singleton(symbol));
+	}
+	
+	/**
+	 * Subscribe the given symbols that are not subscribed yet.
+	 * 
+	 * @param symbols
+	 */
+	synchronized void subscribe(Collection<String> symbols) {
+		Set<String> fresh = new LinkedHashSet<String>();
+		for ( String symbol : symbols ) {
+			Group group = bySymbol.get(symbol);
+			if ( group == null ) {
+				fresh.add(symbol);
+			} else if ( group.stale.remove(symbol) ) {
+				/* still in its old request */
+				group.live.add(symbol);
+			}
+		}
+		if ( fresh.isEmpty() ) return;
+		
+		Iterator<String> it = fresh.iterator();
+		
+		/* top up the last group */
+		Group last = groups.isEmpty() ? null : groups.get(groups.size() - 1);
+		if ( last != null && size(last) < chunkSize ) {
+			Set<String> added = new LinkedHashSet<String>();
+			while ( it.hasNext() && size(last) + added.size() < chunkSize ) {
+				added.add(it.next());
+			}
+			last.live.addAll(added);
+			for ( String symbol : added ) {
+				bySymbol.put(symbol, last);
+			}
+			replace(last);
+		}
+		
+		/* and fill new ones */
+		while ( it.hasNext() ) {
+			Group group = new Group();
+			while ( it.hasNext() && group.live.size() < chunkSize ) {
+				String symbol = it.next();
+				group.live.add(symbol);
+				bySymbol.put(symbol, group);
+			}
+			groups.add(group);
+			replace(group);
+		}
+	}
+	
+	/**
+	 * Unsubscribe a symbol.
+	 * 
+	 * @param symbol
+	 */
+	synchronized void unsubscribe(String symbol) {
+		Group group = bySymbol.get(symbol);
+		if ( group == null || !group.live.remove(symbol) ) return;
+		
+		if ( group.live.isEmpty() ) {
+			cancel(group.requestId);
+			for ( String stale : group.stale ) {
+				forget(stale);
+			}
+			forget(symbol);
+			groups.remove(group);
+			return;
+		}
+		
+		group.stale.add(symbol);
+		if ( group.stale.size() > group.live.size() ) {
+			/* more noise than data; rebuild the request */
+			for ( String stale : group.stale ) {
+				forget(stale);
+			}
+			group.stale.clear();
+			replace(group);
+		}
+	}
+	
+	/**
+	 * Cancel all requests.
+	 */
+	synchronized void cancelAll() {
+		for ( Group group : groups ) {
+			cancel(group.requestId);
+		}
+		groups.clear();
+		for ( String symbol : bySymbol.keySet() ) {
+			strategy.forgetSymbol(symbol);
+		}
+		bySymbol.clear();
+		if ( retries != null ) {
+			retries.shutdownNow();
+			retries = null;
+		}
+		retryScheduled = false;
+	}
+	
+	/**
+	 * Returns the number of requests currently open.
+	 * 
+	 * @return
+	 */
+	synchronized int getRequestCount() {
+		int count = 0;
+		for ( Group group : groups ) {
+			if ( group.requestId > 0 ) count++;
+		}
+		return count;
+	}
+	
+	/**
+	 * Request the failed groups again.
+	 */
+	synchronized void retryFailed() {
+		retryScheduled = false;
+		for ( Group group : groups ) {
+			if ( group.failed ) {
+				replace(group);
+			}
+		}
+	}
+	
+	/**
+	 * Returns true if and only if market data is requested for the
+	 * symbol on behalf of the portfolio.
+	 * 
+	 * @param symbol
+	 * @return
+	 */
+	synchronized boolean isSubscribed(String symbol) {
+		Group group = bySymbol.get(symbol);
+		return group != null && group.live.contains(symbol);
+	}
+	
+	/**
+	 * Request the symbols of the group, and cancel its previous request
+	 * once the new one is open.  If the request fails, the previous one
+	 * is kept and the group is retried later.
+	 * 
+	 * @param group
+	 */
+	private void replace(Group group) {
+		int id = request(group);
+		if ( id <= 0 ) {
+			group.failed = true;
+			scheduleRetry();
+			return;
+		}
+		cancel(group.requestId);
+		group.requestId = id;
+		group.failed = false;
+	}
+	
+	private void scheduleRetry() {
+		if ( retryScheduled ) return;
+		retryScheduled = true;
+		if ( retries == null ) {
+			retries = Executors.newSingleThreadScheduledExecutor(
+					new DaemonThreadFactory("MarketDataRetry"));
+		}
+		retries.schedule(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					retryFailed();
+				} catch (RuntimeException e) {
+					logger.error(">>> Could not request market data again.", e);
+				}
+			}
+		}, RETRY_DELAY, TimeUnit.MILLISECONDS);
+	}
+	
+	private int request(Group group) {
+		Set<String> all = new LinkedHashSet<String>(group.live);
+		all.addAll(group.stale);
+		String[] symbols = all.toArray(new String[all.size()]);
+		
+		MarketDataRequest request = MarketDataRequest
+										.newRequest()
+										.withSymbols(symbols)
+										.fromProvider(provider)
+										.withContent(content);
+		int id = strategy.getFramework().requestMarketData(request);
+		if ( id > 0 ) {
+			logger.debug(">>> Market data id " + id + " for " + symbols.length + " symbols.");
+		} else {
+			logger.error(">>> Market data request for " + symbols.length + " symbols failed.");
+		}
+		return id;
+	}
+	
+	private void cancel(int requestId) {
+		if ( requestId > 0 ) {
+			strategy.getFramework().cancelDataRequest(requestId);
+		}
+	}
+	
+	/**
+	 * Drop a symbol that is no longer requested, also from conflation.
+	 * 
+	 * @param symbol
+	 */
+	private void forget(String symbol) {
+		bySymbol.remove(symbol);
+		strategy.forgetSymbol(symbol);
+	}
+	
+	private static int size(Group group) {
+		return group.live.size() + group.stale.size();
+	}
+	
+}
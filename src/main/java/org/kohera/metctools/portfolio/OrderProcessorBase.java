@@ -145,7 +145,7 @@ class OrderProcessorBase {
 
 					/* get the parent */
 					PortfolioStrategy parent = parentTrade.getParentStrategy();
-					pendingOrderId = order.getOrderID();
+					setPendingOrderId(order.getOrderID());
 					OrderProcessorBase.this.fillPolicy =
 						fillPolicy;
 
@@ -199,7 +199,7 @@ class OrderProcessorBase {
 
 			OrderCancel orderCancel = parentTrade.getParentStrategy().getFramework()
 					.cancelOrder(pendingOrderId, true);
-			cancelOrderId = orderCancel.getOrderID();
+			setCancelOrderId(orderCancel.getOrderID());
 
 			logger.debug(">>> Sending cancel order " + cancelOrderId + " to cancel " + pendingOrderId );
 
@@ -223,11 +223,11 @@ class OrderProcessorBase {
 				fillPolicy = null;
 			}
 
-			pendingOrderId = null;
+			setPendingOrderId(null);
 
 			if ( cancelOrderId!=null) {
 				logger.warn(">>> Failed to execute cancel order " + cancelOrderId );
-				cancelOrderId = null;
+				setCancelOrderId(null);
 			}
 
 
@@ -238,7 +238,8 @@ class OrderProcessorBase {
 	public final void cancelSuccess() {
 		synchronized(cancelLock) {
 			System.out.println("Cancel success");
-			cancelOrderId = pendingOrderId = null;
+			setCancelOrderId(null);
+			setPendingOrderId(null);
 			cancelLock.notify();
 			synchronized(transactionLock) {
 				transactionLock.notify();
@@ -254,11 +255,11 @@ class OrderProcessorBase {
 		synchronized(transactionLock) {
 			logger.trace(" --- Order transaction seems to have failed...");
 
-			pendingOrderId = null;
+			setPendingOrderId(null);
 
 			if ( cancelOrderId!=null) {
 				logger.warn(">>> Failed to execute cancel order " + cancelOrderId );
-				cancelOrderId = null;
+				setCancelOrderId(null);
 			}
 
 			transactionLock.notify();
@@ -270,6 +271,44 @@ class OrderProcessorBase {
 	}
 
 
+	/**
+	 * Sets the pending order id, and keeps the parent strategy's order
+	 * index up to date so that reports for the order can be routed to
+	 * the parent trade directly.
+	 * 
+	 * @param orderId
+	 */
+	private void setPendingOrderId( OrderID orderId ) {
+		unindex(pendingOrderId);
+		pendingOrderId = orderId;
+		index(orderId);
+	}
+	
+	/**
+	 * Sets the cancel order id, and keeps the order index up to date.
+	 * 
+	 * @param orderId
+	 */
+	private void setCancelOrderId( OrderID orderId ) {
+		unindex(cancelOrderId);
+		cancelOrderId = orderId;
+		index(orderId);
+	}
+	
+	private void index( OrderID orderId ) {
+		PortfolioStrategy parent = parentTrade.getParentStrategy();
+		if ( orderId != null && parent != null ) {
+			parent.indexOrder(orderId, parentTrade);
+		}
+	}
+	
+	private void unindex( OrderID orderId ) {
+		PortfolioStrategy parent = parentTrade.getParentStrategy();
+		if ( orderId != null && parent != null ) {
+			parent.unindexOrder(orderId, parentTrade);
+		}
+	}
+
 	/**
 	 * Checks that account info is in place and that there
 	 * is a parent strategy available to send the order.
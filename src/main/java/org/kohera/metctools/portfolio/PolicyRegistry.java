@@ -0,0 +1,112 @@
+package org.kohera.metctools.portfolio;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Names of fill, reject and order timeout policies, so that snapshots
+ * can refer to a policy by name instead of serializing the object.
+ *
+ * The pre-programmed policies in FillPolicies, RejectPolicies and
+ * OrderTimeoutPolicies are registered under their field names.  Custom
+ * policies must be registered, before a snapshot is written and before
+ * it is read, to survive a snapshot; a policy that is not registered is
+ * restored as the default policy.
+ *
+ */
+public final class PolicyRegistry {
+
+	/* name to policy, and policy to name by identity */
+	private static final Map<String,Object> policies =
+		new ConcurrentHashMap<String,Object>();
+	private static final Map<Object,String> names =
+		new IdentityHashMap<Object,String>();
+
+	static {
+		register("ON_FILL_WARN", FillPolicies.ON_FILL_WARN);
+		register("ON_REJECT_WARN", RejectPolicies.ON_REJECT_WARN);
+		register("ON_TIMEOUT_WARN", OrderTimeoutPolicies.ON_TIMEOUT_WARN);
+		register("ON_TIMEOUT_CANCEL", OrderTimeoutPolicies.ON_TIMEOUT_CANCEL);
+		register("ON_TIMEOUT_CANCEL_AND_CLOSE", OrderTimeoutPolicies.ON_TIMEOUT_CANCEL_AND_CLOSE);
+	}
+
+	private PolicyRegistry() { }
+
+	public static void register( String name, FillPolicy policy ) {
+		register(name, (Object)policy);
+	}
+
+	public static void register( String name, RejectPolicy policy ) {
+		register(name, (Object)policy);
+	}
+
+	public static void register( String name, OrderTimeoutPolicy policy ) {
+		register(name, (Object)policy);
+	}
+
+	/**
+	 * Returns the name of the given policy, or null if it is null or not
+	 * registered.
+	 *
+	 * @param policy
+	 * @return
+	 */
+	public static String nameOf( Object policy ) {
+		if ( policy == null ) return null;
+		synchronized(names) {
+			return names.get(policy);
+		}
+	}
+
+	/**
+	 * Returns the FillPolicy registered under the given name, or null.
+	 *
+	 * @param name
+	 * @return
+	 */
+	public static FillPolicy getFillPolicy( String name ) {
+		return lookup(name, FillPolicy.class);
+	}
+
+	/**
+	 * Returns the RejectPolicy registered under the given name, or null.
+	 *
+	 * @param name
+	 * @return
+	 */
+	public static RejectPolicy getRejectPolicy( String name ) {
+		return lookup(name, RejectPolicy.class);
+	}
+
+	/**
+	 * Returns the OrderTimeoutPolicy registered under the given name, or
+	 * null.
+	 *
+	 * @param name
+	 * @return
+	 */
+	public static OrderTimeoutPolicy getOrderTimeoutPolicy( String name ) {
+		return lookup(name, OrderTimeoutPolicy.class);
+	}
+
+	private static void register( String name, Object policy ) {
+		if ( name == null || policy == null ) {
+			throw new IllegalArgumentException(">>> Policy and name must not be null.");
+		}
+		synchronized(names) {
+			Object previous = policies.put(name, policy);
+			if ( previous != null ) {
+				names.remove(previous);
+			}
+			names.put(policy, name);
+		}
+	}
+
+	private static <T> T lookup( String name, Class<T> type ) {
+		if ( name == null ) return null;
+		Object policy = policies.get(name);
+		return type.isInstance(policy) ? type.cast(policy) : null;
+	}
+
+}
@@ -5,6 +5,7 @@ import java.math.BigDecimal;
 import java.util.Collection;
 
 import org.marketcetera.trade.BrokerID;
+import org.marketcetera.trade.MSymbol;
 
 public interface Portfolio extends Serializable {
 
@@ -48,7 +49,18 @@ public interface Portfolio extends Serializable {
 	 * @return
 	 */
 	public boolean hasTrade( String symbol );
-	
+
+	/**
+	 * Returns the signed position of the trade for this symbol as of its
+	 * last completed change, or zero if there is no such trade.  Unlike
+	 * the getters of the Trade, this may be called on any thread (e.g. for
+	 * monitoring), and never waits for the events being applied.
+	 *
+	 * @param symbol
+	 * @return
+	 */
+	public BigDecimal getPosition( String symbol );
+
 	/**
 	 * Returns the Trade object by symbol (or null).
 	 * 
@@ -58,7 +70,29 @@ public interface Portfolio extends Serializable {
 	public Trade getTrade( String symbol );
 	
 	/**
-	 * Returns a Collection of all the trades in this Portfolio.
+	 * Returns the Trade object by symbol id (see SymbolDictionary), or
+	 * null.  Unlike getTrade(), this never creates a trade.
+	 * 
+	 * @param symbolId
+	 * @return
+	 */
+	public Trade findTrade( int symbolId );
+	
+	/**
+	 * Returns the Trade object for the symbol of an event or report, or
+	 * null.  Unlike getTrade(), this never creates a trade.
+	 * 
+	 * @param symbol
+	 * @return
+	 */
+	public Trade findTrade( MSymbol symbol );
+	
+	/**
+	 * Returns a Collection of all the trades in this Portfolio.  The
+	 * collection is a live, weakly consistent view: it may be iterated
+	 * while trades are added or removed on other threads.  The trades are
+	 * in no particular order; in particular, not in the order in which
+	 * they were added.
 	 * 
 	 * @return
 	 */
@@ -66,19 +100,37 @@ public interface Portfolio extends Serializable {
 	
 	/**
 	 * Returns an array of symbols that represent the trades
-	 * in the Portfolio.
+	 * in the Portfolio, in no particular order (see getTrades()).
 	 * 
 	 * @return
 	 */
 	public Collection<String> getSymbols();
 	
 	/**
-	 * Performs an Action for each trade in the portfolio.
+	 * Performs an Action for each trade in the portfolio, in no particular
+	 * order (see getTrades()).  Trades added or removed meanwhile, on this
+	 * or other threads, may or may not be visited.
 	 * 
 	 * @param action
 	 */
 	public void forEach( Action action );
 	
+	/**
+	 * Performs an Action for each trade in the portfolio on up to
+	 * parallelism background threads, and returns at once.  This is meant
+	 * for actions that block, such as Actions.CLOSE_POSITION, which then
+	 * take about as long for the whole portfolio as for one trade.
+	 * 
+	 * The trades are those in the portfolio when this is called.  The
+	 * returned handle tells when the action has completed on every trade
+	 * and what the outcome was on each.
+	 * 
+	 * @param action
+	 * @param parallelism
+	 * @return
+	 */
+	public BulkAction forEachParallel( Action action, int parallelism );
+	
 	/**
 	 * Set the order timeout policy for the entire portfolio.
 	 * 
@@ -121,13 +173,22 @@ public interface Portfolio extends Serializable {
 	public void clearOrderTimeout();
 	
 	/**
-	 * Returns the sum of all signed positions in the portfolio, on
-	 * a best effort basis.  If some positions do not have a profit-loss,
-	 * they are ignored.
+	 * Returns the sum of all signed positions in the portfolio.  This is
+	 * maintained incrementally, so it may be called on every event.
 	 * 
 	 * @return
 	 */
 	public BigDecimal getTotalPosition();
+	
+	/**
+	 * Returns a consistent snapshot of the portfolio-wide aggregates: net
+	 * and gross position, long and short counts, pending quantity and
+	 * notional at the last price.  These are maintained incrementally, so
+	 * this may be called on every event.
+	 * 
+	 * @return
+	 */
+	public PortfolioAggregates getAggregates();
 
 	/**
 	 * Set the fill policy for the entire Portfolio.
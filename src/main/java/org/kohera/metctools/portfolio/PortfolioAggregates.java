@@ -0,0 +1,135 @@
+package org.kohera.metctools.portfolio;
+
+import java.math.BigDecimal;
+
+/**
+ * A consistent point-in-time snapshot of the portfolio-wide aggregates of
+ * a Portfolio (see Portfolio.getAggregates()), including the totals of
+ * the trades' profit-loss.
+ *
+ * The aggregates are maintained incrementally as the trades change, so
+ * taking a snapshot costs the same for any number of trades.
+ *
+ */
+public final class PortfolioAggregates {
+
+	/* fields */
+	private final BigDecimal 	netPosition;
+	private final BigDecimal 	grossPosition;
+	private final int 			longCount;
+	private final int 			shortCount;
+	private final BigDecimal 	pendingQuantity;
+	private final BigDecimal 	notional;
+	private final BigDecimal 	realizedProfitLoss;
+	private final BigDecimal 	unrealizedProfitLoss;
+
+	PortfolioAggregates( BigDecimal netPosition, BigDecimal grossPosition,
+			int longCount, int shortCount, BigDecimal pendingQuantity,
+			BigDecimal notional, BigDecimal realizedProfitLoss,
+			BigDecimal unrealizedProfitLoss ) {
+		this.netPosition = netPosition;
+		this.grossPosition = grossPosition;
+		this.longCount = longCount;
+		this.shortCount = shortCount;
+		this.pendingQuantity = pendingQuantity;
+		this.notional = notional;
+		this.realizedProfitLoss = realizedProfitLoss;
+		this.unrealizedProfitLoss = unrealizedProfitLoss;
+	}
+
+	/**
+	 * Returns the sum of the signed positions of the trades.
+	 *
+	 * @return
+	 */
+	public BigDecimal getNetPosition() {
+		return netPosition;
+	}
+
+	/**
+	 * Returns the sum of the absolute positions of the trades.
+	 *
+	 * @return
+	 */
+	public BigDecimal getGrossPosition() {
+		return grossPosition;
+	}
+
+	/**
+	 * Returns the number of trades with a long position.
+	 *
+	 * @return
+	 */
+	public int getLongCount() {
+		return longCount;
+	}
+
+	/**
+	 * Returns the number of trades with a short position.
+	 *
+	 * @return
+	 */
+	public int getShortCount() {
+		return shortCount;
+	}
+
+	/**
+	 * Returns the sum of the leaves quantities of the pending orders.
+	 *
+	 * @return
+	 */
+	public BigDecimal getPendingQuantity() {
+		return pendingQuantity;
+	}
+
+	/**
+	 * Returns the sum of the signed positions valued at the last price of
+	 * their symbols.  Positions in symbols without a last price count as
+	 * zero.
+	 *
+	 * @return
+	 */
+	public BigDecimal getNotional() {
+		return notional;
+	}
+
+	/**
+	 * Returns the sum of the realized profit-loss of the trades (see
+	 * Trade.getRealizedProfitLoss()), including trades that have been
+	 * removed.
+	 *
+	 * @return
+	 */
+	public BigDecimal getRealizedProfitLoss() {
+		return realizedProfitLoss;
+	}
+
+	/**
+	 * Returns the sum of the unrealized profit-loss of the open positions.
+	 *
+	 * @return
+	 */
+	public BigDecimal getUnrealizedProfitLoss() {
+		return unrealizedProfitLoss;
+	}
+
+	/**
+	 * Returns the total profit-loss in currency: the realized plus the
+	 * unrealized profit-loss.
+	 *
+	 * @return
+	 */
+	public BigDecimal getDollarProfitLoss() {
+		return realizedProfitLoss.add(unrealizedProfitLoss);
+	}
+
+	@Override
+	public String toString() {
+		return "net=" + netPosition.toPlainString() + " gross=" + grossPosition.toPlainString() +
+			" long=" + longCount + " short=" + shortCount +
+			" pending=" + pendingQuantity.toPlainString() + " notional=" + notional.toPlainString() +
+			" realized=" + realizedProfitLoss.toPlainString() +
+			" unrealized=" + unrealizedProfitLoss.toPlainString();
+	}
+
+}
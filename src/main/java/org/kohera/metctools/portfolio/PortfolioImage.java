@@ -0,0 +1,62 @@
+package org.kohera.metctools.portfolio;
+
+import org.marketcetera.trade.BrokerID;
+
+/**
+ * Point-in-time view of a portfolio, made of the portfolio's account
+ * information and default policies and the current TradeImage of each of
+ * its trades (see PortfolioImpl.capture()).
+ *
+ * journalSequence is the sequence number up to which every journal record
+ * is contained in the images; the records up to it can be discarded once
+ * the view has been written.
+ *
+ */
+final class PortfolioImage {
+
+	final BrokerID 				brokerId;
+	final String 				account;
+	final FillPolicy 			fillPolicy;
+	final OrderTimeoutPolicy 	orderTimeoutPolicy;
+	final RejectPolicy 			rejectPolicy;
+	final Long 					orderTimeout;
+	final long 					journalSequence;
+	final TradeImage[] 			trades;
+
+	PortfolioImage(BrokerID brokerId, String account, FillPolicy fillPolicy,
+			OrderTimeoutPolicy orderTimeoutPolicy, RejectPolicy rejectPolicy,
+			Long orderTimeout, long journalSequence, TradeImage[] trades) {
+		this.brokerId = brokerId;
+		this.account = account;
+		this.fillPolicy = fillPolicy;
+		this.orderTimeoutPolicy = orderTimeoutPolicy;
+		this.rejectPolicy = rejectPolicy;
+		this.orderTimeout = orderTimeout;
+		this.journalSequence = journalSequence;
+		this.trades = trades;
+	}
+
+	/**
+	 * Returns true if and only if the given view has the same portfolio
+	 * fields and trade images with the same state as this one, i.e.
+	 * nothing has changed in between.
+	 *
+	 * @param other
+	 * @return
+	 */
+	boolean isSameAs(PortfolioImage other) {
+		if ( other == null || other.trades.length != trades.length ) return false;
+		if ( other.brokerId != brokerId || other.account != account ||
+				other.fillPolicy != fillPolicy ||
+				other.orderTimeoutPolicy != orderTimeoutPolicy ||
+				other.rejectPolicy != rejectPolicy ||
+				other.orderTimeout != orderTimeout ) {
+			return false;
+		}
+		for ( int i = 0; i < trades.length; i++ ) {
+			if ( !trades[i].hasSameState(other.trades[i]) ) return false;
+		}
+		return true;
+	}
+
+}
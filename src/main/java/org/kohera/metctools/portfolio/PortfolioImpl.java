@@ -1,14 +1,42 @@
 package org.kohera.metctools.portfolio;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.math.BigDecimal;
+import java.util.Arrays;
 import java.util.Collection;
-import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import org.apache.log4j.Logger;
 import org.marketcetera.trade.BrokerID;
+import org.marketcetera.trade.MSymbol;
 
-
+/**
+ * The Portfolio of a PortfolioStrategy.
+ * 
+ * The portfolio may be read and changed on any thread.  Reads do not
+ * lock: lookups go through a ConcurrentHashMap and the table by symbol
+ * id, and forEach(), getTrades() and getSymbols() iterate weakly
+ * consistent views, which never throw ConcurrentModificationException
+ * and may or may not reflect trades added or removed meanwhile.  Since
+ * the trades are kept in a ConcurrentHashMap, these views (and
+ * toString()) are in hash order, not in the order in which the trades
+ * were added, as with the LinkedHashMap of earlier versions.
+ * 
+ * Changes are serialized per symbol on one of a number of lock stripes,
+ * so that adding or removing trades for different symbols does not
+ * contend.  Changing a default policy excludes adding trades for a
+ * moment, so that no trade misses the change.
+ * 
+ * The state of a Trade itself belongs to the thread that applies its
+ * events; other threads should read it through getPosition() or
+ * getAggregates().
+ * 
+ */
 final class PortfolioImpl implements Portfolio {
 
 	/**
@@ -16,17 +44,33 @@ final class PortfolioImpl implements Portfolio {
 	 */
 	private static final long serialVersionUID = -7913728982753589441L;
 	
+	/* number of lock stripes (a power of two) */
+	private static final int STRIPES = 16;
+	
 	/* trades */
 	transient private PortfolioStrategy	parentStrategy;
 	private Map<String,Trade>	trades;
+	transient private volatile
+		Trade[]					tradesById;		// indexed by SymbolDictionary id
+	transient private
+		Aggregator				aggregator;		// incrementally maintained aggregates
 	private BrokerID			brokerId;
 	private String				account;
 	
+	/* locks */
+	transient private Object[]	stripes;		// serialize the changes of a symbol's trade
+	transient private Object	tableLock;		// guards the writes to tradesById
+	transient private
+		ReadWriteLock			policyLock;		// read: adding a trade; write: changing a default
+	
 	/* default policies */
-	private FillPolicy 			fillPolicy;
-	private OrderTimeoutPolicy 	orderTimeoutPolicy;
-	private RejectPolicy 		rejectPolicy;
-	private Long 				orderTimeout;
+	private volatile FillPolicy 		fillPolicy;
+	private volatile OrderTimeoutPolicy orderTimeoutPolicy;
+	private volatile RejectPolicy 		rejectPolicy;
+	private volatile Long 				orderTimeout;
+	
+	/* sequence of the last journal record contained in the snapshot */
+	private long				journalSequence;
 	
 
 	/* logging */
@@ -38,8 +82,11 @@ final class PortfolioImpl implements Portfolio {
 	 * 
 	 */
 	public PortfolioImpl(PortfolioStrategy parent) {
-		trades = new LinkedHashMap<String,Trade>();
+		trades = new ConcurrentHashMap<String,Trade>(16, 0.75f, STRIPES);
+		tradesById = new Trade[0];
+		aggregator = new Aggregator();
 		parentStrategy = parent;
+		initLocks();
 	}
 	
 	@Override
@@ -72,43 +119,15 @@ final class PortfolioImpl implements Portfolio {
 	public void addTrade(Trade trade) {
 		
 		if ( trade == null ) return;
-		String symbol = trade.getSymbol();
-		
-		/* if the trade exists, but is not open, you can
-		 * replace it.  Otherwise, there is an error.
-		 */
-		if ( trades.containsKey(symbol) ) {
-			if ( trades.get(symbol).isOpen() ) {
-				logger.error(">>> Trade for symbol " + 
-						symbol + " already exists and is open.");
-				return;
-			}
-			logger.warn(">>> Removing current zero-position trade for " + 
-					symbol + " and replacing...");
-		} 
-
-		/* set the policies for the trades from the portfolio,
-		 * unless they are already customized
-		 */
-		if ( orderTimeoutPolicy!=null ) {
-			trade.setOrderTimeoutPolicy(orderTimeoutPolicy);
+		Journal journal = parentStrategy == null ? null : parentStrategy.getJournal();
+		if ( journal != null ) {
+			trade.createdAfter(journal.getSequence());
 		}
-		
-		if ( orderTimeout != null ) {
-			trade.setOrderTimeout( orderTimeout.longValue());
+		if ( !put(trade, false) ) return;
+		if ( parentStrategy != null ) {
+			parentStrategy.tradeAdded(trade);
 		}
 		
-		if ( fillPolicy != null ) {
-			trade.setFillPolicy(fillPolicy);
-		}
-		
-		if ( rejectPolicy != null ) {
-			trade.setRejectPolicy(rejectPolicy);
-		}
-		
-		trade.setParentPortfolio(this);
-		trades.put(symbol,trade);
-		
 		/* logging */
 		logger.trace(">>> Added trade to portfolio: " + trade);
 	}
@@ -120,11 +139,30 @@ final class PortfolioImpl implements Portfolio {
 		}
 	}
 
+	@Override
+	public BulkAction forEachParallel(Action action, int parallelism) {
+		BulkAction bulk = new BulkAction(action, trades.values());
+		bulk.start(parallelism);
+		return bulk;
+	}
+
 	@Override
 	public Trade getTrade(String symbol) {
 		return createTrade(symbol);
 	}
 	
+	@Override
+	public Trade findTrade(int symbolId) {
+		Trade[] table = tradesById;
+		if ( symbolId < 0 || symbolId >= table.length ) return null;
+		return table[symbolId];
+	}
+	
+	@Override
+	public Trade findTrade(MSymbol symbol) {
+		return findTrade(SymbolDictionary.lookup(symbol));
+	}
+	
 	@Override
 	public Collection<Trade> getTrades() {
 		return trades.values();
@@ -132,7 +170,15 @@ final class PortfolioImpl implements Portfolio {
 
 	@Override
 	public boolean hasTrade(String symbol) {
-		return trades.containsKey(symbol);
+		return findTrade(SymbolDictionary.lookup(symbol)) != null;
+	}
+	
+	@Override
+	public BigDecimal getPosition(String symbol) {
+		Trade trade = findTrade(SymbolDictionary.lookup(symbol));
+		TradeImage image = trade == null ? null : trade.getImage();
+		if ( image == null ) return BigDecimal.ZERO;
+		return FixedPoint.toDecimal(image.side.polarize(image.quantity));
 	}
 
 	@Override
@@ -147,11 +193,30 @@ final class PortfolioImpl implements Portfolio {
 	
 	@Override
 	public void forcefullyRemoveTrade(Trade trade) {
-		trade.unsetParentPortfolio();
-		trades.remove(trade.getSymbol());
+		Journal journal = parentStrategy == null ? null : parentStrategy.getJournal();
+		if ( discardTrade(trade) && journal != null ) {
+			/* so that replaying the journal does not create it again */
+			journal.appendRemove(trade);
+		}
 		/* logging */
 		logger.trace(">>> Removed, if it existed, from portfolio the trade: " + trade);
 	}
+	
+	/**
+	 * Remove a trade from the portfolio without journaling the removal
+	 * (see Journal.replay()).  Returns true if it was in the portfolio.
+	 * 
+	 * @param trade
+	 * @return
+	 */
+	boolean discardTrade(Trade trade) {
+		trade.unsetParentPortfolio();
+		if ( !unindex(trade) ) return false;
+		if ( parentStrategy != null ) {
+			parentStrategy.tradeRemoved(trade);
+		}
+		return true;
+	}
 
 	@Override
 	public void removeTrade(String symbol) {
@@ -165,13 +230,19 @@ final class PortfolioImpl implements Portfolio {
 	
 	@Override
 	public void setFillPolicy(final FillPolicy policy) {
-		fillPolicy = policy;
-		forEach( new Action() {
-			@Override
-			public void performAction(Trade trade) {
-				trade.setFillPolicy(policy);
-			}
-		});
+		Lock lock = policyLock.writeLock();
+		lock.lock();
+		try {
+			fillPolicy = policy;
+			forEach( new Action() {
+				@Override
+				public void performAction(Trade trade) {
+					trade.setFillPolicy(policy);
+				}
+			});
+		} finally {
+			lock.unlock();
+		}
 	}
 	
 	@Override
@@ -181,13 +252,19 @@ final class PortfolioImpl implements Portfolio {
 
 	@Override
 	public void setRejectPolicy(final RejectPolicy policy) {
-		rejectPolicy = policy;
-		forEach( new Action() {
-			@Override
-			public void performAction(Trade trade) {
-				trade.setRejectPolicy(policy);
-			}
-		});
+		Lock lock = policyLock.writeLock();
+		lock.lock();
+		try {
+			rejectPolicy = policy;
+			forEach( new Action() {
+				@Override
+				public void performAction(Trade trade) {
+					trade.setRejectPolicy(policy);
+				}
+			});
+		} finally {
+			lock.unlock();
+		}
 	}
 	
 	@Override
@@ -197,13 +274,19 @@ final class PortfolioImpl implements Portfolio {
 	
 	@Override
 	public void setOrderTimeoutPolicy(final OrderTimeoutPolicy policy) {
-		orderTimeoutPolicy = policy;
-		forEach( new Action() {
-			@Override
-			public void performAction(Trade trade) {
-				trade.setOrderTimeoutPolicy(policy);
-			}
-		});
+		Lock lock = policyLock.writeLock();
+		lock.lock();
+		try {
+			orderTimeoutPolicy = policy;
+			forEach( new Action() {
+				@Override
+				public void performAction(Trade trade) {
+					trade.setOrderTimeoutPolicy(policy);
+				}
+			});
+		} finally {
+			lock.unlock();
+		}
 	}
 	
 	@Override
@@ -218,22 +301,29 @@ final class PortfolioImpl implements Portfolio {
 
 	@Override
 	public void setOrderTimeout(final long timeout) {
-		orderTimeout = Long.valueOf(timeout);
-		forEach( new Action() {
-			@Override
-			public void performAction(Trade trade) {
-				trade.setOrderTimeout(timeout);
-			}
-		});
+		Lock lock = policyLock.writeLock();
+		lock.lock();
+		try {
+			orderTimeout = Long.valueOf(timeout);
+			forEach( new Action() {
+				@Override
+				public void performAction(Trade trade) {
+					trade.setOrderTimeout(timeout);
+				}
+			});
+		} finally {
+			lock.unlock();
+		}
 	}
 
 	@Override
 	public BigDecimal getTotalPosition() {
-		BigDecimal sum = BigDecimal.ZERO;
-		for ( Trade t : trades.values() ) {
-			sum = sum.add(t.getSignedQty());
-		}
-		return sum;
+		return aggregator.getNetPosition();
+	}
+
+	@Override
+	public PortfolioAggregates getAggregates() {
+		return aggregator.snapshot();
 	}
 
 	@Override
@@ -248,11 +338,36 @@ final class PortfolioImpl implements Portfolio {
 
 	@Override
 	public Trade createTrade(String symbol) {
-		if (trades.containsKey(symbol) ) return trades.get(symbol);
+		Journal journal = parentStrategy == null ? null : parentStrategy.getJournal();
+		return createTrade(symbol, journal == null ? 0 : journal.getSequence());
+	}
+	
+	/**
+	 * Create a trade as above, put into the portfolio after the journal
+	 * record with the given sequence number (0 for a trade created by
+	 * replaying the journal).
+	 * 
+	 * @param symbol
+	 * @param journalSequence
+	 * @return
+	 */
+	Trade createTrade(String symbol, long journalSequence) {
+		Trade existing = findTrade(SymbolDictionary.lookup(symbol));
+		if ( existing != null ) return existing;
 		
 		Trade trade =
 			new Trade(symbol,this);
-		addTrade(trade);
+		if ( journalSequence > 0 ) {
+			trade.createdAfter(journalSequence);
+		}
+		if ( !put(trade, true) ) {
+			/* another thread created it first */
+			return findTrade(trade.getSymbolId());
+		}
+		if ( parentStrategy != null ) {
+			parentStrategy.tradeAdded(trade);
+		}
+		logger.trace(">>> Added trade to portfolio: " + trade);
 		return trade;
 	}
 	
@@ -275,6 +390,248 @@ final class PortfolioImpl implements Portfolio {
 
 	@Override
 	public void wipe() {
-		trades.clear();
+		for ( Trade trade : trades.values() ) {
+			if ( unindex(trade) && parentStrategy != null ) {
+				parentStrategy.tradeRemoved(trade);
+			}
+		}
+	}
+	
+	/**
+	 * Returns the sequence number up to which the journal records were
+	 * contained in the snapshot this portfolio was restored from.
+	 * 
+	 * @return
+	 */
+	long getJournalSequence() {
+		return journalSequence;
+	}
+	
+	/**
+	 * Returns the table of trades by symbol id, which may contain nulls.
+	 * Entries are written under a lock and the table is republished
+	 * through a volatile field, so it may be read on any thread.
+	 * 
+	 * @return
+	 */
+	Trade[] getTradeTable() {
+		return tradesById;
+	}
+	
+	/**
+	 * Capture a point-in-time view of this portfolio from the current
+	 * images of its trades.  This only reads volatile references, so it
+	 * may be called on any thread without stopping the threads that apply
+	 * events, and takes microseconds even for large portfolios.
+	 * 
+	 * Each trade image is consistent in itself.  The journal sequence of
+	 * the view is lowered below any record that has been appended but is
+	 * not yet in its trade's image, so that discarding the records up to
+	 * it never loses a change.
+	 * 
+	 * @return
+	 */
+	PortfolioImage capture() {
+		Journal journal = parentStrategy == null ? null : parentStrategy.getJournal();
+		long through = journal == null ? journalSequence : journal.getSequence();
+		
+		/* read after the sequence, so that every trade journaled up to it is seen */
+		Trade[] table = tradesById;
+		TradeImage[] images = new TradeImage[table.length];
+		int count = 0;
+		for ( Trade trade : table ) {
+			if ( trade == null ) continue;
+			/* read the pending sequence before the image */
+			long pending = trade.getPendingSequence();
+			if ( pending > 0 && pending <= through ) {
+				through = pending - 1;
+			}
+			images[count++] = trade.getSnapshotImage();
+		}
+		return new PortfolioImage(brokerId, account, fillPolicy, orderTimeoutPolicy,
+				rejectPolicy, orderTimeout, through, Arrays.copyOf(images, count));
+	}
+	
+	/**
+	 * Restore the account information, default policies and journal
+	 * sequence of a snapshot view.
+	 * 
+	 * @param image
+	 */
+	void restore(PortfolioImage image) {
+		brokerId = image.brokerId;
+		account = image.account;
+		fillPolicy = image.fillPolicy;
+		orderTimeoutPolicy = image.orderTimeoutPolicy;
+		rejectPolicy = image.rejectPolicy;
+		orderTimeout = image.orderTimeout;
+		journalSequence = image.journalSequence;
+	}
+	
+	/**
+	 * Put a restored trade into the portfolio as it is, without applying
+	 * the default policies or notifying the parent strategy.
+	 * 
+	 * @param trade
+	 */
+	void restoreTrade(Trade trade) {
+		synchronized(stripeOf(trade)) {
+			trades.put(trade.getSymbol(), trade);
+			index(trade);
+		}
+	}
+	
+	// PRIVATE METHODS //
+	
+	/**
+	 * Put a new trade into the portfolio with the default policies, unless
+	 * there already is an open trade for its symbol (or, if onlyIfAbsent,
+	 * any trade).  Returns true if the trade was put.
+	 * 
+	 * @param trade
+	 * @param onlyIfAbsent
+	 * @return
+	 */
+	private boolean put(Trade trade, boolean onlyIfAbsent) {
+		String symbol = trade.getSymbol();
+		Lock lock = policyLock.readLock();
+		lock.lock();
+		try {
+			synchronized(stripeOf(trade)) {
+				
+				/* if the trade exists, but is not open, you can
+				 * replace it.  Otherwise, there is an error.
+				 */
+				Trade current = trades.get(symbol);
+				if ( current != null ) {
+					if ( onlyIfAbsent ) return false;
+					if ( current.isOpen() ) {
+						logger.error(">>> Trade for symbol " + 
+								symbol + " already exists and is open.");
+						return false;
+					}
+					logger.warn(">>> Removing current zero-position trade for " + 
+							symbol + " and replacing...");
+				}
+				
+				/* set the policies for the trades from the portfolio,
+				 * unless they are already customized
+				 */
+				if ( orderTimeoutPolicy!=null ) {
+					trade.setOrderTimeoutPolicy(orderTimeoutPolicy);
+				}
+				
+				Long timeout = orderTimeout;
+				if ( timeout != null ) {
+					trade.setOrderTimeout( timeout.longValue());
+				}
+				
+				if ( fillPolicy != null ) {
+					trade.setFillPolicy(fillPolicy);
+				}
+				
+				if ( rejectPolicy != null ) {
+					trade.setRejectPolicy(rejectPolicy);
+				}
+				
+				trade.setParentPortfolio(this);
+				trades.put(symbol,trade);
+				index(trade);
+				return true;
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Take a trade out of the portfolio, if it is still in it.  Returns
+	 * true if it was.
+	 * 
+	 * @param trade
+	 * @return
+	 */
+	private boolean unindex(Trade trade) {
+		synchronized(stripeOf(trade)) {
+			if ( trades.get(trade.getSymbol()) != trade ) return false;
+			trades.remove(trade.getSymbol());
+			setEntry(trade.getSymbolId(), null);
+			aggregator.remove(trade);
+			return true;
+		}
+	}
+	
+	/**
+	 * Enter a trade in the table by symbol id.  Called under the trade's
+	 * stripe.
+	 * 
+	 * @param trade
+	 */
+	private void index(Trade trade) {
+		Trade previous = setEntry(trade.getSymbolId(), trade);
+		if ( previous != null && previous != trade ) {
+			aggregator.remove(previous);
+		}
+		aggregator.add(trade);
+	}
+	
+	/**
+	 * Set the entry of the table for the given symbol id, growing the
+	 * table if needed, and return the previous entry.
+	 * 
+	 * @param id
+	 * @param trade
+	 * @return
+	 */
+	private Trade setEntry(int id, Trade trade) {
+		synchronized(tableLock) {
+			Trade[] table = tradesById;
+			if ( id >= table.length ) {
+				if ( trade == null ) return null;
+				table = Arrays.copyOf(table, Math.max(id + 1, table.length << 1));
+			}
+			Trade previous = table[id];
+			table[id] = trade;
+			/* publish the entry to findTrade() and capture() */
+			tradesById = table;
+			return previous;
+		}
+	}
+	
+	/**
+	 * Returns the lock stripe of the given trade's symbol.
+	 * 
+	 * @param trade
+	 * @return
+	 */
+	private Object stripeOf(Trade trade) {
+		return stripes[trade.getSymbolId() & (STRIPES - 1)];
+	}
+	
+	private void initLocks() {
+		stripes = new Object[STRIPES];
+		for ( int i = 0; i < STRIPES; i++ ) {
+			stripes[i] = new Object();
+		}
+		tableLock = new Object();
+		policyLock = new ReentrantReadWriteLock();
+	}
+	
+	// SERIALIZATION //
+	
+	private void readObject(ObjectInputStream in) 
+		throws IOException, ClassNotFoundException {
+		in.defaultReadObject();
+		initLocks();
+		/* written by earlier versions as a LinkedHashMap */
+		if ( !(trades instanceof ConcurrentHashMap) ) {
+			trades = new ConcurrentHashMap<String,Trade>(trades);
+		}
+		/* symbol ids are per JVM; rebuild the table and the aggregates */
+		tradesById = new Trade[0];
+		aggregator = new Aggregator();
+		for ( Trade trade : trades.values() ) {
+			index(trade);
+		}
 	}
 }
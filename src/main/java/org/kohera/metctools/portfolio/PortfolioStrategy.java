@@ -1,16 +1,18 @@
 package org.kohera.metctools.portfolio;
 
+import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.math.BigDecimal;
 import java.util.Collection;
-import java.util.Date;
 import java.util.HashSet;
-import java.util.Map;
+import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
 
 import org.apache.log4j.Logger;
 import org.kohera.metctools.DelegatorStrategy;
@@ -19,13 +21,13 @@ import org.kohera.metctools.delegate.AskDelegate;
 import org.kohera.metctools.delegate.BidDelegate;
 import org.kohera.metctools.delegate.ExecutionReportDelegate;
 import org.kohera.metctools.delegate.OrderCancelRejectDelegate;
+import org.kohera.metctools.delegate.StopDelegate;
 import org.kohera.metctools.delegate.TradeDelegate;
 import org.marketcetera.client.ClientInitException;
-import org.marketcetera.core.position.PositionKey;
 import org.marketcetera.event.AskEvent;
 import org.marketcetera.event.BidEvent;
 import org.marketcetera.event.TradeEvent;
-import org.marketcetera.marketdata.MarketDataRequest;
+import org.marketcetera.marketdata.MarketDataRequest.Content;
 import org.marketcetera.module.ModuleStateException;
 import org.marketcetera.trade.ExecutionReport;
 import org.marketcetera.trade.OrderCancelReject;
@@ -49,75 +51,185 @@ import org.marketcetera.trade.OrderID;
  *   is automatically updated.  A Trade object will also obey order timeouts,
  *   order timeout policies, and fill polices when they are set for the
  *   entire portfolio.
+ *   
+ *   By default, events are applied to the trades on the thread that
+ *   delivers them.  After enableSharding() is called, the trades are
+ *   partitioned by symbol across a number of worker threads instead, and
+ *   each event is applied by the thread that owns its trade (see
+ *   TradeShards), so that a large portfolio can use several cores.
+ *   
+ *   If a journal is opened with openJournal(), every accepted execution
+ *   report and position override is journaled before it changes a Trade.
+ *   startCheckpoints() then writes snapshots in the background at a fixed
+ *   interval, without pausing the threads that apply events, and discards
+ *   the records each snapshot contains (see Checkpointer);
+ *   recoverPortfolio() loads the snapshot and replays the rest.  Other
+ *   snapshots written with serializePortfolio() do not discard records.
+ *   
+ *   startReconciliation() compares the trades' positions with the ORS in
+ *   the background and corrects those that have drifted and have no order
+ *   pending (see PositionReconciler and getReconciliationStatistics()).
  * 
  * @author Jake Brukhman
  *
  */
 public abstract class PortfolioStrategy extends DelegatorStrategy {
 
+	/* default maximum number of symbols per market data request */
+	public static final int DEFAULT_DATA_CHUNK_SIZE = 500;
+	
 	/* logging */
 	private final static Logger logger = Logger.getLogger(PortfolioStrategy.class);
 	
 	/**
-	 * Internal class that routes execution reports to the appropriate
-	 * trades in the portfolio.
+	 * Internal class that routes execution reports, trades and quotes to
+	 * the appropriate trades in the portfolio.
 	 * 
 	 * @author Administrator
 	 *
 	 */
 	class TradeRouter implements ExecutionReportDelegate, TradeDelegate, 
-		BidDelegate, AskDelegate, OrderCancelRejectDelegate {
+		BidDelegate, AskDelegate, OrderCancelRejectDelegate, StopDelegate {
+		
+		private final AccountMatcher accountMatcher = new AccountMatcher();
 		
 		@Override
-		public void onExecutionReport(DelegatorStrategy sender,
-				ExecutionReport report) {
-			String symbol = report.getSymbol().toString();
-			if ( portfolio.hasTrade(symbol) && report.getAccount().equals(portfolio.getAccount()) ) {
-				portfolio.getTrade(symbol)
-					.acceptExecutionReport(PortfolioStrategy.this, report);
+		public void onExecutionReport(final DelegatorStrategy sender,
+				final ExecutionReport report) {
+			runTasks();
+			
+			/* reports for our own orders are found by order id */
+			Trade trade = getTradeByOrderId(report.getOrderID());
+			if ( trade == null && report.getOriginalOrderID() != null ) {
+				trade = getTradeByOrderId(report.getOriginalOrderID());
+			}
+			if ( trade == null || trade.getParentPortfolio() != portfolio ) {
+				trade = portfolio.findTrade(report.getSymbol());
+				if ( trade == null || !accountMatcher.matches(portfolio.getAccount(), report.getAccount()) ) {
+					// TODO: clean up
+					logger.debug(">>> Received external execution report. (Ignoring.)");
+					logger.trace(">>> Report: " + report );
+					return;
+				}
+			}
+			
+			final Trade target = trade;
+			TradeShards current = shards;
+			if ( current == null ) {
+				target.applyExecutionReport(PortfolioStrategy.this, report);
 			} else {
-				// TODO: clean up
-				logger.debug(">>> Received external execution report. (Ignoring.)");
-				logger.trace(">>> Report: " + report );
+				current.execute(target, new TradeShards.Task() {
+					@Override
+					void perform() {
+						target.applyExecutionReport(PortfolioStrategy.this, report);
+					}
+				});
 			}
 		}
 
 		@Override
-		public void onTrade(DelegatorStrategy sender, TradeEvent tradeEvent) {
-			String symbol = tradeEvent.getSymbol().toString();
-			if ( portfolio.hasTrade(symbol) ) {
-				portfolio.getTrade(symbol)
-					.acceptTradeEvent(tradeEvent);
-			} else {
+		public void onTrade(DelegatorStrategy sender, final TradeEvent tradeEvent) {
+			runTasks();
+			final Trade trade = portfolio.findTrade(tradeEvent.getSymbol());
+			if ( trade == null ) {
 				// TODO: clean up
 				logger.warn(">>> Received external trade event. (Ignoring.)");
-				logger.trace(">>> ...for symbol " + symbol + ".");
+				logger.trace(">>> ...for symbol " + tradeEvent.getSymbol() + ".");
+				return;
+			}
+			TradeShards current = shards;
+			if ( current == null ) {
+				trade.acceptTradeEvent(tradeEvent);
+			} else {
+				current.execute(trade, new TradeShards.Task() {
+					@Override
+					void perform() {
+						trade.acceptTradeEvent(tradeEvent);
+					}
+				});
 			}
 		}
 
 		@Override
-		public void onBid(DelegatorStrategy sender, BidEvent bidEvent) {
-			// TODO Auto-generated method stub
-			
+		public void onBid(DelegatorStrategy sender, final BidEvent bidEvent) {
+			runTasks();
+			final Trade trade = portfolio.findTrade(bidEvent.getSymbol());
+			if ( trade == null ) {
+				logger.debug(">>> Received external bid event. (Ignoring.)");
+				logger.trace(">>> ...for symbol " + bidEvent.getSymbol() + ".");
+				return;
+			}
+			TradeShards current = shards;
+			if ( current == null ) {
+				trade.acceptBidEvent(bidEvent);
+			} else {
+				current.execute(trade, new TradeShards.Task() {
+					@Override
+					void perform() {
+						trade.acceptBidEvent(bidEvent);
+					}
+				});
+			}
 		}
 
 		@Override
-		public void onAsk(DelegatorStrategy sender, AskEvent askEvent) {
-			// TODO Auto-generated method stub
-			
+		public void onAsk(DelegatorStrategy sender, final AskEvent askEvent) {
+			runTasks();
+			final Trade trade = portfolio.findTrade(askEvent.getSymbol());
+			if ( trade == null ) {
+				logger.debug(">>> Received external ask event. (Ignoring.)");
+				logger.trace(">>> ...for symbol " + askEvent.getSymbol() + ".");
+				return;
+			}
+			TradeShards current = shards;
+			if ( current == null ) {
+				trade.acceptAskEvent(askEvent);
+			} else {
+				current.execute(trade, new TradeShards.Task() {
+					@Override
+					void perform() {
+						trade.acceptAskEvent(askEvent);
+					}
+				});
+			}
 		}
 
 		@Override
 		public void onCancelReject(DelegatorStrategy sender,
-				OrderCancelReject reject) {
+				final OrderCancelReject reject) {
+			runTasks();
+			
+			/* the trade with such a pending order, if any */
 			OrderID orderId = reject.getOriginalOrderID();
-			if ( portfolio!=null) {
-				for ( Trade trade : portfolio.getTrades() ) {
-					/* if there is a trade with such a pending order */
-					if ( orderId.equals(trade.getPendingOrderId())) {
+			final Trade trade = getTradeByOrderId(orderId);
+			if ( trade == null || !orderId.equals(trade.getPendingOrderId()) ) {
+				logger.debug(">>> Received cancel reject for unknown order " + 
+						orderId + ". (Ignoring.)");
+				return;
+			}
+			TradeShards current = shards;
+			if ( current == null ) {
+				trade.acceptCancelReject(reject);
+			} else {
+				current.execute(trade, new TradeShards.Task() {
+					@Override
+					void perform() {
 						trade.acceptCancelReject(reject);
 					}
-				}
+				});
+			}
+		}
+
+		@Override
+		public void onStop(DelegatorStrategy sender) {
+			/* let the shards apply what they have queued */
+			runTasks();
+			disableSharding();
+			stopCheckpoints();
+			stopReconciliation();
+			Journal current = journal;
+			if ( current != null ) {
+				current.sync();
 			}
 		}
 		
@@ -125,8 +237,17 @@ public abstract class PortfolioStrategy extends DelegatorStrategy {
 	
 	/* fields */
 	private Portfolio portfolio;
-	private Integer dataRequestId;
+	private final ConcurrentMap<OrderID,Trade> orders;	// pending and cancel order ids
+	private volatile TradeShards shards;				// null unless sharded
+	private final Queue<TradeShards.Task> tasks;		// run by the TradeRouter (see execute())
 	private String dataProvider;
+	private Content[] dataContent;
+	private int dataChunkSize;
+	private volatile MarketDataSubscriptions subscriptions;	// null while market data is off
+	private volatile Journal journal;					// null unless journaling
+	private volatile Checkpointer checkpointer;			// null unless checkpointing
+	private final Object snapshotLock = new Object();	// serializes snapshot writes
+	private PositionReconciler reconciler;				// null unless reconciling
 		
 	/**
 	 * Create a new instance of a PortfolioStrategy.
@@ -138,7 +259,10 @@ public abstract class PortfolioStrategy extends DelegatorStrategy {
 		super();
 		
 		portfolio = new PortfolioImpl(this);
-		dataRequestId = null;
+		orders = new ConcurrentHashMap<OrderID,Trade>();
+		tasks = new ConcurrentLinkedQueue<TradeShards.Task>();
+		dataContent = new Content[] { Content.LATEST_TICK };
+		dataChunkSize = DEFAULT_DATA_CHUNK_SIZE;
 		
 		/* route execution reports and trades (ticks) to the portfolio */
 		addDelegate( new TradeRouter() );
@@ -171,33 +295,316 @@ public abstract class PortfolioStrategy extends DelegatorStrategy {
 		return portfolio;
 	}
 	
+	/**
+	 * Apply events to the trades on the given number of worker threads,
+	 * partitioned by symbol.  Each trade is only changed by the thread of
+	 * its shard, and the events of each symbol keep their order.
+	 * 
+	 * Trade hooks (onTradeEvent(), onExecutionReport(), ...) and fill,
+	 * reject and timeout policies triggered by events then run on the shard
+	 * threads, concurrently for trades in different shards.
+	 * 
+	 * Calling this method again replaces the shards; the events queued in
+	 * the old ones are applied first.
+	 * 
+	 * @param count
+	 */
+	public synchronized void enableSharding( int count ) {
+		TradeShards next = new TradeShards(count);
+		TradeShards previous = shards;
+		if ( previous != null ) {
+			previous.shutdown();
+		}
+		shards = next;
+		logger.info(">>> Routing trades on " + count + " shards.");
+	}
+	
+	/**
+	 * Apply events to the trades on the delivering thread again.  The
+	 * events queued in the shards are applied before this method returns.
+	 */
+	public synchronized void disableSharding() {
+		TradeShards previous = shards;
+		if ( previous == null ) return;
+		shards = null;
+		previous.shutdown();
+		logger.info(">>> Sharded routing stopped.");
+	}
+	
+	/**
+	 * Returns the number of shards, or 0 if events are applied on the
+	 * delivering thread.
+	 * 
+	 * @return
+	 */
+	public int getShardCount() {
+		TradeShards current = shards;
+		return current == null ? 0 : current.getShardCount();
+	}
+	
+	/**
+	 * Returns the Trade with the given pending or cancel order id, or null.
+	 * 
+	 * @param orderId
+	 * @return
+	 */
+	public Trade getTradeByOrderId( OrderID orderId ) {
+		if ( orderId == null ) return null;
+		return orders.get(orderId);
+	}
+	
+	/**
+	 * Record that an order has been sent for a trade.  Called by the
+	 * trade's OrderProcessor.
+	 * 
+	 * @param orderId
+	 * @param trade
+	 */
+	void indexOrder( OrderID orderId, Trade trade ) {
+		orders.put(orderId, trade);
+	}
+	
+	/**
+	 * Forget an order of a trade once it is no longer pending.
+	 * 
+	 * @param orderId
+	 * @param trade
+	 */
+	void unindexOrder( OrderID orderId, Trade trade ) {
+		orders.remove(orderId, trade);
+	}
+	
+	/**
+	 * Journal every accepted execution report and position override to the
+	 * given file, forcing records to disk according to the sync policy (see
+	 * Journal).  Records already in the file are kept, so that they can be
+	 * replayed by recoverPortfolio().  Returns false if the file could not
+	 * be opened.
+	 * 
+	 * @param file
+	 * @param policy
+	 * @return
+	 */
+	public boolean openJournal( String file, JournalSyncPolicy policy ) {
+		return openJournal(file, policy, Journal.DEFAULT_GROUP_SIZE, Journal.DEFAULT_SYNC_INTERVAL);
+	}
+	
+	/**
+	 * Journal to the given file, with the given group size and sync interval
+	 * (in milliseconds) for the GROUP_COMMIT and ASYNC policies.
+	 * 
+	 * @param file
+	 * @param policy
+	 * @param groupSize
+	 * @param syncInterval
+	 * @return
+	 */
+	public synchronized boolean openJournal( String file, JournalSyncPolicy policy,
+			int groupSize, long syncInterval ) {
+		closeJournal();
+		try {
+			journal = new Journal(file, policy, groupSize, syncInterval, Journal.DEFAULT_CAPACITY);
+		} catch (IOException e) {
+			logger.error(">>> Could not open journal " + file + ". (" + e.getMessage() + ")");
+			return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * Stop journaling, and force the journal to disk.
+	 */
+	public synchronized void closeJournal() {
+		Journal previous = journal;
+		if ( previous == null ) return;
+		journal = null;
+		previous.close();
+	}
+	
+	/**
+	 * Write a snapshot of the portfolio to the given file in the background
+	 * every interval milliseconds, and discard the journal records it
+	 * contains.  Checkpoints are skipped while nothing changes, and a last
+	 * one is written when they are stopped.
+	 * 
+	 * @param file
+	 * @param intervalMillis
+	 */
+	public synchronized void startCheckpoints( String file, long intervalMillis ) {
+		stopCheckpoints();
+		checkpointer = new Checkpointer(this, file, intervalMillis);
+		logger.info(">>> Checkpointing portfolio to " + file + " every " + intervalMillis + " ms.");
+	}
+	
+	/**
+	 * Stop the background checkpoints, after writing a last one.
+	 */
+	public synchronized void stopCheckpoints() {
+		Checkpointer previous = checkpointer;
+		if ( previous == null ) return;
+		checkpointer = null;
+		previous.stop();
+	}
+	
+	/**
+	 * Returns the lock under which snapshots are captured and written, and
+	 * journal records discarded (see Checkpointer).
+	 * 
+	 * @return
+	 */
+	Object getSnapshotLock() {
+		return snapshotLock;
+	}
+	
+	/**
+	 * Returns the journal, or null.
+	 * 
+	 * @return
+	 */
+	Journal getJournal() {
+		return journal;
+	}
+	
+	/**
+	 * Recover the portfolio after a crash: load the snapshot in the given
+	 * file, if there is one, and replay the journal records that came after
+	 * it.  The journal must be open, and the same rules as for
+	 * deserializePortfolio() apply.
+	 * 
+	 * Replayed records only restore the accounting fields of the trades;
+	 * orders that were pending at the time of the crash are not restored.
+	 * The records of different symbols are replayed in parallel, on one
+	 * thread per available processor.
+	 * 
+	 * @param snapshotFile
+	 * @return
+	 */
+	public boolean recoverPortfolio( String snapshotFile ) {
+		return recoverPortfolio(snapshotFile, Runtime.getRuntime().availableProcessors());
+	}
+	
+	/**
+	 * Recover the portfolio as above, replaying the journal on up to the
+	 * given number of threads.
+	 * 
+	 * @param snapshotFile
+	 * @param parallelism
+	 * @return
+	 */
+	public boolean recoverPortfolio( String snapshotFile, int parallelism ) {
+		Journal current = journal;
+		if ( current == null ) {
+			logger.error(">>> Cannot recover portfolio because no journal is open.");
+			return false;
+		}
+		
+		if ( new File(snapshotFile).exists() ) {
+			if ( !deserializePortfolio(snapshotFile) ) return false;
+		} else {
+			logger.warn(">>> No snapshot in " + snapshotFile + "; recovering from the journal alone.");
+		}
+		
+		PortfolioImpl recovered = (PortfolioImpl)portfolio;
+		current.replay(recovered, recovered.getJournalSequence(), parallelism);
+		logger.trace(portfolio.toString());
+		return true;
+	}
+	
+	/**
+	 * Set the content requested by startMarketData() (LATEST_TICK by
+	 * default), e.g. TOP_OF_BOOK for quotes or OPEN_BOOK for depth.  Takes
+	 * effect the next time market data is started.
+	 * 
+	 * @param content
+	 */
+	public void setMarketDataContent(Content... content) {
+		if ( content.length == 0 ) {
+			throw new IllegalArgumentException(">>> At least one kind of market data content is required.");
+		}
+		dataContent = content.clone();
+	}
+	
+	/**
+	 * Set the maximum number of symbols per market data request.  Larger
+	 * universes are split into several requests.  Takes effect the next
+	 * time market data is started.
+	 * 
+	 * @param chunkSize
+	 */
+	public void setMarketDataChunkSize(int chunkSize) {
+		if ( chunkSize < 1 ) {
+			throw new IllegalArgumentException(">>> Chunk size must be positive.");
+		}
+		dataChunkSize = chunkSize;
+	}
+	
+	/**
+	 * Request market data for every symbol in the portfolio.  From then
+	 * on, symbols are subscribed and unsubscribed as trades are added to
+	 * and removed from the portfolio, without interrupting the data of the
+	 * other symbols (see MarketDataSubscriptions).
+	 */
 	public void startMarketData() {		
 		if ( !dataProviderIsSet() ) {
 			throw new RuntimeException(Messages.MSG_DATA_PROVIDER_NOT_SET);
 		}
 		
-		Collection<String> s = portfolio.getSymbols();
-		String[] symbols = (String[])s.toArray(new String[s.size()]);
+		stopMarketData();
+		subscriptions = new MarketDataSubscriptions(this, dataProvider, dataContent, dataChunkSize);
 		
-		if ( symbols.length < 1 ) {
-			logger.warn(">>> Skipping market data (no symbols in portfolio).");
+		Collection<String> symbols = portfolio.getSymbols();
+		if ( symbols.isEmpty() ) {
+			logger.warn(">>> No symbols in portfolio yet; market data will start as trades are added.");
 			return;
 		}
 		
 		logger.info(">>> Starting market data...");
-		MarketDataRequest request = MarketDataRequest
-										.newRequest()
-										.withSymbols(symbols)
-										.fromProvider(dataProvider)
-										.withContent("LATEST_TICK");
-		dataRequestId = requestMarketData(request);
-		logger.info(">>> Market data id: " + dataRequestId );
+		subscriptions.subscribe(symbols);
+		logger.info(">>> Market data requests: " + subscriptions.getRequestCount() );
 	}
 
+	/**
+	 * Cancel all market data requested for the portfolio.
+	 */
 	public void stopMarketData() {
-		if (dataRequestId!=null && dataRequestId>0) {
-				cancelDataRequest(dataRequestId);
-		} dataRequestId = null;
+		if ( subscriptions != null ) {
+			subscriptions.cancelAll();
+		}
+		subscriptions = null;
+	}
+	
+	/**
+	 * Called by the portfolio when a trade has been added.
+	 * 
+	 * @param trade
+	 */
+	void tradeAdded(Trade trade) {
+		MarketDataSubscriptions current = subscriptions;
+		if ( current != null ) {
+			current.subscribe(trade.getSymbol());
+		}
+	}
+	
+	/**
+	 * Called by the portfolio when a trade has been removed: forgets its
+	 * orders and its market data.
+	 * 
+	 * @param trade
+	 */
+	void tradeRemoved(Trade trade) {
+		/* the trade is detached, so its order processor can no longer unindex them */
+		OrderID pending = trade.getPendingOrderId();
+		if ( pending != null ) {
+			unindexOrder(pending, trade);
+		}
+		OrderID cancel = trade.getCancelOrderId();
+		if ( cancel != null ) {
+			unindexOrder(cancel, trade);
+		}
+		MarketDataSubscriptions current = subscriptions;
+		if ( current != null ) {
+			current.unsubscribe(trade.getSymbol());
+		}
 	}
 
 	private boolean dataProviderIsSet() {
@@ -205,7 +612,15 @@ public abstract class PortfolioStrategy extends DelegatorStrategy {
 	}
 	
 	/**
-	 * Serializes the current portfolio in the specified file.
+	 * Serializes the current portfolio in the specified file, in the
+	 * binary snapshot format (see SnapshotCodec).  Journal records are
+	 * only discarded for the checkpoint file (see startCheckpoints()): if
+	 * that is the specified file, a checkpoint is written now; any other
+	 * file is a plain export, which leaves the journal alone.
+	 * 
+	 * The snapshot is taken from the copy-on-write images of the trades
+	 * (see PortfolioImpl.capture()), so events may keep being applied while
+	 * it is written.  It replaces the file atomically.
 	 * 
 	 * @param file
 	 */
@@ -217,23 +632,18 @@ public abstract class PortfolioStrategy extends DelegatorStrategy {
 			return;
 		}
 		
-		/* output objects */
-		FileOutputStream fos = null;
-		ObjectOutputStream out = null;
-		
-		try {
-			fos = new FileOutputStream(file);
-			out = new ObjectOutputStream(fos);
-			out.writeObject(portfolio);
-		} catch (IOException e ) {
-			e.printStackTrace();
-			logger.error(">>> Could not serialize portfolio. (" + e.getMessage() + ")");
-			return;
-		} finally {
-			try {
-				out.close();
-			} catch (IOException e) {
-				e.printStackTrace();
+		Checkpointer current = checkpointer;
+		if ( current != null && current.writesTo(file) ) {
+			if ( !current.checkpoint() ) {
+				logger.error(">>> Could not serialize portfolio.");
+				return;
+			}
+		} else {
+			synchronized(snapshotLock) {
+				if ( !Checkpointer.write(((PortfolioImpl)portfolio).capture(), file) ) {
+					logger.error(">>> Could not serialize portfolio.");
+					return;
+				}
 			}
 		}
 		
@@ -249,6 +659,9 @@ public abstract class PortfolioStrategy extends DelegatorStrategy {
 	 * one, and therefore must liquidate it before a new portfolio
 	 * is dynamically loaded.
 	 * 
+	 * Both binary snapshots and portfolios written with Java serialization
+	 * by earlier versions can be read.
+	 * 
 	 * @param file
 	 */
 	public boolean deserializePortfolio( String file ) {
@@ -267,10 +680,14 @@ public abstract class PortfolioStrategy extends DelegatorStrategy {
 		
 		try {
 			fin = new FileInputStream(file);
-			in = new ObjectInputStream(fin);
-			
-			/* get the object */
-			portfolio = (PortfolioImpl)in.readObject();
+			if ( SnapshotCodec.isSnapshot(fin.getChannel()) ) {
+				portfolio = SnapshotCodec.read(fin.getChannel());
+			} else {
+				in = new ObjectInputStream(fin);
+				
+				/* get the object */
+				portfolio = (PortfolioImpl)in.readObject();
+			}
 		} catch (ClassNotFoundException e) {
 			e.printStackTrace();
 			logger.error(">>> De-serialization error. (" + e.getMessage() + ").");
@@ -280,7 +697,7 @@ public abstract class PortfolioStrategy extends DelegatorStrategy {
 			return false;
 		} finally {
 			try {
-				in.close();
+				if ( fin != null ) fin.close();
 			} catch (IOException e) { e.printStackTrace(); }
 		}
 		
@@ -307,63 +724,148 @@ public abstract class PortfolioStrategy extends DelegatorStrategy {
 		return true;
 	}
 
+	/**
+	 * Reconcile the portfolio with the ORS positions every interval
+	 * milliseconds, on a background thread (see PositionReconciler).  A
+	 * trade whose position differs from the ORS is corrected on the thread
+	 * that applies its events, unless it has an order pending.  Only the
+	 * symbols the ORS reports for the portfolio's account are reconciled,
+	 * and nothing is reconciled until setAccountInfo() has been called.
+	 * Only the position size and side are corrected, and fractional
+	 * quantities are kept.
+	 * 
+	 * @param intervalMillis
+	 */
+	public synchronized void startReconciliation( long intervalMillis ) {
+		stopReconciliation();
+		PositionReconciler started = new PositionReconciler(this, false);
+		started.start(intervalMillis);
+		reconciler = started;
+		logger.info(">>> Reconciling positions with the ORS every " + intervalMillis + " ms.");
+	}
+	
+	/**
+	 * Stop the background reconciliation.
+	 */
+	public synchronized void stopReconciliation() {
+		PositionReconciler previous = reconciler;
+		if ( previous == null ) return;
+		reconciler = null;
+		previous.stop();
+	}
+	
+	/**
+	 * Returns the statistics of the background reconciliation, or null if
+	 * it is not running.
+	 * 
+	 * @return
+	 */
+	public synchronized ReconciliationStatistics getReconciliationStatistics() {
+		return reconciler == null ? null : reconciler.getStatistics();
+	}
+
 	/**
 	 * This is a convenience method that syncs the portfolio to the
-	 * actual ORS positions on a best-efforts basis.
+	 * actual ORS positions on a best-efforts basis, once.  The positions
+	 * are fetched on the calling thread, and the trades are corrected
+	 * before this method returns: on the calling thread, like other
+	 * changes to the trades, unless sharding is enabled, and otherwise on
+	 * their shards (see executeAndWait()).  See startReconciliation() to
+	 * do so in the background.
 	 * 
 	 * Because ORS does not provide entry price or profit-loss
 	 * information, it is impossible to reconstruct a Trade exclusively
-	 * from ORS data.  Therefore, this method does not attempt to do so.
-	 * 
-	 * Instead, this method performs two operations:
-	 * 
-	 * 1. If a position exists in both the portfolio and the ORS,
-	 * it simply updates the position size (and nothing else) in the
-	 * portfolio.
-	 * 
-	 * 2. On the other hand, if the portfolio contains a position that
-	 * does not exist in the ORS, this position is removed from the
-	 * portfolio.
-	 * 
-	 * NOTE: It is better to sync positions prior to using the method
-	 * startMarketData().  Trades that are removed from the portfolio
-	 * as a result of the call to syncORSPositions() will still receive
-	 * market data until the data feed is restarted.
+	 * from ORS data.  Therefore, this method only updates the position
+	 * size and side of the trades whose position differs from the ORS,
+	 * and that have no order pending.
 	 */
 	public void syncORSPositions() {
-		Map<PositionKey,BigDecimal> positions =
-			getPositions(new Date());
-		
-		/* maybe not connected...? */
-		if ( positions == null ) {
+		if ( !new PositionReconciler(this, true).reconcile() ) {
 			logger.error(">>> Could not sync ORS positions.");
+		}
+	}
+	
+	/**
+	 * Run a task later on the thread that applies the events of the given
+	 * trade: its shard if sharding is enabled.  Otherwise the task is
+	 * queued, and the TradeRouter runs it before it routes the next event
+	 * (or when the strategy stops), so it waits for the next event.
+	 * 
+	 * @param trade
+	 * @param task
+	 */
+	void execute( final Trade trade, final TradeShards.Task task ) {
+		TradeShards current = shards;
+		if ( current != null ) {
+			current.execute(trade, task);
 			return;
 		}
+		tasks.add(new TradeShards.Task() {
+			@Override
+			void perform() {
+				/* sharding may have been enabled in the meantime */
+				TradeShards now = shards;
+				if ( now == null ) {
+					task.run();
+				} else {
+					now.execute(trade, task);
+				}
+			}
+		});
+	}
 	
-		/* now, let's sync */
-		//Set<String> symbols = new HashSet<String>();
-		for ( PositionKey k : positions.keySet() ) {
-			final String symbol = k.getSymbol();
-			final String account = k.getAccount();
-
-			if ( account.equals(portfolio.getAccount()) ) {
-				//symbols.add(symbol);
-				if ( portfolio.hasTrade(symbol) ) {
-					Trade trade = portfolio.getTrade(symbol);
-					int pos = positions.get(k).intValue();
-					BigDecimal qty = BigDecimal.valueOf(Math.abs(pos),0);
-					Side side = Side.fromInt((int)Math.signum(pos));
-				
-					trade.overrideQuantity(qty);
-					trade.overrideSide(side);
-					
-					logger.info(">>> Syncing " + symbol + " to position " + pos + "." );	
+	/**
+	 * Run a task on the thread that applies the events of the given trade,
+	 * and wait until it has run.  Unless sharding is enabled, that is the
+	 * calling thread.  A shard thread runs the tasks of its own trades
+	 * directly, but does not wait for other shards (which might be
+	 * waiting for it); their tasks run later, as with execute().
+	 * 
+	 * @param trade
+	 * @param task
+	 */
+	void executeAndWait( Trade trade, final TradeShards.Task task ) {
+		TradeShards current = shards;
+		if ( current == null || current.isOwner(trade) ) {
+			task.run();
+			return;
+		}
+		if ( current.isShardThread() ) {
+			current.execute(trade, task);
+			return;
+		}
+		final CountDownLatch done = new CountDownLatch(1);
+		current.execute(trade, new TradeShards.Task() {
+			@Override
+			void perform() {
+				try {
+					task.run();
+				} finally {
+					done.countDown();
 				}
 			}
+		});
+		boolean interrupted = false;
+		while ( done.getCount() > 0 ) {
+			try {
+				done.await();
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if ( interrupted ) {
+			Thread.currentThread().interrupt();
+		}
+	}
+	
+	/**
+	 * Run the tasks queued by execute(); called by the TradeRouter.
+	 */
+	private void runTasks() {
+		TradeShards.Task task;
+		while ( (task = tasks.poll()) != null ) {
+			task.run();
 		}
-		
-		//portfolio.getSymbols().retainAll(symbols);
-		
 	}
 	
 }
@@ -0,0 +1,245 @@
+package org.kohera.metctools.portfolio;
+
+import java.math.BigDecimal;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+import org.kohera.metctools.util.DaemonThreadFactory;
+import org.marketcetera.core.position.PositionKey;
+
+/**
+ * Reconciles the positions of the trades of a PortfolioStrategy with the
+ * positions held by the ORS, in the background.
+ *
+ * At every interval, the reconciler fetches the ORS positions of the
+ * portfolio's account on its own thread and compares them, without
+ * rounding, with the current images of the trades (see TradeImage).  Only
+ * the symbols the ORS reports for the account are reconciled: the ORS
+ * does not say that its positions are complete, so a trade whose symbol
+ * is missing is left alone rather than flattened.  Nothing is reconciled
+ * until the portfolio has an account (see Portfolio.setAccountInfo()).  A
+ * trade that has drifted is corrected on the thread that applies its
+ * events (see PortfolioStrategy.execute()), unless it has an order
+ * pending or has changed since the positions were fetched; such trades
+ * are left for the next reconciliation.  So are all trades while the
+ * corrections of a previous reconciliation have not run yet (without
+ * sharding, they wait for the next event routed by the strategy).
+ *
+ */
+final class PositionReconciler {
+
+	/* fields */
+	private final PortfolioStrategy 		strategy;
+	private final boolean 					synchronous;	// wait for the corrections
+	private ScheduledExecutorService 		executor;	// null unless scheduled
+	private final AtomicLong 				runs;
+	private final AtomicLong 				failures;
+	private final AtomicLong 				corrections;
+	private final AtomicLong 				skipped;
+	private final AtomicInteger 			queued;		// corrections not run yet
+	private volatile long 					lastRunMillis;
+	private volatile long 					lastDurationNanos;
+	private volatile int 					lastDriftedTrades;
+	private volatile BigDecimal 			lastDrift;
+
+	/* logging */
+	private final static Logger logger =
+		Logger.getLogger(PositionReconciler.class);
+
+	/**
+	 * Create a new PositionReconciler for the given strategy.  A
+	 * synchronous reconciler applies its corrections before reconcile()
+	 * returns (see PortfolioStrategy.executeAndWait()).
+	 *
+	 * @param strategy
+	 * @param synchronous
+	 */
+	PositionReconciler(PortfolioStrategy strategy, boolean synchronous) {
+		this.strategy = strategy;
+		this.synchronous = synchronous;
+		this.runs = new AtomicLong();
+		this.failures = new AtomicLong();
+		this.corrections = new AtomicLong();
+		this.skipped = new AtomicLong();
+		this.queued = new AtomicInteger();
+		this.lastDrift = BigDecimal.ZERO;
+	}
+
+	/**
+	 * Reconcile every interval milliseconds, on a background thread.
+	 *
+	 * @param interval
+	 */
+	void start(long interval) {
+		if ( interval < 1 ) {
+			throw new IllegalArgumentException(">>> Reconciliation interval must be positive.");
+		}
+		executor = Executors.newSingleThreadScheduledExecutor(
+				new DaemonThreadFactory("Reconciler"));
+		executor.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					reconcile();
+				} catch (RuntimeException e) {
+					logger.error(">>> Position reconciliation failed.", e);
+				}
+			}
+		}, 0, interval, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Stop the background reconciliations.
+	 */
+	void stop() {
+		if ( executor == null ) return;
+		executor.shutdown();
+		try {
+			executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Fetch the ORS positions and correct the trades that have drifted.
+	 * Returns false if the portfolio has no account or the positions could
+	 * not be fetched.
+	 *
+	 * @return
+	 */
+	synchronized boolean reconcile() {
+		long start = System.nanoTime();
+		Portfolio portfolio = strategy.getPortfolio();
+		if ( !(portfolio instanceof PortfolioImpl) ) return false;
+		String account = portfolio.getAccount();
+		if ( account == null ) {
+			failures.incrementAndGet();
+			logger.error(">>> Cannot reconcile positions: the portfolio has no account.");
+			return false;
+		}
+
+		/* what the trades looked like before the fetch */
+		Trade[] trades = ((PortfolioImpl)portfolio).getTradeTable();
+		TradeImage[] images = new TradeImage[trades.length];
+		for ( int i = 0; i < trades.length; i++ ) {
+			if ( trades[i] != null ) images[i] = trades[i].getImage();
+		}
+
+		Map<PositionKey,BigDecimal> positions = strategy.getPositions(new Date());
+		if ( positions == null ) {
+			failures.incrementAndGet();
+			logger.error(">>> Could not fetch ORS positions for reconciliation.");
+			return false;
+		}
+		Map<String,BigDecimal> ors = positionsOf(positions, account);
+
+		/* corrections still waiting for their thread are not queued again */
+		boolean backlog = queued.get() > 0;
+		int drifted = 0;
+		BigDecimal drift = BigDecimal.ZERO;
+		for ( int i = 0; i < trades.length; i++ ) {
+			Trade trade = trades[i];
+			TradeImage image = images[i];
+			if ( trade == null || image == null ) continue;
+
+			BigDecimal target = ors.get(trade.getSymbol());
+			if ( target == null ) continue;
+			BigDecimal difference = target.subtract(
+					FixedPoint.toDecimal(image.side.polarize(image.quantity)));
+			if ( difference.signum() == 0 ) continue;
+
+			drifted++;
+			drift = drift.add(difference.abs());
+			if ( backlog || trade.isPending() ) {
+				skipped.incrementAndGet();
+				continue;
+			}
+			correct(trade, image, target);
+		}
+
+		lastDriftedTrades = drifted;
+		lastDrift = drift;
+		lastDurationNanos = System.nanoTime() - start;
+		lastRunMillis = System.currentTimeMillis();
+		runs.incrementAndGet();
+		if ( drifted > 0 ) {
+			logger.info(">>> Reconciled positions with the ORS: " + drifted +
+					" trades drifted by " + drift.toPlainString() + " in total.");
+		}
+		return true;
+	}
+
+	/**
+	 * Returns a snapshot of the reconciliation statistics.
+	 *
+	 * @return
+	 */
+	ReconciliationStatistics getStatistics() {
+		return new ReconciliationStatistics(runs.get(), failures.get(),
+				corrections.get(), skipped.get(), lastRunMillis,
+				lastDurationNanos, lastDriftedTrades, lastDrift);
+	}
+
+	// PRIVATE METHODS //
+
+	/**
+	 * Set the trade to the given signed position on its own thread, if it
+	 * has not changed since the given image.
+	 *
+	 * @param trade
+	 * @param image
+	 * @param target
+	 */
+	private void correct(final Trade trade, final TradeImage image, final BigDecimal target) {
+		queued.incrementAndGet();
+		TradeShards.Task task = new TradeShards.Task() {
+			@Override
+			void perform() {
+				queued.decrementAndGet();
+				if ( trade.isPending() || trade.getImage() != image ) {
+					skipped.incrementAndGet();
+					return;
+				}
+				trade.overridePosition(target);
+				corrections.incrementAndGet();
+				logger.info(">>> Syncing " + trade.getSymbol() + " to ORS position " +
+						target.toPlainString() + ".");
+			}
+		};
+		if ( synchronous ) {
+			strategy.executeAndWait(trade, task);
+		} else {
+			strategy.execute(trade, task);
+		}
+	}
+
+	/**
+	 * Returns the signed ORS position of each symbol in the given account.
+	 *
+	 * @param positions
+	 * @param account
+	 * @return
+	 */
+	private static Map<String,BigDecimal> positionsOf(Map<PositionKey,BigDecimal> positions,
+			String account) {
+		Map<String,BigDecimal> bySymbol = new HashMap<String,BigDecimal>();
+		for ( Map.Entry<PositionKey,BigDecimal> entry : positions.entrySet() ) {
+			PositionKey key = entry.getKey();
+			if ( !account.equals(key.getAccount()) ) continue;
+			/* positions of several traders in the account add up */
+			BigDecimal sum = bySymbol.get(key.getSymbol());
+			bySymbol.put(key.getSymbol(),
+					sum == null ? entry.getValue() : sum.add(entry.getValue()));
+		}
+		return bySymbol;
+	}
+
+}
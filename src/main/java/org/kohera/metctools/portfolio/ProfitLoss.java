@@ -0,0 +1,196 @@
+package org.kohera.metctools.portfolio;
+
+/**
+ * Incremental profit-loss of one Trade, in fixed point (see FixedPoint).
+ *
+ * The engine keeps its own signed position and average cost.  Fills are
+ * derived from the cumulative quantity and average price of each execution
+ * report, so that a fill that reduces the position realizes the difference
+ * between its price and the average cost; other changes of the position
+ * (overrides, restores) are taken over at the average cost without
+ * realizing anything, or at the entry or last price if the position
+ * opens that way.  Every tick revalues the open position at the new
+ * last price, with a few long operations and no allocation.
+ *
+ * The engine is only changed on the thread that applies the Trade's
+ * events; the results may be read on any thread.
+ *
+ */
+final class ProfitLoss {
+
+	/* order being filled */
+	private long 			orderFilled;		// unsigned quantity filled so far
+	private long 			orderValue;			// unsigned value of those fills
+
+	/* position */
+	private long 			position;			// signed
+	private long 			averageCost;
+	private long 			entryPrice;			// the Trade's entry price
+	private long 			lastPrice;
+
+	/* results */
+	private volatile long 	realized;
+	private volatile long 	unrealized;
+	private volatile long 	notional;
+
+	/**
+	 * Account for the fills of the current order up to the given
+	 * cumulative quantity at the given average price, both scaled.
+	 * Returns true if there was a new fill.
+	 *
+	 * @param side
+	 * @param cumulative
+	 * @param average
+	 * @return
+	 */
+	boolean fill( Side side, long filled, long average ) {
+		if ( side == null || side == Side.NONE ) return false;
+		if ( filled < orderFilled ) {
+			/* a new order */
+			endOrder();
+		}
+		if ( filled == orderFilled ) return false;
+
+		long value = FixedPoint.multiply(filled, average);
+		long quantity = filled - orderFilled;
+		long price = FixedPoint.divide(value - orderValue, quantity);
+		orderFilled = filled;
+		orderValue = value;
+
+		trade(side.polarize(quantity), price);
+		revalue();
+		return true;
+	}
+
+	/**
+	 * Forget the fills of the current order, once it is done.
+	 */
+	void endOrder() {
+		orderFilled = 0;
+		orderValue = 0;
+	}
+
+	/**
+	 * Take over the Trade's signed position and entry price after a change,
+	 * without realizing anything.  Returns true if the results changed.
+	 *
+	 * @param signedPosition
+	 * @param entry
+	 * @return
+	 */
+	boolean reconcile( long signedPosition, long entry ) {
+		entryPrice = entry;
+		if ( signedPosition == position ) return false;
+		if ( signedPosition == 0 ) {
+			averageCost = 0;
+		} else if ( position == 0 || (signedPosition < 0) != (position < 0) ) {
+			averageCost = entry != 0 ? entry : lastPrice;
+		}
+		position = signedPosition;
+		return revalue();
+	}
+
+	/**
+	 * Revalue the position at a new last price.  Returns true if the
+	 * results changed.
+	 *
+	 * @param price
+	 * @return
+	 */
+	boolean revalue( long price ) {
+		if ( price == lastPrice ) return false;
+		lastPrice = price;
+		if ( position != 0 && averageCost == 0 ) {
+			/* taken over before any price was known */
+			averageCost = price;
+		}
+		return position != 0 && revalue();
+	}
+
+	/**
+	 * Returns the realized profit-loss, scaled.
+	 *
+	 * @return
+	 */
+	long getRealized() {
+		return realized;
+	}
+
+	/**
+	 * Returns the unrealized profit-loss of the open position, scaled.
+	 *
+	 * @return
+	 */
+	long getUnrealized() {
+		return unrealized;
+	}
+
+	/**
+	 * Returns the open position valued at the last price, scaled.
+	 *
+	 * @return
+	 */
+	long getNotional() {
+		return notional;
+	}
+
+	/**
+	 * Returns the change of the last price from the entry price in
+	 * percent, scaled, for a long position.
+	 *
+	 * @return
+	 */
+	long getChangePercent() {
+		long entry = entryPrice;
+		if ( entry == 0 ) return 0;
+		return (FixedPoint.divide(lastPrice, entry) - FixedPoint.ONE) * 100;
+	}
+
+	// PRIVATE METHODS //
+
+	/**
+	 * Apply a signed fill at the given price.
+	 *
+	 * @param quantity
+	 * @param price
+	 */
+	private void trade( long quantity, long price ) {
+		if ( position == 0 || (quantity < 0) == (position < 0) ) {
+			/* opening or adding: average the cost */
+			long size = Math.abs(position) + Math.abs(quantity);
+			averageCost = FixedPoint.divide(
+					FixedPoint.multiply(averageCost, Math.abs(position)) +
+					FixedPoint.multiply(price, Math.abs(quantity)), size);
+			position += quantity;
+			return;
+		}
+
+		/* reducing: realize the closed part */
+		long closed = Math.min(Math.abs(quantity), Math.abs(position));
+		long gain = FixedPoint.multiply(closed, price - averageCost);
+		realized += position > 0 ? gain : -gain;
+		position += quantity;
+		if ( position == 0 ) {
+			averageCost = 0;
+		} else if ( (position < 0) == (quantity < 0) ) {
+			/* switched sides: the rest opens at the fill price */
+			averageCost = price;
+		}
+	}
+
+	/**
+	 * Recompute the unrealized profit-loss and notional.  Returns true if
+	 * they changed.
+	 *
+	 * @return
+	 */
+	private boolean revalue() {
+		long value = lastPrice == 0 ? 0 : FixedPoint.multiply(position, lastPrice);
+		long gain = lastPrice == 0 ? 0 : FixedPoint.multiply(position, lastPrice - averageCost);
+		if ( value == notional && gain == unrealized ) return false;
+		notional = value;
+		unrealized = gain;
+		return true;
+	}
+
+}
@@ -0,0 +1,124 @@
+package org.kohera.metctools.portfolio;
+
+import java.math.BigDecimal;
+
+/**
+ * A point-in-time snapshot of the position reconciliation statistics of
+ * a PortfolioStrategy (see PositionReconciler).
+ *
+ * Drift figures are those of the last completed reconciliation; the
+ * counters are totals since reconciliation was started.
+ *
+ */
+public final class ReconciliationStatistics {
+
+	/* fields */
+	private final long 			runs;
+	private final long 			failures;
+	private final long 			corrections;
+	private final long 			skipped;
+	private final long 			lastRunMillis;
+	private final long 			lastDurationNanos;
+	private final int 			lastDriftedTrades;
+	private final BigDecimal 	lastDrift;
+
+	ReconciliationStatistics( long runs, long failures, long corrections, long skipped,
+			long lastRunMillis, long lastDurationNanos, int lastDriftedTrades,
+			BigDecimal lastDrift ) {
+		this.runs = runs;
+		this.failures = failures;
+		this.corrections = corrections;
+		this.skipped = skipped;
+		this.lastRunMillis = lastRunMillis;
+		this.lastDurationNanos = lastDurationNanos;
+		this.lastDriftedTrades = lastDriftedTrades;
+		this.lastDrift = lastDrift;
+	}
+
+	/**
+	 * Returns the number of completed reconciliations.
+	 *
+	 * @return
+	 */
+	public long getRuns() {
+		return runs;
+	}
+
+	/**
+	 * Returns the number of reconciliations that failed because the ORS
+	 * positions could not be fetched.
+	 *
+	 * @return
+	 */
+	public long getFailures() {
+		return failures;
+	}
+
+	/**
+	 * Returns the number of trades whose position was corrected.
+	 *
+	 * @return
+	 */
+	public long getCorrections() {
+		return corrections;
+	}
+
+	/**
+	 * Returns the number of drifted trades that were left alone because
+	 * they had an order pending or changed during the reconciliation.
+	 *
+	 * @return
+	 */
+	public long getSkipped() {
+		return skipped;
+	}
+
+	/**
+	 * Returns when the last reconciliation completed, in milliseconds
+	 * since the epoch, or 0.
+	 *
+	 * @return
+	 */
+	public long getLastRunMillis() {
+		return lastRunMillis;
+	}
+
+	/**
+	 * Returns how long the last reconciliation took, including the fetch
+	 * of the ORS positions, in nanoseconds.
+	 *
+	 * @return
+	 */
+	public long getLastDurationNanos() {
+		return lastDurationNanos;
+	}
+
+	/**
+	 * Returns the number of trades whose position differed from the ORS
+	 * in the last reconciliation.
+	 *
+	 * @return
+	 */
+	public int getLastDriftedTrades() {
+		return lastDriftedTrades;
+	}
+
+	/**
+	 * Returns the sum of the absolute differences between the ORS and the
+	 * portfolio positions in the last reconciliation.
+	 *
+	 * @return
+	 */
+	public BigDecimal getLastDrift() {
+		return lastDrift;
+	}
+
+	@Override
+	public String toString() {
+		return "runs=" + runs + " failures=" + failures + " corrections=" + corrections +
+			" skipped=" + skipped + " lastDrifted=" + lastDriftedTrades +
+			" lastDrift=" + lastDrift.toPlainString() +
+			" lastDurationUs=" + lastDurationNanos / 1000;
+	}
+
+}
@@ -90,11 +90,22 @@ public enum Side {
 	 * @return
 	 */
 	public BigDecimal polarize(BigDecimal value) {
-		if ( value==null) value = BigDecimal.ZERO;
-		return value.multiply(toBigDecimal());
+		if ( value==null || this==NONE ) return BigDecimal.ZERO;
+		return this==BUY ? value : value.negate();
 	}
 	
 	public BigDecimal polarize(Side side) {
-		return polarize(side.toBigDecimal());
+		return BigDecimal.valueOf(side.value() * this.side);
+	}
+	
+	/**
+	 * Returns a fixed-point (or integral) number multiplied by the value
+	 * of the side, without allocating.
+	 * 
+	 * @param value
+	 * @return
+	 */
+	public long polarize(long value) {
+		return value * side;
 	}
 }
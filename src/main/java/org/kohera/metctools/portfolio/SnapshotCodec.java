@@ -0,0 +1,381 @@
+package org.kohera.metctools.portfolio;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import org.apache.log4j.Logger;
+import org.marketcetera.trade.BrokerID;
+import org.marketcetera.trade.OrderStatus;
+
+/**
+ * Versioned binary snapshot format of a portfolio.
+ *
+ * Layout:
+ *
+ *   header		int magic, short version
+ *   portfolio	int length, int CRC-32, account information, default
+ *   			policies and journal sequence (see PortfolioImage)
+ *   trades		one record per trade: int length, int CRC-32, class
+ *   			name, symbol, accounting fields, order timeout, policies
+ *   			and journal sequence (see TradeImage)
+ *   end			int 0, int number of trades
+ *
+ * Values are encoded as described in Encoding.  Policies are written by
+ * their names in the PolicyRegistry; a policy that is not registered is
+ * restored as the default, and is logged as a warning when written.  Class, policy and order status names, which
+ * repeat from trade to trade, are written once and then referred to by
+ * number.
+ * Market data (last trade, top of book) is not part of a snapshot; it is
+ * refreshed by the data feed.
+ *
+ * The snapshot is streamed through a channel in chunks, so neither writing
+ * nor reading holds the encoded portfolio in memory.  A trade of a Trade
+ * subclass is restored with the subclass's (String symbol) constructor if
+ * it has one, and as a plain Trade otherwise.
+ *
+ */
+public final class SnapshotCodec {
+
+	static final int 	MAGIC = 0x4d545331;		// "MTS1"
+	static final short 	VERSION = 2;
+
+	private static final int CHUNK = 64 * 1024;
+	private static final int FRAME = 8;			// length and checksum
+
+	/* logging */
+	private final static Logger logger =
+		Logger.getLogger(SnapshotCodec.class);
+
+	/**
+	 * Names that are written in full the first time and by number after
+	 * that (0 for null, n for the n-th name).
+	 */
+	private static final class Names {
+
+		private final Map<String,Integer> 	numbers = new HashMap<String,Integer>();
+		private final List<String> 			names = new ArrayList<String>();
+
+		ByteBuffer put( ByteBuffer b, String name ) {
+			if ( name == null ) return Encoding.putVarLong(b, 0);
+			Integer number = numbers.get(name);
+			if ( number != null ) return Encoding.putVarLong(b, number.intValue());
+			numbers.put(name, Integer.valueOf(numbers.size() + 1));
+			b = Encoding.putVarLong(b, numbers.size());
+			return Encoding.putString(b, name);
+		}
+
+		String get( ByteBuffer b ) throws IOException {
+			long number = Encoding.getVarLong(b);
+			if ( number == 0 ) return null;
+			if ( number == names.size() + 1 ) {
+				names.add(Encoding.getString(b));
+			} else if ( number < 0 || number > names.size() ) {
+				throw new IOException("unknown name " + number + " in snapshot");
+			}
+			return names.get((int)number - 1);
+		}
+	}
+
+	/**
+	 * Policies that are not registered in the PolicyRegistry, and so are
+	 * written as null, by class: the first owner found using each, and the
+	 * number of owners.
+	 */
+	private static final class Unregistered {
+
+		private final Map<Class<?>,String> 	first = new LinkedHashMap<Class<?>,String>();
+		private final Map<Class<?>,Integer> counts = new HashMap<Class<?>,Integer>();
+
+		String nameOf( Object policy, String owner ) {
+			String name = PolicyRegistry.nameOf(policy);
+			if ( name == null && policy != null ) {
+				Class<?> type = policy.getClass();
+				Integer count = counts.get(type);
+				if ( count == null ) {
+					first.put(type, owner);
+					count = Integer.valueOf(0);
+				}
+				counts.put(type, Integer.valueOf(count.intValue() + 1));
+			}
+			return name;
+		}
+
+		void warn() {
+			for ( Map.Entry<Class<?>,String> entry : first.entrySet() ) {
+				int others = counts.get(entry.getKey()).intValue() - 1;
+				logger.warn(">>> Policy " + entry.getKey().getName() + " of " + entry.getValue() +
+						(others > 0 ? " (and " + others + " more trades)" : "") +
+						" is not registered in the PolicyRegistry; the snapshot restores the default policy.");
+			}
+		}
+	}
+
+	private SnapshotCodec() { }
+
+	/**
+	 * Write a snapshot of the portfolio to the channel.
+	 *
+	 * @param portfolio
+	 * @param channel
+	 * @throws IOException
+	 */
+	public static void write( Portfolio portfolio, WritableByteChannel channel )
+		throws IOException {
+		if ( !(portfolio instanceof PortfolioImpl) ) {
+			throw new IllegalArgumentException(">>> Cannot write a snapshot of " +
+					portfolio.getClass().getName() + ".");
+		}
+		write(((PortfolioImpl)portfolio).capture(), channel);
+	}
+
+	/**
+	 * Write a captured view of a portfolio to the channel.
+	 *
+	 * @param image
+	 * @param channel
+	 * @throws IOException
+	 */
+	static void write( PortfolioImage image, WritableByteChannel channel )
+		throws IOException {
+		CRC32 crc = new CRC32();
+		Names names = new Names();
+		Unregistered unregistered = new Unregistered();
+		ByteBuffer out = ByteBuffer.allocate(CHUNK);
+		out.putInt(MAGIC);
+		out.putShort(VERSION);
+
+		int start = out.position();
+		out.position(start + FRAME);
+		out = Encoding.putString(out, image.brokerId == null ? null : image.brokerId.getValue());
+		out = Encoding.putString(out, image.account);
+		out = names.put(out, unregistered.nameOf(image.fillPolicy, "the portfolio"));
+		out = names.put(out, unregistered.nameOf(image.orderTimeoutPolicy, "the portfolio"));
+		out = names.put(out, unregistered.nameOf(image.rejectPolicy, "the portfolio"));
+		out = Encoding.ensure(out, 1);
+		out.put((byte)(image.orderTimeout == null ? 0 : 1));
+		out = Encoding.putVarLong(out, image.orderTimeout == null ? 0 : image.orderTimeout.longValue());
+		out = Encoding.putVarLong(out, image.journalSequence);
+		frame(out, start, crc);
+
+		for ( TradeImage trade : image.trades ) {
+			start = out.position();
+			out = Encoding.ensure(out, FRAME);
+			out.position(start + FRAME);
+			out = names.put(out, trade.className);
+			out = Encoding.putString(out, trade.symbol);
+			out = Encoding.putDecimal(out, FixedPoint.toDecimal(trade.quantity));
+			out = Encoding.putSide(out, trade.side);
+			out = Encoding.putDecimal(out, FixedPoint.toDecimal(trade.leavesQty));
+			out = Encoding.putDecimal(out, FixedPoint.toDecimal(trade.cumulativeQty));
+			out = names.put(out, trade.orderStatus == null ? null : trade.orderStatus.name());
+			out = Encoding.putSide(out, trade.pendingSide);
+			out = Encoding.putDecimal(out, FixedPoint.toDecimal(trade.averagePrice));
+			out = Encoding.putDecimal(out, FixedPoint.toDecimal(trade.entryPrice));
+			out = Encoding.putVarLong(out, trade.orderTimeout);
+			out = names.put(out, unregistered.nameOf(trade.fillPolicy, trade.symbol));
+			out = names.put(out, unregistered.nameOf(trade.orderTimeoutPolicy, trade.symbol));
+			out = names.put(out, unregistered.nameOf(trade.rejectPolicy, trade.symbol));
+			out = Encoding.putVarLong(out, trade.journalSequence);
+			frame(out, start, crc);
+
+			if ( out.position() >= CHUNK - CHUNK / 8 ) {
+				flush(out, channel);
+			}
+		}
+
+		out = Encoding.ensure(out, 8);
+		out.putInt(0);
+		out.putInt(image.trades.length);
+		flush(out, channel);
+		unregistered.warn();
+	}
+
+	/**
+	 * Read a snapshot from the channel.  The returned portfolio has no
+	 * parent strategy, and its trades have no parent portfolio yet.
+	 *
+	 * @param channel
+	 * @return
+	 * @throws IOException
+	 */
+	public static Portfolio read( ReadableByteChannel channel ) throws IOException {
+		CRC32 crc = new CRC32();
+		Names names = new Names();
+		ByteBuffer in = ByteBuffer.allocate(CHUNK);
+		in.flip();
+
+		in = require(in, channel, 6);
+		if ( in.getInt() != MAGIC ) {
+			throw new IOException("not a portfolio snapshot");
+		}
+		short version = in.getShort();
+		if ( version != VERSION ) {
+			throw new IOException("unsupported snapshot version " + version);
+		}
+
+		PortfolioImpl portfolio = new PortfolioImpl(null);
+		in = require(in, channel, 4);
+		in = require(in, channel, FRAME + in.getInt(in.position()));
+		ByteBuffer header = record(in, crc);
+		String broker = Encoding.getString(header);
+		String account = Encoding.getString(header);
+		FillPolicy fillPolicy = PolicyRegistry.getFillPolicy(names.get(header));
+		OrderTimeoutPolicy timeoutPolicy = PolicyRegistry.getOrderTimeoutPolicy(names.get(header));
+		RejectPolicy rejectPolicy = PolicyRegistry.getRejectPolicy(names.get(header));
+		boolean hasTimeout = header.get() != 0;
+		long timeout = Encoding.getVarLong(header);
+		portfolio.restore(new PortfolioImage(
+				broker == null ? null : new BrokerID(broker), account,
+				fillPolicy, timeoutPolicy, rejectPolicy,
+				hasTimeout ? Long.valueOf(timeout) : null,
+				Encoding.getVarLong(header), null));
+
+		int count = 0;
+		while ( true ) {
+			in = require(in, channel, 4);
+			int length = in.getInt(in.position());
+			if ( length == 0 ) {
+				in = require(in, channel, 8);
+				in.getInt();
+				int expected = in.getInt();
+				if ( expected != count ) {
+					throw new IOException("snapshot has " + count + " trades, expected " + expected);
+				}
+				break;
+			}
+			if ( length < 0 ) {
+				throw new IOException("malformed trade record");
+			}
+			in = require(in, channel, FRAME + length);
+			ByteBuffer record = record(in, crc);
+			String className = names.get(record);
+			String symbol = Encoding.getString(record);
+			long quantity = FixedPoint.fromDecimal(Encoding.getDecimal(record));
+			Side side = Encoding.getSide(record);
+			long leavesQty = FixedPoint.fromDecimal(Encoding.getDecimal(record));
+			long cumulativeQty = FixedPoint.fromDecimal(Encoding.getDecimal(record));
+			String status = names.get(record);
+			Side pendingSide = Encoding.getSide(record);
+			long averagePrice = FixedPoint.fromDecimal(Encoding.getDecimal(record));
+			long entryPrice = FixedPoint.fromDecimal(Encoding.getDecimal(record));
+			long orderTimeout = Encoding.getVarLong(record);
+			FillPolicy fill = PolicyRegistry.getFillPolicy(names.get(record));
+			OrderTimeoutPolicy onTimeout = PolicyRegistry.getOrderTimeoutPolicy(names.get(record));
+			RejectPolicy reject = PolicyRegistry.getRejectPolicy(names.get(record));
+			long journalSequence = Encoding.getVarLong(record);
+
+			Trade trade = newTrade(className, symbol);
+			trade.restore(new TradeImage(className, symbol, quantity, side,
+					leavesQty, cumulativeQty,
+					status == null ? null : OrderStatus.valueOf(status),
+					pendingSide, averagePrice, entryPrice, orderTimeout,
+					fill, onTimeout, reject, journalSequence));
+			portfolio.restoreTrade(trade);
+			count++;
+		}
+		return portfolio;
+	}
+
+	/**
+	 * Returns true if and only if the file read by the channel starts with
+	 * a snapshot header.  The position of the channel is not changed.
+	 *
+	 * @param channel
+	 * @return
+	 * @throws IOException
+	 */
+	public static boolean isSnapshot( FileChannel channel ) throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(4);
+		while ( header.hasRemaining() ) {
+			if ( channel.read(header, header.position()) < 0 ) return false;
+		}
+		return header.getInt(0) == MAGIC;
+	}
+
+	// PRIVATE METHODS //
+
+	/**
+	 * Fill in the length and checksum of the record that starts at the
+	 * given position and ends at the current position.
+	 */
+	private static void frame( ByteBuffer out, int start, CRC32 crc ) {
+		int length = out.position() - start - FRAME;
+		crc.reset();
+		crc.update(out.array(), out.arrayOffset() + start + FRAME, length);
+		out.putInt(start, length);
+		out.putInt(start + 4, (int)crc.getValue());
+	}
+
+	/**
+	 * Take the next record out of the buffer, after verifying its checksum.
+	 */
+	private static ByteBuffer record( ByteBuffer in, CRC32 crc ) throws IOException {
+		int length = in.getInt();
+		int checksum = in.getInt();
+		crc.reset();
+		crc.update(in.array(), in.arrayOffset() + in.position(), length);
+		if ( (int)crc.getValue() != checksum ) {
+			throw new IOException("snapshot record is corrupt");
+		}
+		ByteBuffer record = in.slice();
+		record.limit(length);
+		in.position(in.position() + length);
+		return record;
+	}
+
+	private static void flush( ByteBuffer out, WritableByteChannel channel ) throws IOException {
+		out.flip();
+		while ( out.hasRemaining() ) {
+			channel.write(out);
+		}
+		out.clear();
+	}
+
+	/**
+	 * Returns a buffer holding at least the given number of unread bytes,
+	 * reading more from the channel as needed.
+	 */
+	private static ByteBuffer require( ByteBuffer in, ReadableByteChannel channel, int bytes )
+		throws IOException {
+		if ( in.remaining() >= bytes ) return in;
+		if ( in.capacity() < bytes ) {
+			ByteBuffer grown = ByteBuffer.allocate(Math.max(in.capacity() << 1, bytes));
+			grown.put(in);
+			in = grown;
+		} else {
+			in.compact();
+		}
+		while ( in.position() < bytes ) {
+			if ( channel.read(in) < 0 ) {
+				throw new EOFException("snapshot is truncated");
+			}
+		}
+		in.flip();
+		return in;
+	}
+
+	private static Trade newTrade( String className, String symbol ) {
+		if ( Trade.class.getName().equals(className) ) {
+			return new Trade(symbol);
+		}
+		try {
+			Class<? extends Trade> type = Class.forName(className).asSubclass(Trade.class);
+			return type.getConstructor(String.class).newInstance(symbol);
+		} catch (Exception e) {
+			logger.warn(">>> Cannot restore " + symbol + " as " + className +
+					"; restoring it as a Trade. (" + e + ")");
+			return new Trade(symbol);
+		}
+	}
+
+}
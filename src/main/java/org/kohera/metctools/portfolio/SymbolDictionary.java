@@ -0,0 +1,112 @@
+package org.kohera.metctools.portfolio;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.marketcetera.trade.MSymbol;
+
+/**
+ * Dictionary of the symbols known to the portfolio package.
+ * 
+ * Each symbol is given a dense int id the first time it is interned
+ * (i.e. when a Trade for it is created), which stays the same for the
+ * life of the JVM.  Portfolio tables are indexed by these ids, so routing
+ * an event only takes one dictionary lookup of the event's symbol string,
+ * followed by array accesses.
+ * 
+ * Ids are not stable across JVM runs and must not be persisted; Trades
+ * re-intern their symbol when they are deserialized.
+ * 
+ * Symbols are never removed.  Lookups do not lock; interning a new symbol
+ * is serialized.
+ * 
+ */
+public final class SymbolDictionary {
+
+	/** Id returned by lookup() for symbols that have not been interned. */
+	public static final int UNKNOWN = -1;
+	
+	/* fields */
+	private static final ConcurrentMap<String,Integer> ids = 
+		new ConcurrentHashMap<String,Integer>();
+	private static volatile String[] symbols = new String[64];
+	private static int count;						// guarded by the class lock
+	
+	private SymbolDictionary() { }
+	
+	/**
+	 * Returns the id of a symbol, assigning the next free id if the symbol
+	 * is new.
+	 * 
+	 * @param symbol
+	 * @return
+	 */
+	public static int intern( String symbol ) {
+		Integer id = ids.get(symbol);
+		if ( id != null ) {
+			return id.intValue();
+		}
+		synchronized(SymbolDictionary.class) {
+			id = ids.get(symbol);
+			if ( id != null ) {
+				return id.intValue();
+			}
+			int next = count;
+			String[] array = symbols;
+			if ( next == array.length ) {
+				array = Arrays.copyOf(array, next << 1);
+			}
+			array[next] = symbol;
+			symbols = array;
+			count = next + 1;
+			/* publish the id last, so that getSymbol() works for every id handed out */
+			ids.put(symbol, Integer.valueOf(next));
+			return next;
+		}
+	}
+	
+	/**
+	 * Returns the id of a symbol, or UNKNOWN if it has never been interned.
+	 * 
+	 * @param symbol
+	 * @return
+	 */
+	public static int lookup( String symbol ) {
+		Integer id = ids.get(symbol);
+		return id == null ? UNKNOWN : id.intValue();
+	}
+	
+	/**
+	 * Returns the id of a symbol, or UNKNOWN if it has never been interned.
+	 * 
+	 * @param symbol
+	 * @return
+	 */
+	public static int lookup( MSymbol symbol ) {
+		if ( symbol == null ) return UNKNOWN;
+		return lookup(symbol.getFullSymbol());
+	}
+	
+	/**
+	 * Returns the symbol with the given id, or null.
+	 * 
+	 * @param id
+	 * @return
+	 */
+	public static String getSymbol( int id ) {
+		String[] array = symbols;
+		if ( id < 0 || id >= array.length ) return null;
+		return array[id];
+	}
+	
+	/**
+	 * Returns the number of symbols interned so far (ids are 0 to size()-1).
+	 * 
+	 * @return
+	 */
+	public static int size() {
+		return ids.size();
+	}
+	
+}
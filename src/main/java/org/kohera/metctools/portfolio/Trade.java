@@ -3,6 +3,7 @@ package org.kohera.metctools.portfolio;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.io.ObjectStreamField;
 import java.io.Serializable;
 import java.math.BigDecimal;
 
@@ -25,6 +26,7 @@ public class Trade implements Serializable {
 	 */
 	private static final long serialVersionUID = -8466519547231754210L;
 	private static final long DEFAULT_ORDER_TIMEOUT = 60*1000;
+	private static final BigDecimal TWO = BigDecimal.valueOf(2);
 	
 	/* internal fields  */
 	transient private 
@@ -33,34 +35,86 @@ public class Trade implements Serializable {
 		OrderProcessor 		orderProcessor;		// order processing object
 
 	/* accounting */
-	private final String 	symbol;				// underlying symbol
-	private BigDecimal 		quantity;			// unsigned number of shares
+	private String 			symbol;				// underlying symbol (set once; see readObject())
+	transient private int	symbolId;			// id of the symbol in the SymbolDictionary
+	private long 			quantity;			// unsigned number of shares
 	private Side 			side;				// side of the position
 	
-	private BigDecimal 		leavesQty;			// leavesQuantity of the pending order
-	private BigDecimal 		cumulativeQty;		// number of shares pending fill
+	/* quantities and prices are fixed point (see FixedPoint) */
+	private long 			leavesQty;			// leavesQuantity of the pending order
+	private long 			cumulativeQty;		// number of shares pending fill
 	private OrderStatus		orderStatus;		// order status of last (pertinent) execution report
 	private Side 			pendingSide;		// side of the incoming fills
-	private BigDecimal 		averagePrice;		// average price of last fill
-	private BigDecimal		entryPrice;			// average price of the opening order (reset when trade is zeroed) 
+	private long 			averagePrice;		// average price of last fill
+	private long			entryPrice;			// average price of the opening order (reset when trade is zeroed) 
 	
 	private TradeEvent 		lastTradeEvent;		// last trade of the underlying symbol
 	private BidEvent 		lastBidEvent;		// last bid of the underlying symbol
 	private AskEvent 		lastAskEvent;		// last ask of the underlying symbol
 	
+	/* top of book of the underlying symbol (zero until the first quote) */
+	private BigDecimal		bidPrice;
+	private BigDecimal		bidSize;
+	private BigDecimal		askPrice;
+	private BigDecimal		askSize;
+	
 	private BrokerID		brokerId;
 	private String			account;
 	
-	/* policies */
-	private long 			orderTimeout;		// default timeout in milliseconds
-	private FillPolicy 		fillPolicy;			// default fill policy (what to do on a fill?)
-	private OrderTimeoutPolicy orderTimeoutPolicy; // default order timeout policy (what to do if order times out?)
-	private RejectPolicy	rejectPolicy;
+	/* policies (may be set on any thread; see policiesChanged()) */
+	private volatile long 	orderTimeout;		// default timeout in milliseconds
+	private volatile
+		FillPolicy 			fillPolicy;			// default fill policy (what to do on a fill?)
+	private volatile
+		OrderTimeoutPolicy 	orderTimeoutPolicy; // default order timeout policy (what to do if order times out?)
+	private volatile
+		RejectPolicy		rejectPolicy;
+	
+	/* snapshots and journal */
+	private long			journalSequence;	// sequence of the last journal record applied
+	transient private volatile
+		long				pendingSequence;	// journaled but not yet in the image (or 0)
+	transient private volatile
+		TradeImage			image;				// copy-on-write image for snapshots
+	transient private volatile
+		Aggregator.Contribution contribution;	// share of the portfolio aggregates (or null)
+	transient private
+		ProfitLoss			profitLoss;			// incremental profit-loss
+	transient private
+		AccountMatcher		accountMatcher;		// of execution reports
 	
 	/* logging */
 	private final static Logger logger = 
 		Logger.getLogger(Trade.class);
 	
+	/* serialized form: the accounting fields are still written as the
+	 * BigDecimals of earlier versions (see writeObject()) */
+	private static final ObjectStreamField[] serialPersistentFields = {
+		new ObjectStreamField("symbol", String.class),
+		new ObjectStreamField("quantity", BigDecimal.class),
+		new ObjectStreamField("side", Side.class),
+		new ObjectStreamField("leavesQty", BigDecimal.class),
+		new ObjectStreamField("cumulativeQty", BigDecimal.class),
+		new ObjectStreamField("orderStatus", OrderStatus.class),
+		new ObjectStreamField("pendingSide", Side.class),
+		new ObjectStreamField("averagePrice", BigDecimal.class),
+		new ObjectStreamField("entryPrice", BigDecimal.class),
+		new ObjectStreamField("lastTradeEvent", TradeEvent.class),
+		new ObjectStreamField("lastBidEvent", BidEvent.class),
+		new ObjectStreamField("lastAskEvent", AskEvent.class),
+		new ObjectStreamField("bidPrice", BigDecimal.class),
+		new ObjectStreamField("bidSize", BigDecimal.class),
+		new ObjectStreamField("askPrice", BigDecimal.class),
+		new ObjectStreamField("askSize", BigDecimal.class),
+		new ObjectStreamField("brokerId", BrokerID.class),
+		new ObjectStreamField("account", String.class),
+		new ObjectStreamField("orderTimeout", long.class),
+		new ObjectStreamField("fillPolicy", FillPolicy.class),
+		new ObjectStreamField("orderTimeoutPolicy", OrderTimeoutPolicy.class),
+		new ObjectStreamField("rejectPolicy", RejectPolicy.class),
+		new ObjectStreamField("journalSequence", long.class)
+	};
+	
 	
 	// CONSTRUCTORS //
 	
@@ -74,6 +128,7 @@ public class Trade implements Serializable {
 	 */
 	public Trade( String symbol, Portfolio parent ) {
 		this.symbol = symbol;
+		this.symbolId = SymbolDictionary.intern(symbol);
 		this.parentPortfolio = parent;
 		init();
 	}
@@ -125,6 +180,7 @@ public class Trade implements Serializable {
 	 */
 	public final void setOrderTimeout(long orderTimeout) {
 		this.orderTimeout = orderTimeout;
+		policiesChanged();
 	}
 
 	/**
@@ -143,6 +199,7 @@ public class Trade implements Serializable {
 	 */
 	public final void setFillPolicy(FillPolicy fillPolicy) {
 		this.fillPolicy = fillPolicy;
+		policiesChanged();
 	}
 
 	/**
@@ -161,6 +218,7 @@ public class Trade implements Serializable {
 	 */
 	public final void setOrderTimeoutPolicy(OrderTimeoutPolicy orderTimeoutPolicy) {
 		this.orderTimeoutPolicy = orderTimeoutPolicy;
+		policiesChanged();
 	}
 
 	/**
@@ -179,6 +237,7 @@ public class Trade implements Serializable {
 	 */
 	public final void setRejectPolicy(RejectPolicy rejectPolicy) {
 		this.rejectPolicy = rejectPolicy;
+		policiesChanged();
 	}
 
 	/**
@@ -201,6 +260,15 @@ public class Trade implements Serializable {
 		return symbol;
 	}
 
+	/**
+	 * Gets the id of this Trade's symbol in the SymbolDictionary.
+	 * 
+	 * @return
+	 */
+	public final int getSymbolId() {
+		return symbolId;
+	}
+
 	/**
 	 * Gets the transacted quantity of this Trade.
 	 * 
@@ -213,7 +281,7 @@ public class Trade implements Serializable {
 	 * @return
 	 */
 	public final BigDecimal getQty() {
-		return quantity;
+		return FixedPoint.toDecimal(quantity);
 	}
 
 	/**
@@ -233,7 +301,7 @@ public class Trade implements Serializable {
 	 * @return
 	 */
 	public final BigDecimal getLeavesQty() {
-		return leavesQty;
+		return FixedPoint.toDecimal(leavesQty);
 	}
 
 	/**
@@ -247,7 +315,7 @@ public class Trade implements Serializable {
 	 * @return
 	 */
 	public final BigDecimal getCumulativeQty() {
-		return cumulativeQty;
+		return FixedPoint.toDecimal(cumulativeQty);
 	}
 
 	/**
@@ -293,7 +361,7 @@ public class Trade implements Serializable {
 	 * @return
 	 */
 	public final BigDecimal getAveragePrice() {
-		return averagePrice;
+		return FixedPoint.toDecimal(averagePrice);
 	}
 
 	/**
@@ -329,7 +397,7 @@ public class Trade implements Serializable {
 	 * @return
 	 */
 	public final BigDecimal getEntryPrice() {
-		return entryPrice;
+		return FixedPoint.toDecimal(entryPrice);
 	}
 	
 	public final Logger getLogger() {
@@ -376,7 +444,7 @@ public class Trade implements Serializable {
 	 * @return
 	 */
 	public final boolean isFilling() {
-		return (isPending() && getCumulativeQty().intValue()!=0);
+		return (isPending() && cumulativeQty!=0);
 	}
 	
 	/**
@@ -387,7 +455,7 @@ public class Trade implements Serializable {
 	 * @return
 	 */
 	public final boolean isOpen() {
-		return (getNetQty().intValue()!=0);
+		return (netQty()!=0);
 	}
 	
 	/**
@@ -399,7 +467,7 @@ public class Trade implements Serializable {
 	 * @return
 	 */
 	public final BigDecimal getSignedQty() {
-		return side.polarize(quantity);
+		return FixedPoint.toDecimal(side.polarize(quantity));
 	}
 	
 	/**
@@ -418,7 +486,7 @@ public class Trade implements Serializable {
 	}
 
 	/**
-	 * Returns the last ask event.
+	 * Returns the last ask event, or null.
 	 * 
 	 * @return
 	 */
@@ -429,16 +497,15 @@ public class Trade implements Serializable {
 	/**
 	 * Returns the last ask event price.
 	 * 
+	 * @see getAskPrice()
 	 * @return
 	 */
 	public final BigDecimal getLastAskPrice() {
-		if ( lastAskEvent==null) {
-			return BigDecimal.ZERO;
-		} return lastAskEvent.getPrice();
+		return askPrice;
 	}
 	
 	/**
-	 * Returns the last bid event.
+	 * Returns the last bid event, or null.
 	 * 
 	 * @return
 	 */
@@ -449,10 +516,83 @@ public class Trade implements Serializable {
 	/**
 	 * Returns the last bid event price.
 	 * 
+	 * @see getBidPrice()
 	 * @return
 	 */
 	public final BigDecimal getLastBidPrice() {
-		return lastBidEvent.getPrice();
+		return bidPrice;
+	}
+	
+	/**
+	 * Returns the best bid price of the underlying symbol, or zero if
+	 * no bid has been received.
+	 * 
+	 * Like getLastPrice(), this requires the Trade to reside in a
+	 * PortfolioStrategy's Portfolio with market data turned on.
+	 * 
+	 * @return
+	 */
+	public final BigDecimal getBidPrice() {
+		return bidPrice;
+	}
+	
+	/**
+	 * Returns the size at the best bid, or zero.
+	 * 
+	 * @return
+	 */
+	public final BigDecimal getBidSize() {
+		return bidSize;
+	}
+	
+	/**
+	 * Returns the best ask price of the underlying symbol, or zero if
+	 * no ask has been received.
+	 * 
+	 * @return
+	 */
+	public final BigDecimal getAskPrice() {
+		return askPrice;
+	}
+	
+	/**
+	 * Returns the size at the best ask, or zero.
+	 * 
+	 * @return
+	 */
+	public final BigDecimal getAskSize() {
+		return askSize;
+	}
+	
+	/**
+	 * Returns true if and only if both a bid and an ask have been received.
+	 * 
+	 * @return
+	 */
+	public final boolean hasQuote() {
+		return bidPrice.signum() != 0 && askPrice.signum() != 0;
+	}
+	
+	/**
+	 * Returns the midpoint of the best bid and ask, or zero if there
+	 * is no two-sided quote.
+	 * 
+	 * @return
+	 */
+	public final BigDecimal getMidPrice() {
+		if ( !hasQuote() ) return BigDecimal.ZERO;
+		return bidPrice.add(askPrice).divide(TWO);
+	}
+	
+	/**
+	 * Returns the difference between the best ask and bid, or zero if
+	 * there is no two-sided quote.
+	 * 
+	 * @return
+	 */
+	public final BigDecimal getSpread() {
+		if ( !hasQuote() ) return BigDecimal.ZERO;
+		return askPrice.subtract(bidPrice);
 	}
 	
 	/**
@@ -473,11 +613,7 @@ public class Trade implements Serializable {
 	 * @return
 	 */
 	public final BigDecimal getNetQty() {
-		/* 1 = position and fills are the same side; 
-		 * -1 = position and fills are different side;
-		 * recall that all quantities are unsigned */
-		BigDecimal polarity = side.polarize(pendingSide);
-		return quantity.add( polarity.multiply(cumulativeQty));
+		return FixedPoint.toDecimal(netQty());
 	}
 	
 	/**
@@ -488,19 +624,19 @@ public class Trade implements Serializable {
 	 * @return
 	 */
 	public final BigDecimal getSignedNetQty() {
-		return side.polarize(getNetQty());
+		return FixedPoint.toDecimal(side.polarize(netQty()));
 	}
 	
 	public final BigDecimal getSignedCumulativeQty() {
-		return side.polarize(getCumulativeQty());
+		return FixedPoint.toDecimal(side.polarize(cumulativeQty));
 	}
 	
 	public final BigDecimal getSignedLeavesQty() {
-		return side.polarize(getLeavesQty());
+		return FixedPoint.toDecimal(side.polarize(leavesQty));
 	}
 	
 	/**
-	 * Returns the profit-loss for this trade.
+	 * Returns the profit-loss for this trade, in percent.
 	 * 
 	 * The profit-loss is based on the entry price given by
 	 * entryPrice() and the last data event that has occurred.
@@ -511,17 +647,44 @@ public class Trade implements Serializable {
 	 * @return
 	 */
 	public final BigDecimal getProfitLoss() {
-		BigDecimal last = getLastPrice();
-		if ( last == null || entryPrice == null || entryPrice.intValue()==0 ) {
+		long change = profitLoss.getChangePercent();
+		if ( change == 0 ) {
 			return BigDecimal.ZERO;
 		}
-		BigDecimal change = last.setScale(8,BigDecimal.ROUND_HALF_UP)
-						.divide(entryPrice,BigDecimal.ROUND_HALF_UP)
-						.subtract(BigDecimal.valueOf(1))
-						.multiply(BigDecimal.valueOf(100))
-						.setScale(4, BigDecimal.ROUND_HALF_UP );
+		return side.polarize(FixedPoint.toDecimal(change)
+						.setScale(4, BigDecimal.ROUND_HALF_UP));
+	}
 	
-		return side.polarize(change);
+	/**
+	 * Returns the profit-loss realized by the fills that reduced the
+	 * position, against its average cost, since this Trade was created
+	 * or loaded.
+	 * 
+	 * @return
+	 */
+	public final BigDecimal getRealizedProfitLoss() {
+		return FixedPoint.toDecimal(profitLoss.getRealized());
+	}
+	
+	/**
+	 * Returns the profit-loss of the open position at the last price,
+	 * against its average cost.  Like getProfitLoss(), this requires
+	 * market data.
+	 * 
+	 * @return
+	 */
+	public final BigDecimal getUnrealizedProfitLoss() {
+		return FixedPoint.toDecimal(profitLoss.getUnrealized());
+	}
+	
+	/**
+	 * Returns the total profit-loss in currency: the realized plus the
+	 * unrealized profit-loss.
+	 * 
+	 * @return
+	 */
+	public final BigDecimal getDollarProfitLoss() {
+		return FixedPoint.toDecimal(profitLoss.getRealized() + profitLoss.getUnrealized());
 	}
 	
 	@Override
@@ -530,21 +693,49 @@ public class Trade implements Serializable {
 				getSymbol(),
 				getLastPrice().floatValue(),
 				(getSide()==Side.BUY?"+":(getSide()==Side.SELL?"-":"")),
-				getQty().intValue(),
+				quantity / FixedPoint.ONE,
 				/* shows pending values if order is pending */
 				isFilling()? "(" + getCumulativeQty() + "cq/"+ getLeavesQty() + "lq)" : "",
-				getEntryPrice().floatValue());
+				(double)entryPrice / FixedPoint.ONE);
 	}
 	
 	
 	// OVERRIDES //
 	
 	public final void overrideSide( Side side ) {
+		Journal journal = getJournal();
+		if ( journal != null ) {
+			journaled(journal.appendSide(this, side));
+		}
 		this.side = side;
+		publish();
+		pendingSequence = 0;
 	}
-	
+
 	public final void overrideQuantity( BigDecimal quantity ) {
-		this.quantity = quantity;
+		Journal journal = getJournal();
+		if ( journal != null ) {
+			journaled(journal.appendQuantity(this, quantity));
+		}
+		this.quantity = FixedPoint.fromDecimal(quantity);
+		publish();
+		pendingSequence = 0;
+	}
+
+	/**
+	 * Overrides the quantity and side together from a signed position, as
+	 * a single journaled change.
+	 *
+	 * @param position
+	 */
+	public final void overridePosition( BigDecimal position ) {
+		Journal journal = getJournal();
+		if ( journal != null ) {
+			journaled(journal.appendPosition(this, position));
+		}
+		replayPosition(position);
+		publish();
+		pendingSequence = 0;
 	}
 	
 	public final void unsetParentPortfolio() {
@@ -562,19 +753,43 @@ public class Trade implements Serializable {
 	public final void acceptTradeEvent(TradeEvent tradeEvent) {
 		lastTradeEvent = tradeEvent;
 		
+		/* revalue the position, and the portfolio aggregates */
+		if ( profitLoss.revalue(FixedPoint.fromDecimal(tradeEvent.getPrice())) ) {
+			Aggregator.Contribution current = contribution;
+			if ( current != null ) {
+				current.getOwner().revalue(this, profitLoss);
+			}
+		}
+		
 		/* for subclass processing of efficiently-routed TradeEvents */
 		onTradeEvent(tradeEvent);
 	}
 	
+	/**
+	 * Interface for getting the latest BidEvent.  Updates the top of book;
+	 * the event is kept as the last one.
+	 * 
+	 * @param bidEvent
+	 */
 	public final void acceptBidEvent(BidEvent bidEvent) {
 		lastBidEvent = bidEvent;
-		/* for subclass processing of efficiently-routed TradeEvents */
+		bidPrice = nonNull(bidEvent.getPrice());
+		bidSize = nonNull(bidEvent.getSize());
+		/* for subclass processing of efficiently-routed BidEvents */
 		onBidEvent(bidEvent);
 	}
 	
+	/**
+	 * Interface for getting the latest AskEvent.  Updates the top of book;
+	 * the event is kept as the last one.
+	 * 
+	 * @param askEvent
+	 */
 	public final void acceptAskEvent(AskEvent askEvent) {
 		lastAskEvent = askEvent;
-		/* for subclass processing of efficiently-routed TradeEvents */
+		askPrice = nonNull(askEvent.getPrice());
+		askSize = nonNull(askEvent.getSize());
+		/* for subclass processing of efficiently-routed AskEvents */
 		onAskEvent(askEvent);
 	}
 	
@@ -603,9 +818,9 @@ public class Trade implements Serializable {
 	 * than execution reports and do not contain symbol information, they
 	 * are routed through the parent PortfolioStrategy's TradeRouter.
 	 * 
-	 * The TradeRouter will try to search for a Trade in the Portfolio that
-	 * contains a pendingOrderId that matches this reject message.  If no
-	 * such Trade exists, execution never reaches this method.
+	 * The TradeRouter looks up the Trade whose pendingOrderId matches this
+	 * reject message in the strategy's order index.  If no such Trade
+	 * exists, execution never reaches this method.
 	 *
 	 * @param reject
 	 */
@@ -625,13 +840,28 @@ public class Trade implements Serializable {
 			ExecutionReport report) {
 		
 		/* check the correct symbol and account */
-		if ( !report.getSymbol().toString().equals(symbol) || 
-				!report.getAccount().toString().equals(account) ) {
+		if ( SymbolDictionary.lookup(report.getSymbol()) != symbolId || 
+				!accountMatcher.matches(account, report.getAccount()) ) {
 			logger.debug( Messages.MSG_EXTERNAL_REPORT(this));
 			logger.debug(">>> " + symbol + "/" + report.getAccount());
 			return;
 		}
 		
+		applyExecutionReport(sender, report);
+	}
+	
+	/**
+	 * Adjusts the trade information based on an execution report that is
+	 * known to be for this trade's symbol and account.  The TradeRouter
+	 * calls this directly once it has matched the report, so that the
+	 * checks of acceptExecutionReport() are not repeated on every report.
+	 * 
+	 * @param sender
+	 * @param report
+	 */
+	final void applyExecutionReport(DelegatorStrategy sender,
+			ExecutionReport report) {
+		
 		/* 
 		 * HANDLING OF EXTERNAL EXECUTION REPORTS
 		 * 
@@ -670,9 +900,27 @@ public class Trade implements Serializable {
 					report);
 			return;
 		}
+
+		/* write ahead */
+		Journal journal = getJournal();
+		if ( journal != null ) {
+			journaled(journal.appendReport(this, report));
+		}
+
+		try {
+			applyReport(report);
+		} finally {
+			publish();
+			pendingSequence = 0;
+		}
 		
+		/* finally let the subclasses do something */
+		onExecutionReport(report);
+	}
+	
+	private final void applyReport(ExecutionReport report) {
 		orderStatus = report.getOrderStatus();
-		
+
 		switch(orderStatus) {
 		case New:
 			/* scrape the report, and log */
@@ -706,9 +954,6 @@ public class Trade implements Serializable {
 					orderStatus + ", which is not implemented.");
 			break;
 		}
-		
-		/* finally let the subclasses do something */
-		onExecutionReport(report);
 	}
 	
 	/**
@@ -734,7 +979,9 @@ public class Trade implements Serializable {
 		scrapeReport(report);
 		
 		/* logging */
-		logger.trace(">>>\t" + report);
+		if ( logger.isTraceEnabled() ) {
+			logger.trace(">>>\t" + report);
+		}
 	}
 	
 	/**
@@ -751,8 +998,12 @@ public class Trade implements Serializable {
 		}
 		
 		/* logging */
-		logger.info(">>> " + this + ": Partial fill on " + report.getOrderID() + ".");
-		logger.trace(">>> " + report);
+		if ( logger.isInfoEnabled() ) {
+			logger.info(">>> " + this + ": Partial fill on " + report.getOrderID() + ".");
+		}
+		if ( logger.isTraceEnabled() ) {
+			logger.trace(">>> " + report);
+		}
 	}
 	
 	/**
@@ -769,9 +1020,9 @@ public class Trade implements Serializable {
 		}
 
 		scrapeReport(report);
-		updateQuantity(report);
-		
-		if ( entryPrice.intValue()==0 ) {
+		updateQuantity();
+
+		if ( entryPrice==0 ) {
 			entryPrice = averagePrice;
 		}
 	
@@ -783,7 +1034,7 @@ public class Trade implements Serializable {
 		clearPendingFields();
 		
 		/* reset trade if zeroed */
-		if ( getNetQty().intValue()==0) {
+		if ( netQty()==0 ) {
 			clearAccountingFields();
 		}
 		
@@ -800,18 +1051,16 @@ public class Trade implements Serializable {
 	 * Explanation: Incoming position is accounted for by the cumulativeQty
 	 * and leavesQty fields.  Once the order is filled, leavesQty becomes 0
 	 * and the cumulativeQty is incorporated into the quantity field.
-	 * 
-	 * @param fillReport
+	 *
 	 */
-	private void updateQuantity( ExecutionReport fillReport ) {
+	private void updateQuantity() {
 		/* add the cumulativeQty to the quantity */
-		quantity = getNetQty(); 
+		quantity = netQty(); 
 		
 		/* check if we have switched sides */
-		if ( quantity.compareTo(BigDecimal.ZERO)<0) {
+		if ( quantity<0 ) {
 			side = side.opposite();
-			BigDecimal inv = BigDecimal.valueOf(-1L,0);
-			quantity = quantity.multiply(inv);
+			quantity = -quantity;
 			logger.info(">>>\t" + this + ": Position has switched sides!");
 		}
 	}
@@ -828,10 +1077,12 @@ public class Trade implements Serializable {
 		scrapeReport(report);
 			
 		/* logging */
-		logger.info(">>> " + this + ": Order " + report.getOriginalOrderID() + " has been canceled." );
+		if ( logger.isInfoEnabled() ) {
+			logger.info(">>> " + this + ": Order " + report.getOriginalOrderID() + " has been canceled." );
+		}
 		
 		/* update the quantity */
-		updateQuantity(report);
+		updateQuantity();
 		
 		/* timeout */
 		orderProcessor.cancelSuccess();
@@ -851,18 +1102,318 @@ public class Trade implements Serializable {
 		rejectPolicy.onReject(parentPortfolio.getParentStrategy(),
 				report.getOrderID(),this,report);
 	}
-	
+
+
+	// JOURNAL REPLAY //
+
+	/**
+	 * Re-applies a journaled execution report.  This makes the same changes
+	 * to the accounting fields as applyExecutionReport(), but leaves the
+	 * OrderProcessor alone and does not run any policies or callbacks.
+	 *
+	 * @param status
+	 * @param reportSide
+	 * @param cumulative
+	 * @param leaves
+	 * @param average
+	 */
+	final void replayReport(OrderStatus status, Side reportSide,
+			BigDecimal cumulativeQuantity, BigDecimal leavesQuantity, BigDecimal averageFillPrice) {
+		long cumulative = FixedPoint.fromDecimal(cumulativeQuantity);
+		long leaves = FixedPoint.fromDecimal(leavesQuantity);
+		long average = FixedPoint.fromDecimal(averageFillPrice);
+		orderStatus = status;
+
+		switch(status) {
+		case New:
+			scrape(status, reportSide, cumulative, leaves, average);
+			break;
+		case PartiallyFilled:
+			scrape(status, reportSide, cumulative, leaves, average);
+			if ( side==Side.NONE ) {
+				side = reportSide;
+			}
+			break;
+		case Filled:
+			if ( side==Side.NONE ) {
+				side = reportSide;
+			}
+			scrape(status, reportSide, cumulative, leaves, average);
+			updateQuantity();
+			if ( entryPrice==0 ) {
+				entryPrice = averagePrice;
+			}
+			clearPendingFields();
+			if ( netQty()==0 ) {
+				clearAccountingFields();
+			}
+			break;
+		case Canceled:
+			scrape(status, reportSide, cumulative, leaves, average);
+			updateQuantity();
+			clearPendingFields();
+			break;
+		default:
+			break;
+		}
+	}
+
+	/**
+	 * Re-applies a journaled quantity override.
+	 *
+	 * @param quantity
+	 */
+	final void replayQuantity( BigDecimal quantity ) {
+		this.quantity = FixedPoint.fromDecimal(quantity);
+	}
+
+	/**
+	 * Re-applies a journaled position override.
+	 *
+	 * @param position
+	 */
+	final void replayPosition( BigDecimal position ) {
+		this.quantity = FixedPoint.fromDecimal(position.abs());
+		this.side = Side.fromInt(position.signum());
+	}
+
+	/**
+	 * Re-applies a journaled side override.
+	 *
+	 * @param side
+	 */
+	final void replaySide( Side side ) {
+		this.side = side;
+	}
+
+	/**
+	 * Re-applies journaled policies.  Policies that could not be resolved
+	 * (null) are left as they are.
+	 *
+	 * @param orderTimeout
+	 * @param fillPolicy
+	 * @param orderTimeoutPolicy
+	 * @param rejectPolicy
+	 */
+	final void replayPolicies( long orderTimeout, FillPolicy fillPolicy,
+			OrderTimeoutPolicy orderTimeoutPolicy, RejectPolicy rejectPolicy ) {
+		this.orderTimeout = orderTimeout;
+		if ( fillPolicy != null ) this.fillPolicy = fillPolicy;
+		if ( orderTimeoutPolicy != null ) this.orderTimeoutPolicy = orderTimeoutPolicy;
+		if ( rejectPolicy != null ) this.rejectPolicy = rejectPolicy;
+	}
+
+	/**
+	 * Records that the journal record with the given sequence number has
+	 * been replayed.
+	 *
+	 * @param sequence
+	 */
+	final void replayed( long sequence ) {
+		journalSequence = sequence;
+		publish();
+	}
+
+	/**
+	 * Records that this Trade was put into its portfolio after the journal
+	 * record with the given sequence number.  Replaying the journal then
+	 * neither applies the earlier records of its symbol to it, nor removes
+	 * it for an earlier removal of its symbol (see Journal.replay()).
+	 *
+	 * @param sequence
+	 */
+	final void createdAfter( long sequence ) {
+		journalSequence = sequence;
+		publish();
+	}
+
+
+	// SNAPSHOTS //
+
+	/**
+	 * Returns the sequence number of the last journal record applied to
+	 * this Trade.
+	 *
+	 * @return
+	 */
+	final long getJournalSequence() {
+		return journalSequence;
+	}
+
+	/**
+	 * Returns the sequence number of a journal record that has been
+	 * appended for this Trade but is not yet in its image, or 0.
+	 *
+	 * @return
+	 */
+	final long getPendingSequence() {
+		return pendingSequence;
+	}
+
+	/**
+	 * Called by the Journal, under its lock, when a record for this Trade
+	 * has been appended.
+	 *
+	 * @param sequence
+	 */
+	final void markPending( long sequence ) {
+		pendingSequence = sequence;
+	}
+
+	/**
+	 * Returns the profit-loss engine of this Trade.
+	 *
+	 * @return
+	 */
+	final ProfitLoss getProfitLossEngine() {
+		return profitLoss;
+	}
+
+	/**
+	 * Returns this Trade's share of the aggregates of its portfolio, or
+	 * null (see Aggregator).
+	 *
+	 * @return
+	 */
+	final Aggregator.Contribution getContribution() {
+		return contribution;
+	}
+
+	/**
+	 * Sets this Trade's share of the aggregates of its portfolio.
+	 *
+	 * @param contribution
+	 */
+	final void setContribution( Aggregator.Contribution contribution ) {
+		this.contribution = contribution;
+	}
+
+	/**
+	 * Returns the current image of this Trade.
+	 *
+	 * @return
+	 */
+	final TradeImage getImage() {
+		return image;
+	}
+
+	/**
+	 * Returns the image of this Trade for a snapshot: the current image,
+	 * with the current policies if they have been set since it was
+	 * published.
+	 *
+	 * @return
+	 */
+	final TradeImage getSnapshotImage() {
+		TradeImage current = image;
+		long timeout = orderTimeout;
+		FillPolicy fill = fillPolicy;
+		OrderTimeoutPolicy onTimeout = orderTimeoutPolicy;
+		RejectPolicy reject = rejectPolicy;
+		if ( current.orderTimeout == timeout && current.fillPolicy == fill &&
+				current.orderTimeoutPolicy == onTimeout && current.rejectPolicy == reject ) {
+			return current;
+		}
+		return current.withPolicies(timeout, fill, onTimeout, reject);
+	}
+
+	/**
+	 * Restores the state of a snapshot image.  Policies that could not be
+	 * resolved (null) are left at their defaults.
+	 *
+	 * @param state
+	 */
+	final void restore( TradeImage state ) {
+		quantity 		= state.quantity;
+		side 			= state.side;
+		leavesQty 		= state.leavesQty;
+		cumulativeQty 	= state.cumulativeQty;
+		orderStatus 	= state.orderStatus;
+		pendingSide 	= state.pendingSide;
+		averagePrice 	= state.averagePrice;
+		entryPrice 		= state.entryPrice;
+		orderTimeout 	= state.orderTimeout;
+		if ( state.fillPolicy != null ) fillPolicy = state.fillPolicy;
+		if ( state.orderTimeoutPolicy != null ) orderTimeoutPolicy = state.orderTimeoutPolicy;
+		if ( state.rejectPolicy != null ) rejectPolicy = state.rejectPolicy;
+		journalSequence = state.journalSequence;
+		publish();
+	}
+
+	/**
+	 * Records the sequence number of the journal record just appended for a
+	 * change of this Trade (0 if it could not be written).
+	 *
+	 * @param sequence
+	 */
+	private final void journaled( long sequence ) {
+		if ( sequence > 0 ) {
+			journalSequence = sequence;
+		}
+	}
+
+	/**
+	 * Journals the policies after one of them has been set.  Policies may
+	 * be set on any thread, e.g. by the portfolio for all of its trades,
+	 * so this does not publish an image, which only the thread that
+	 * applies the events of this Trade may do; snapshots take the current
+	 * policies instead (see getSnapshotImage()).
+	 */
+	private final void policiesChanged() {
+		Journal journal = getJournal();
+		if ( journal != null ) {
+			journal.appendPolicies(this);
+		}
+	}
+
+	/**
+	 * Publishes a new image after a change.  The image is built by the
+	 * thread that made the change.  A journaled change clears the pending
+	 * sequence only after publishing, so that a snapshot never counts a
+	 * record as contained before the image that contains it exists.
+	 */
+	private final void publish() {
+		TradeImage published = new TradeImage(getClass().getName(), symbol, quantity, side,
+				leavesQty, cumulativeQty, orderStatus, pendingSide,
+				averagePrice, entryPrice, orderTimeout, fillPolicy,
+				orderTimeoutPolicy, rejectPolicy, journalSequence);
+		image = published;
+		profitLoss.reconcile(side.polarize(netQty()), entryPrice);
+		
+		/* apply the change to the portfolio aggregates */
+		Aggregator.Contribution current = contribution;
+		if ( current != null ) {
+			current.getOwner().update(this, published, profitLoss);
+		}
+	}
+
 	
 	
 	
 	// PRIVATE METHODS //
 	
+	/**
+	 * Returns the instantaneous position, in fixed point (see getNetQty()).
+	 * 
+	 * @return
+	 */
+	private final long netQty() {
+		/* 1 = position and fills are the same side; 
+		 * -1 = position and fills are different side;
+		 * recall that all quantities are unsigned */
+		return quantity + side.polarize(pendingSide.value() * cumulativeQty);
+	}
+	
 	/**
 	 * Initialization.
 	 */
 	private final void init() {
+		profitLoss = new ProfitLoss();
+		accountMatcher = new AccountMatcher();
+		
 		/* clear accounting fields */
 		clearAccountingFields();
+		clearQuote();
 	
 		/* set the default policies */
 		fillPolicy = FillPolicies.ON_FILL_WARN;
@@ -872,6 +1423,7 @@ public class Trade implements Serializable {
 		
 		initOrderProcessor();
 		setAccountInfo();
+		publish();
 	}
 	
 	private final void initOrderProcessor() {
@@ -900,11 +1452,32 @@ public class Trade implements Serializable {
 	 * @param report
 	 */
 	private final void scrapeReport(ExecutionReport report) {
-		orderStatus 	= report.getOrderStatus();
-		cumulativeQty 	= report.getCumulativeQuantity();
-		leavesQty 		= report.getLeavesQuantity();
-		pendingSide 	= Side.fromMetcSide(report.getSide());
-		averagePrice 	= report.getAveragePrice();
+		scrape(report.getOrderStatus(),
+				Side.fromMetcSide(report.getSide()),
+				FixedPoint.fromDecimal(report.getCumulativeQuantity()),
+				FixedPoint.fromDecimal(report.getLeavesQuantity()),
+				FixedPoint.fromDecimal(report.getAveragePrice()));
+	}
+
+	private final void scrape(OrderStatus status, Side reportSide,
+			long cumulative, long leaves, long average) {
+		orderStatus 	= status;
+		cumulativeQty 	= cumulative;
+		leavesQty 		= leaves;
+		pendingSide 	= reportSide;
+		averagePrice 	= average;
+		profitLoss.fill(reportSide, cumulative, average);
+	}
+
+	/**
+	 * Returns the journal of the parent strategy, or null if there is
+	 * none.
+	 *
+	 * @return
+	 */
+	private final Journal getJournal() {
+		PortfolioStrategy strategy = getParentStrategy();
+		return strategy == null ? null : strategy.getJournal();
 	}
 	
 	/**
@@ -913,28 +1486,109 @@ public class Trade implements Serializable {
 	 * 
 	 */
 	private final void clearPendingFields() {
-		leavesQty = cumulativeQty = BigDecimal.ZERO;
+		leavesQty = cumulativeQty = 0;
 		pendingSide = Side.NONE;		
+		profitLoss.endOrder();
 	}
 	
 	private final void clearAccountingFields() {
-		quantity = leavesQty = cumulativeQty = BigDecimal.ZERO;
-		entryPrice = averagePrice = BigDecimal.ZERO;
+		quantity = leavesQty = cumulativeQty = 0;
+		entryPrice = averagePrice = 0;
 		lastTradeEvent = null;
+		side = pendingSide = Side.NONE;
+	}
+	
+	/**
+	 * Utility method for clearing the top of book.  Unlike the accounting
+	 * fields, the quote stays valid when the position is zeroed.
+	 * 
+	 */
+	private final void clearQuote() {
 		lastBidEvent = null;
 		lastAskEvent = null;
-		side = pendingSide = Side.NONE;
+		bidPrice = bidSize = askPrice = askSize = BigDecimal.ZERO;
 	}
 	
-	// SERIALIZATION //
+	private static BigDecimal nonNull( BigDecimal value ) {
+		return value == null ? BigDecimal.ZERO : value;
+	}
 	
+	// SERIALIZATION //
+
 	private void writeObject(ObjectOutputStream out) throws IOException {
-		out.defaultWriteObject();
+		ObjectOutputStream.PutField fields = out.putFields();
+		fields.put("symbol", symbol);
+		fields.put("quantity", FixedPoint.toDecimal(quantity));
+		fields.put("side", side);
+		fields.put("leavesQty", FixedPoint.toDecimal(leavesQty));
+		fields.put("cumulativeQty", FixedPoint.toDecimal(cumulativeQty));
+		fields.put("orderStatus", orderStatus);
+		fields.put("pendingSide", pendingSide);
+		fields.put("averagePrice", FixedPoint.toDecimal(averagePrice));
+		fields.put("entryPrice", FixedPoint.toDecimal(entryPrice));
+		fields.put("lastTradeEvent", lastTradeEvent);
+		fields.put("lastBidEvent", lastBidEvent);
+		fields.put("lastAskEvent", lastAskEvent);
+		fields.put("bidPrice", bidPrice);
+		fields.put("bidSize", bidSize);
+		fields.put("askPrice", askPrice);
+		fields.put("askSize", askSize);
+		fields.put("brokerId", brokerId);
+		fields.put("account", account);
+		fields.put("orderTimeout", orderTimeout);
+		fields.put("fillPolicy", fillPolicy);
+		fields.put("orderTimeoutPolicy", orderTimeoutPolicy);
+		fields.put("rejectPolicy", rejectPolicy);
+		fields.put("journalSequence", journalSequence);
+		out.writeFields();
 	}
 	
 	private void readObject(ObjectInputStream in) 
 	 	throws IOException, ClassNotFoundException {
-		in.defaultReadObject();
+		ObjectInputStream.GetField fields = in.readFields();
+		symbol 			= (String)fields.get("symbol", null);
+		quantity 		= FixedPoint.fromDecimal((BigDecimal)fields.get("quantity", null));
+		side 			= (Side)fields.get("side", null);
+		leavesQty 		= FixedPoint.fromDecimal((BigDecimal)fields.get("leavesQty", null));
+		cumulativeQty 	= FixedPoint.fromDecimal((BigDecimal)fields.get("cumulativeQty", null));
+		orderStatus 	= (OrderStatus)fields.get("orderStatus", null);
+		pendingSide 	= (Side)fields.get("pendingSide", null);
+		averagePrice 	= FixedPoint.fromDecimal((BigDecimal)fields.get("averagePrice", null));
+		entryPrice 		= FixedPoint.fromDecimal((BigDecimal)fields.get("entryPrice", null));
+		lastTradeEvent 	= (TradeEvent)fields.get("lastTradeEvent", null);
+		lastBidEvent 	= (BidEvent)fields.get("lastBidEvent", null);
+		lastAskEvent 	= (AskEvent)fields.get("lastAskEvent", null);
+		bidPrice 		= (BigDecimal)fields.get("bidPrice", null);
+		bidSize 		= (BigDecimal)fields.get("bidSize", null);
+		askPrice 		= (BigDecimal)fields.get("askPrice", null);
+		askSize 		= (BigDecimal)fields.get("askSize", null);
+		brokerId 		= (BrokerID)fields.get("brokerId", null);
+		account 		= (String)fields.get("account", null);
+		orderTimeout 	= fields.get("orderTimeout", DEFAULT_ORDER_TIMEOUT);
+		fillPolicy 		= (FillPolicy)fields.get("fillPolicy", null);
+		orderTimeoutPolicy = (OrderTimeoutPolicy)fields.get("orderTimeoutPolicy", null);
+		rejectPolicy 	= (RejectPolicy)fields.get("rejectPolicy", null);
+		journalSequence = fields.get("journalSequence", 0L);
+		symbolId = SymbolDictionary.intern(symbol);
+		profitLoss = new ProfitLoss();
+		accountMatcher = new AccountMatcher();
 		initOrderProcessor(); 
+		if ( bidPrice == null ) {
+			/* serialized before the top of book was kept: rebuild it from the events */
+			BidEvent bid = lastBidEvent;
+			AskEvent ask = lastAskEvent;
+			clearQuote();
+			if ( bid != null ) {
+				lastBidEvent = bid;
+				bidPrice = nonNull(bid.getPrice());
+				bidSize = nonNull(bid.getSize());
+			}
+			if ( ask != null ) {
+				lastAskEvent = ask;
+				askPrice = nonNull(ask.getPrice());
+				askSize = nonNull(ask.getSize());
+			}
+		}
+		publish();
 	 }
 }
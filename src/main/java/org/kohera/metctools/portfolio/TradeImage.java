@@ -0,0 +1,91 @@
+package org.kohera.metctools.portfolio;
+
+import org.marketcetera.trade.OrderStatus;
+
+/**
+ * Immutable copy of the state of a Trade that goes into a snapshot: its
+ * accounting fields, order timeout and policies, and the sequence number
+ * of the last journal record applied to it.
+ *
+ * A Trade publishes a new image after every change (copy-on-write), so a
+ * snapshot can be taken from any thread by collecting the current images,
+ * without stopping the threads that apply events.  Quantities and prices
+ * are fixed point, like the Trade's (see FixedPoint).
+ *
+ */
+final class TradeImage {
+
+	final String 				className;
+	final String 				symbol;
+	final long 					quantity;
+	final Side 					side;
+	final long 					leavesQty;
+	final long 					cumulativeQty;
+	final OrderStatus 			orderStatus;
+	final Side 					pendingSide;
+	final long 					averagePrice;
+	final long 					entryPrice;
+	final long 					orderTimeout;
+	final FillPolicy 			fillPolicy;
+	final OrderTimeoutPolicy 	orderTimeoutPolicy;
+	final RejectPolicy 			rejectPolicy;
+	final long 					journalSequence;
+
+	TradeImage(String className, String symbol, long quantity, Side side,
+			long leavesQty, long cumulativeQty, OrderStatus orderStatus,
+			Side pendingSide, long averagePrice, long entryPrice,
+			long orderTimeout, FillPolicy fillPolicy, OrderTimeoutPolicy orderTimeoutPolicy,
+			RejectPolicy rejectPolicy, long journalSequence) {
+		this.className = className;
+		this.symbol = symbol;
+		this.quantity = quantity;
+		this.side = side;
+		this.leavesQty = leavesQty;
+		this.cumulativeQty = cumulativeQty;
+		this.orderStatus = orderStatus;
+		this.pendingSide = pendingSide;
+		this.averagePrice = averagePrice;
+		this.entryPrice = entryPrice;
+		this.orderTimeout = orderTimeout;
+		this.fillPolicy = fillPolicy;
+		this.orderTimeoutPolicy = orderTimeoutPolicy;
+		this.rejectPolicy = rejectPolicy;
+		this.journalSequence = journalSequence;
+	}
+
+	/**
+	 * Returns a copy of this image with the given policies.
+	 *
+	 * @param timeout
+	 * @param fill
+	 * @param onTimeout
+	 * @param reject
+	 * @return
+	 */
+	TradeImage withPolicies(long timeout, FillPolicy fill, OrderTimeoutPolicy onTimeout,
+			RejectPolicy reject) {
+		return new TradeImage(className, symbol, quantity, side, leavesQty, cumulativeQty,
+				orderStatus, pendingSide, averagePrice, entryPrice, timeout, fill,
+				onTimeout, reject, journalSequence);
+	}
+
+	/**
+	 * Returns true if and only if the given image holds the same state as
+	 * this one.
+	 *
+	 * @param other
+	 * @return
+	 */
+	boolean hasSameState(TradeImage other) {
+		return other == this || ( other != null &&
+			className.equals(other.className) && symbol.equals(other.symbol) &&
+			quantity == other.quantity && side == other.side &&
+			leavesQty == other.leavesQty && cumulativeQty == other.cumulativeQty &&
+			orderStatus == other.orderStatus && pendingSide == other.pendingSide &&
+			averagePrice == other.averagePrice && entryPrice == other.entryPrice &&
+			orderTimeout == other.orderTimeout && fillPolicy == other.fillPolicy &&
+			orderTimeoutPolicy == other.orderTimeoutPolicy &&
+			rejectPolicy == other.rejectPolicy && journalSequence == other.journalSequence );
+	}
+
+}
@@ -0,0 +1,147 @@
+package org.kohera.metctools.portfolio;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+import org.kohera.metctools.util.DaemonThreadFactory;
+
+/**
+ * Worker threads of a sharded PortfolioStrategy.
+ * 
+ * Trades are partitioned by symbol id (see SymbolDictionary) across the
+ * shards, and everything that changes a Trade in response to an event
+ * runs on the single thread of its shard.  Each Trade therefore has one
+ * writer, and the events of a symbol are applied in the order they were
+ * received, while different shards proceed in parallel.
+ * 
+ * Portfolio-wide figures are maintained incrementally by the trades
+ * themselves as they change (see Aggregator).
+ * 
+ */
+final class TradeShards {
+
+	/**
+	 * Unit of work for a shard.  Exceptions are logged, so that a failing
+	 * event does not take down the shard thread.
+	 */
+	static abstract class Task implements Runnable {
+		
+		@Override
+		public final void run() {
+			try {
+				perform();
+			} catch (RuntimeException e) {
+				logger.error(">>> Exception while routing to a trade.", e);
+			}
+		}
+		
+		abstract void perform();
+	}
+	
+	/* fields */
+	private final ExecutorService[] 	workers;
+	private final ThreadLocal<Integer> 	current;		// shard of the calling thread, if any
+	
+	/* logging */
+	private final static Logger logger = 
+		Logger.getLogger(TradeShards.class);
+	
+	/**
+	 * Create and start the given number of shards.
+	 * 
+	 * @param count
+	 */
+	TradeShards(int count) {
+		if ( count < 1 ) {
+			throw new IllegalArgumentException(">>> The number of shards must be positive.");
+		}
+		workers = new ExecutorService[count];
+		current = new ThreadLocal<Integer>();
+		for ( int i = 0; i < count; i++ ) {
+			workers[i] = Executors.newSingleThreadExecutor(
+					new DaemonThreadFactory("TradeShard-" + i));
+			final Integer shard = Integer.valueOf(i);
+			workers[i].execute(new Runnable() {
+				@Override
+				public void run() {
+					current.set(shard);
+				}
+			});
+		}
+	}
+	
+	/**
+	 * Returns the number of shards.
+	 * 
+	 * @return
+	 */
+	int getShardCount() {
+		return workers.length;
+	}
+	
+	/**
+	 * Returns the shard that owns a trade.
+	 * 
+	 * @param trade
+	 * @return
+	 */
+	int shardOf(Trade trade) {
+		return trade.getSymbolId() % workers.length;
+	}
+	
+	/**
+	 * Returns true if and only if the calling thread is one of the shards.
+	 * 
+	 * @return
+	 */
+	boolean isShardThread() {
+		return current.get() != null;
+	}
+	
+	/**
+	 * Returns true if and only if the calling thread is the shard that
+	 * owns the trade.
+	 * 
+	 * @param trade
+	 * @return
+	 */
+	boolean isOwner(Trade trade) {
+		Integer shard = current.get();
+		return shard != null && shard.intValue() == shardOf(trade);
+	}
+	
+	/**
+	 * Run a task on the shard that owns the trade.
+	 * 
+	 * @param trade
+	 * @param task
+	 */
+	void execute(Trade trade, Task task) {
+		workers[shardOf(trade)].execute(task);
+	}
+	
+	/**
+	 * Stop the shards after they have processed the events already queued,
+	 * and wait for them to finish (unless called from a shard itself).
+	 */
+	void shutdown() {
+		for ( ExecutorService worker : workers ) {
+			worker.shutdown();
+		}
+		if ( isShardThread() ) {
+			return;
+		}
+		try {
+			for ( ExecutorService worker : workers ) {
+				while ( !worker.awaitTermination(1, TimeUnit.SECONDS) ) {
+					logger.debug(">>> Waiting for a trade shard to drain...");
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+	
+}
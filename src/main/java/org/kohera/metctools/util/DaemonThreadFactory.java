@@ -0,0 +1,35 @@
+package org.kohera.metctools.util;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * ThreadFactory for executors that run framework housekeeping in the
+ * background.  Threads are daemons, so they never keep the strategy
+ * agent alive, and are named after the executor's purpose.
+ * 
+ */
+public class DaemonThreadFactory implements ThreadFactory {
+
+	/* fields */
+	private final String 		name;
+	private final AtomicInteger count;
+	
+	/**
+	 * Create a new DaemonThreadFactory.  Threads are named name-1, name-2,...
+	 * 
+	 * @param name
+	 */
+	public DaemonThreadFactory( String name ) {
+		this.name = name;
+		this.count = new AtomicInteger();
+	}
+	
+	@Override
+	public Thread newThread( Runnable runnable ) {
+		Thread thread = new Thread(runnable, name + "-" + count.incrementAndGet());
+		thread.setDaemon(true);
+		return thread;
+	}
+	
+}